@@ -8,9 +8,13 @@ import network.*;
 
 import javax.swing.*;
 import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -303,7 +307,7 @@ public class ModLoader extends ClassLoader {
 
     /**
      * Data una classe con annotation {@code @EncoderDefinition} controlla che questa sia un estensione di
-     * {@code Encoder} e in caso recupera il suo constructor e lo registra in {@code ServerManager}
+     * {@code Encoder} e in caso crea una factory dal suo constructor e la registra in {@code ServerManager}
      * @param encoder_class classe da registrare
      */
     public static void load_encoder(Class<?> encoder_class) {
@@ -315,20 +319,44 @@ public class ModLoader extends ClassLoader {
             return;
         }
 
-        Constructor<? extends Encoder> constructor;
+        Supplier<Encoder> factory;
         try {
-            constructor = (Constructor<? extends Encoder>) encoder_class.getConstructor();
+            factory = encoder_factory(encoder_class.asSubclass(Encoder.class));
         }
-        catch (Exception e) {
+        catch (Throwable e) {
             Logger.log("impossibile trovare un constructor valido per la classe: (" + encoder_class.getName() + ")", true);
             Logger.log(e.getMessage(), true, '\n', false);
             return;
         }
 
-        ServerManager.register_encoder(constructor, name);
+        ServerManager.register_encoder(factory, name);
         Logger.log("registrato un nuovo encoder dalla classe: (" + encoder_class.getName() + ") con successo");
     }
 
+    /**
+     * Crea una factory per le istanze di un encoder che chiama il suo constructor con un {@code MethodHandle} invece
+     * che con reflection. Non viene generato l equivalente di {@code EncoderClass::new} con {@code LambdaMetafactory}
+     * poiché richiede un lookup con accesso completo alla classe, che non si può ottenere per classi caricate dal
+     * class loader delle mod
+     * @param encoder_class classe dell encoder, deve avere un constructor pubblico senza argomenti
+     * @return factory per nuove istanze dell encoder
+     * @throws Throwable se la classe non ha un constructor valido
+     */
+    private static Supplier<Encoder> encoder_factory(Class<? extends Encoder> encoder_class) throws Throwable {
+        MethodHandle constructor = MethodHandles.publicLookup()
+                .findConstructor(encoder_class, MethodType.methodType(void.class))
+                .asType(MethodType.methodType(Encoder.class));
+
+        return () -> {
+            try {
+                return (Encoder) constructor.invokeExact();
+            }
+            catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        };
+    }
+
     /**
      * Data una classe con annotation {@code @Connector} controlla che questa sia estensione di {@code Connector} e in
      * caso crea una nuova istanza e la registra in {@code ServerManager}
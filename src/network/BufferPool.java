@@ -0,0 +1,109 @@
+package network;
+
+/**
+ * Mantiene i {@code MessageBuffer} liberi in modo da riutilizzarli per i messaggi successivi invece di allocarne di
+ * nuovi a ogni messaggio ricevuto.
+ * <p>I buffers sono divisi in classi di dimensione in potenze di 2, da {@code MIN_BUFFER_SIZE} a
+ * {@code MAX_BUFFER_SIZE}, messaggi più grandi vengono allocati ogni volta e non tornano nel pool. Ogni classe mantiene
+ * al massimo {@code capacity} buffers liberi, quelli rilasciati oltre questo limite vengono lasciati al garbage
+ * collector.
+ */
+public abstract class BufferPool {
+    /// Dimensione dei buffers della classe più piccola
+    public static final int MIN_BUFFER_SIZE = 256;
+
+    /// Dimensione dei buffers della classe più grande, messaggi più grandi non utilizzano il pool
+    public static final int MAX_BUFFER_SIZE = 65536;
+
+    /// log2 di {@code MIN_BUFFER_SIZE}
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+
+    /// Numero di classi di dimensione
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE) - MIN_SHIFT + 1;
+
+    /// Numero massimo di buffers liberi mantenuti per ogni classe di dimensione
+    private static int capacity = 256;
+
+    /// Buffers liberi divisi per classe di dimensione
+    private static volatile WorkQueue<MessageBuffer>[] free_buffers = create_classes(capacity);
+
+    /**
+     * Imposta il numero massimo di buffers liberi mantenuti per ogni classe di dimensione, i buffers liberi
+     * attualmente nel pool vengono scartati
+     * @param new_capacity numero massimo di buffers per classe, con {@code 0} il pool viene disattivato
+     */
+    public static void set_capacity(int new_capacity) {
+        capacity = Math.max(0, new_capacity);
+        free_buffers = create_classes(capacity);
+    }
+
+    /// Ritorna il numero massimo di buffers liberi mantenuti per ogni classe di dimensione
+    public static int get_capacity() {
+        return capacity;
+    }
+
+    /**
+     * Ritorna un buffer in grado di contenere un messaggio di {@code length} bytes con un riferimento, se possibile
+     * riutilizzandone uno libero
+     * @param length lunghezza del messaggio da contenere
+     * @return buffer con {@code length() == length}
+     */
+    public static MessageBuffer acquire(int length) {
+        MessageBuffer buffer;
+
+        int size_class = size_class(length);
+        if (size_class == -1) {
+            buffer = new MessageBuffer(new byte[length], -1);
+        }
+        else {
+            WorkQueue<MessageBuffer>[] classes = free_buffers;
+
+            buffer = (classes == null)? null : classes[size_class].poll();
+            if (buffer == null) {
+                buffer = new MessageBuffer(new byte[MIN_BUFFER_SIZE << size_class], size_class);
+            }
+        }
+
+        buffer.reset(length);
+        return buffer;
+    }
+
+    /**
+     * Chiamato da {@code MessageBuffer.release()} una volta rilasciati tutti i riferimenti a un buffer, se c'è spazio
+     * lo aggiunge ai buffers liberi
+     * @param buffer buffer non più utilizzato
+     */
+    static void recycle(MessageBuffer buffer) {
+        WorkQueue<MessageBuffer>[] classes = free_buffers;
+
+        if (classes != null && buffer.get_size_class() != -1) {
+            classes[buffer.get_size_class()].offer(buffer);
+        }
+    }
+
+    /// Ritorna la classe di dimensione adatta a contenere {@code length} bytes, {@code -1} se troppo grande
+    private static int size_class(int length) {
+        if (length > MAX_BUFFER_SIZE) {
+            return -1;
+        }
+        if (length <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+
+        return (32 - Integer.numberOfLeadingZeros(length - 1)) - MIN_SHIFT;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static WorkQueue<MessageBuffer>[] create_classes(int capacity) {
+        if (capacity == 0) {
+            return null;
+        }
+
+        WorkQueue<MessageBuffer>[] classes = new WorkQueue[CLASSES];
+        for (int i = 0; i < CLASSES; i++) {
+            classes[i] = new WorkQueue<>(capacity);
+        }
+
+        return classes;
+    }
+}
@@ -0,0 +1,247 @@
+package network;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Tabella dei {@code cc} di un client, ha una posizione per ognuno dei 256 {@code cc} possibili e tiene traccia di
+ * quali sono bloccati da conversazioni in corso e di chi è in attesa di una risposta su di essi.
+ * <p>I {@code cc} bloccati sono segnati in una bitmap di 4 {@code long} e chi attende una risposta in un array di 256
+ * celle, entrambi modificati solo con operazioni atomiche, quindi il thread che riceve i messaggi del client e i
+ * worker threads possono utilizzare la tabella contemporaneamente senza lock. Bloccare, sbloccare, trovare un
+ * {@code cc} libero e consegnare una risposta non allocano memoria.
+ * <p>Ogni cella può contenere:
+ * <ul>
+ *     <li>{@code null}: nessuno è in attesa di una risposta a questo {@code cc}</li>
+ *     <li>{@code OnArrival}: azione da eseguire alla risposta</li>
+ *     <li>{@code Waiter}: thread bloccato in {@code Client.wait_for_reply()}</li>
+ *     <li>
+ *         {@code MessageBuffer}: risposta arrivata prima che qualcuno si mettesse in attesa, verrà consegnata al
+ *         prossimo che si registra a questo {@code cc}
+ *     </li>
+ * </ul>
+ * Il {@code cc} {@code 0x00} è riservato ai messaggi senza risposta attesa e non può essere bloccato.
+ */
+class CcTable {
+    /// Thread in attesa di una risposta in {@code Client.wait_for_reply()}
+    static final class Waiter {
+        private final Thread thread;
+
+        /// Risposta ricevuta, {@code null} finché non arriva o se il client si è scollegato
+        private volatile byte[] reply;
+
+        /// Diventa {@code true} quando viene chiamato {@code complete()}, anche con {@code null}
+        private volatile boolean completed = false;
+
+        Waiter(Thread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * Blocca il thread chiamante finché non arriva una risposta, il client si scollega o il thread viene interrotto
+         * @return la risposta ricevuta o {@code null} se il client si è scollegato o il thread è stato interrotto
+         */
+        byte[] await() {
+            while (!completed) {
+                LockSupport.park(this);
+
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt(); //il chiamante deve poter sapere che è stato interrotto
+                    return reply;
+                }
+            }
+
+            return reply;
+        }
+
+        /// Consegna la risposta, o {@code null} se il client si è scollegato, e sveglia il thread in attesa
+        void complete(byte[] msg) {
+            reply = msg;
+            completed = true;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /// Bitmap dei {@code cc} bloccati, il bit {@code cc & 63} della parola {@code (cc & 0xFF) >> 6}
+    private final AtomicLongArray locked = new AtomicLongArray(4);
+
+    /// Per ogni {@code cc} chi è in attesa della risposta, o la risposta stessa se arrivata prima
+    private final AtomicReferenceArray<Object> slots = new AtomicReferenceArray<>(256);
+
+    /**
+     * Blocca un {@code cc}
+     * @param cc {@code cc} da bloccare
+     * @return {@code true} se lo ha bloccato, {@code false} se era già bloccato o è {@code 0x00}
+     */
+    public boolean lock(byte cc) {
+        if (cc == 0x00) {
+            return false;
+        }
+
+        int word = (cc & 0xFF) >>> 6;
+        long bit = 1L << (cc & 63);
+
+        while (true) {
+            long current = locked.get(word);
+            if ((current & bit) != 0) {
+                return false;
+            }
+
+            if (locked.compareAndSet(word, current, current | bit)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Sblocca un {@code cc} rimuovendo chi era in attesa di una risposta, se una risposta era arrivata senza nessuno
+     * ad attenderla viene scartata
+     * @param cc {@code cc} da sbloccare
+     * @return {@code true} se lo ha sbloccato, {@code false} se non era bloccato
+     */
+    public boolean unlock(byte cc) {
+        int word = (cc & 0xFF) >>> 6;
+        long bit = 1L << (cc & 63);
+
+        if ((locked.get(word) & bit) == 0) {
+            return false;
+        }
+
+        //svuota la cella prima di liberare il cc, altrimenti potrebbe rimuovere chi lo ha appena bloccato
+        if (slots.getAndSet(cc & 0xFF, null) instanceof MessageBuffer pending) {
+            pending.release();
+        }
+
+        return (locked.getAndUpdate(word, current -> current & ~bit) & bit) != 0;
+    }
+
+    /// Ritorna {@code true} se il {@code cc} è bloccato
+    public boolean is_locked(byte cc) {
+        return (locked.get((cc & 0xFF) >>> 6) & (1L << (cc & 63))) != 0;
+    }
+
+    /**
+     * Trova e blocca un {@code cc} libero, partendo da una posizione casuale per non riutilizzare sempre gli stessi
+     * @return il {@code cc} bloccato o {@code 0x00} se tutti i {@code cc} sono occupati
+     */
+    public byte allocate() {
+        int start = ThreadLocalRandom.current().nextInt(1, 256);
+        int start_word = start >>> 6;
+
+        //controlla la parola di partenza dal bit start in poi, le altre parole, e infine i bit prima di start
+        for (int i = 0; i <= 4; i++) {
+            int word = (start_word + i) & 3;
+
+            long mask = -1L;
+            if (i == 0) {
+                mask = -1L << (start & 63);
+            }
+            if (word == 0) {
+                mask &= ~1L; //cc = 0x00 riservato
+            }
+
+            while (true) {
+                long current = locked.get(word);
+                long free = ~current & mask;
+                if (free == 0) {
+                    break;
+                }
+
+                long bit = Long.lowestOneBit(free);
+                if (locked.compareAndSet(word, current, current | bit)) {
+                    return (byte) ((word << 6) | Long.numberOfTrailingZeros(bit));
+                }
+            }
+        }
+
+        return 0x00;
+    }
+
+    /**
+     * Registra un {@code OnArrival} o un {@code Waiter} in attesa di una risposta al {@code cc}, se la risposta era
+     * già arrivata non viene registrato ma la risposta viene ritornata per essere consegnata subito
+     * @param cc       {@code cc} a cui registrare {@code notifier}
+     * @param notifier oggetto in attesa della risposta
+     * @return {@code notifier} se è stato registrato, la risposta se era già arrivata, o {@code null} se un altro
+     * oggetto era già in attesa a questo {@code cc}
+     */
+    public Object register(byte cc, Object notifier) {
+        int index = cc & 0xFF;
+
+        while (true) {
+            Object current = slots.get(index);
+
+            if (current == null) {
+                if (slots.compareAndSet(index, null, notifier)) {
+                    return notifier;
+                }
+            }
+            else if (current instanceof MessageBuffer) {
+                if (slots.compareAndSet(index, current, null)) {
+                    return current;
+                }
+            }
+            else {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Rimuove {@code notifier} dal {@code cc} se è ancora in attesa
+     * @return {@code true} se lo ha rimosso, {@code false} se non era più registrato
+     */
+    public boolean unregister(byte cc, Object notifier) {
+        return slots.compareAndSet(cc & 0xFF, notifier, null);
+    }
+
+    /**
+     * Ricevuta una risposta a un {@code cc} bloccato rimuove e ritorna chi la stava attendendo, se nessuno era in
+     * attesa memorizza la risposta in modo da consegnarla al prossimo che si registra
+     * @param cc  {@code cc} della risposta
+     * @param msg risposta ricevuta, se viene memorizzata il riferimento passa alla tabella
+     * @return l'{@code OnArrival} o {@code Waiter} in attesa, {@code msg} se è stato memorizzato, o {@code null} se
+     * un altra risposta era già in attesa di essere consegnata o il {@code cc} è stato sbloccato nel frattempo
+     */
+    public Object take_notifier(byte cc, MessageBuffer msg) {
+        int index = cc & 0xFF;
+
+        while (true) {
+            Object current = slots.get(index);
+
+            if (current == null) {
+                if (slots.compareAndSet(index, null, msg)) {
+                    //se il cc è stato sbloccato mentre la memorizzava nessuno la consegnerà più
+                    if (!is_locked(cc) && slots.compareAndSet(index, msg, null)) {
+                        return null;
+                    }
+                    return msg;
+                }
+            }
+            else if (current instanceof MessageBuffer) {
+                return null;
+            }
+            else if (slots.compareAndSet(index, current, null)) {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Passa a {@code action} ogni {@code OnArrival} o {@code Waiter} attualmente in attesa di una risposta, senza
+     * rimuoverli
+     * @param action azione da eseguire per ogni oggetto in attesa
+     */
+    public void for_each_waiting(Consumer<Object> action) {
+        for (int i = 0; i < 256; i++) {
+            Object current = slots.get(i);
+
+            if (current != null && !(current instanceof MessageBuffer)) {
+                action.accept(current);
+            }
+        }
+    }
+}
@@ -4,9 +4,9 @@ import files.Logger;
 
 import java.security.SecureRandom;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Rappresenta i client online, le istanze devono essere create dai Connector dopo che un client si è connesso a loro.
@@ -18,30 +18,26 @@ public abstract class Client {
     // todo solo per testing, quando true vengono stampate tutti i contenuti dei messaggi fra clients e server
     public static final boolean DEBUGGING = true;
 
-    /**
-     * Specifica il numero massimo di tentativi a generare un {@code cc} casuale per una nuova conversazione, se genera troppi
-     * {@code cc} casuali bloccati di fila la funzione gen_cc() ritorna 0x00 indicando errore
-     */
-    private static int MAX_CC_GEN_TRY = 20;
+    /// Con la coda dei messaggi in uscita piena il messaggio viene scartato
+    public static final int OUTBOUND_DROP = 0;
 
-    /// Utilizzato per generare cc casuali fra tutti i clients
-    private static final SecureRandom random = new SecureRandom();
+    /// Con la coda dei messaggi in uscita piena il client viene disconnesso
+    public static final int OUTBOUND_DISCONNECT = 1;
 
-    /// Vettore con tutti i {@code cc} bloccati da conversazioni in corso con questo client
-    private final Vector<Byte> locked_cc = new Vector<>();
+    /// Con la coda dei messaggi in uscita piena il thread che invia il messaggio attende che si liberi spazio
+    public static final int OUTBOUND_BLOCK = 2;
 
-    /// Mappa fra i {@code cc} bloccati e un oggetto OnArrival da eseguire quando si riceverà una risposta dal client a questo {@code cc}
-    private final Map<Byte, OnArrival> waiting_actions = new LinkedHashMap<>();
+    /// Capacità della coda dei messaggi in uscita dei nuovi clients, {@code 0} se i messaggi vengono inviati subito
+    private static int outbound_capacity = 0;
 
-    /// Mappa fra i {@code cc} bloccati e i Thread che attendono una risposta dal client a questi {@code cc}
-    private final Map<Byte, Thread> waiting_threads = new LinkedHashMap<>();
+    /// Cosa fare quando la coda dei messaggi in uscita è piena
+    private static int outbound_policy = OUTBOUND_DROP;
 
-    /**
-     * Una volta ricevuta una risposta a un {@code cc} a cui un Thread era in attesa, per passare il messaggio fra i due Thread
-     * viene aggiunto a questa mappa legato al {@code cc}, il Thread in attesa una volta notificato legge e rimuove i dati da
-     * questa mappa
-     */
-    private final Map<Byte, byte[]> thread_bridge = new LinkedHashMap<>();
+    /// Millisecondi dopo cui le richieste inviate con {@code send_async()} falliscono se non si riceve risposta, {@code 0} per nessun limite
+    private static long reply_timeout = 30000;
+
+    /// {@code cc} bloccati da conversazioni in corso con questo client e oggetti in attesa di risposta su di essi
+    private final CcTable cc_table = new CcTable();
 
     /// Nome con cui viene identificato questo client o temp id se non è ancora stato eseguito il login
     private String client_name;
@@ -50,11 +46,32 @@ public abstract class Client {
     private final String connector_name;
 
     /// True se non è ancora eseguito il login e in {@code client_name} è scritto un temp id, false se è scritto il nome
-    private boolean is_temp_id = true;
+    private volatile boolean is_temp_id = true;
 
     /// Encoder da utilizzare per cifrare la connessione con il client
     private Encoder encoder;
 
+    /// Messaggi del client in attesa di essere processati in ordine, utilizzata solo con la mailbox dispatch attiva
+    private final Mailbox mailbox = new Mailbox();
+
+    /// Utilizzato da {@code send()} per cifrare e inviare un messaggio alla volta
+    private final ReentrantLock send_lock = new ReentrantLock();
+
+    /// Diventa {@code true} alla disconnessione, da quel momento l encoder può essere riutilizzato da altri clients e non vengono inviati altri messaggi
+    private volatile boolean disconnected = false;
+
+    /// Istante in millisecondi in cui è stato ricevuto l ultimo messaggio dal client, utilizzato da {@code IdleReaper}
+    private volatile long last_activity = System.currentTimeMillis();
+
+    /// Limita i messaggi al secondo inoltrati ai worker threads, {@code null} se non c'è un limite
+    private final TokenBucket rate_bucket = RateLimiter.new_client_bucket();
+
+    /// {@code true} se è già stato notificato al client che ha superato il limite, azzerato al prossimo messaggio permesso
+    private volatile boolean rate_notified = false;
+
+    /// Messaggi in attesa di essere inviati al client, creata in {@code set_encoder()}, {@code null} se vengono inviati subito
+    private volatile OutboundQueue outbound = null;
+
     /**
      * Definisce come chiudere la connessione con un client, la specifica di questo metodo dipende dal Connector da cui
      * arriva.
@@ -77,6 +94,51 @@ public abstract class Client {
      */
     public abstract void direct_send(byte[] msg);
 
+    /**
+     * Invia più messaggi al client insieme, già cifrati, di default li invia uno alla volta con
+     * {@code direct_send(byte[])}. Connector in grado di scrivere più messaggi con una sola operazione possono
+     * sovrascriverlo, viene chiamato dalla coda dei messaggi in uscita
+     * @param msgs messaggi da inviare al client, in ordine
+     */
+    public void direct_send(byte[][] msgs) {
+        for (byte[] msg : msgs) {
+            direct_send(msg);
+        }
+    }
+
+    /**
+     * Invia un messaggio già cifrato contenuto in un buffer del pool, il riferimento al buffer passa a questo metodo.
+     * Di default lo copia e utilizza {@code direct_send(byte[])}, connector in grado di scrivere direttamente dal buffer
+     * possono sovrascriverlo
+     * @param msg messaggio da inviare al client
+     */
+    public void direct_send(MessageBuffer msg) {
+        try {
+            direct_send(msg.to_array());
+        }
+        finally {
+            msg.release();
+        }
+    }
+
+    /**
+     * Utilizzato dalla coda dei messaggi in uscita per sapere se il client sta leggendo i dati inviati, finché ritorna
+     * {@code false} i messaggi rimangono in coda. Connector che mantengono dati in attesa di essere scritti possono
+     * sovrascriverlo per ritornare {@code false} finché ne hanno e chiamare {@code on_writable()} una volta scritti
+     * @return {@code true} se è possibile inviare altri messaggi al client
+     */
+    protected boolean is_writable() {
+        return true;
+    }
+
+    /// Chiamato dai connector quando il client torna a leggere i dati dopo che {@code is_writable()} ha ritornato {@code false}
+    protected void on_writable() {
+        OutboundQueue queue = outbound;
+        if (queue != null) {
+            queue.schedule();
+        }
+    }
+
     /**
      * Quando si crea una nuova istanza di un Client non è ancora stato eseguito il login, viene inizializzato con un
      * intero random che dovrebbe essere unico fra gli utenti non registrati e può essere inteso come id.
@@ -121,20 +183,23 @@ public abstract class Client {
         return client_name;
     }
 
+    /// Ritorna la mailbox con i messaggi del client in attesa di essere processati in ordine
+    Mailbox get_mailbox() {
+        return mailbox;
+    }
+
     /// Ritorna il nome del connector che ha creato questa istanza di {@code Client
     public String get_connector_name() {
         return connector_name;
     }
 
     /**
-     * Imposta il numero massimo di tentativi disponibili a generare un nuovo {@code cc} per una conversazione prima di fallire,
-     * se impostato a -1 questo limite viene disabilitato
-     * @param max_cc_gen_try numero massimo di tentativi per generare nuovi {@code cc}, o -1 se si vuole disattivare questo
-     *                       limite
+     * Non ha più nessun effetto, i {@code cc} liberi vengono cercati direttamente fra tutti i 256 possibili e la
+     * generazione fallisce solo se sono tutti bloccati
+     * @param max_cc_gen_try ignorato
      */
-    public static void set_max_cc_gen_try(int max_cc_gen_try) {
-        MAX_CC_GEN_TRY = max_cc_gen_try;
-    }
+    @Deprecated
+    public static void set_max_cc_gen_try(int max_cc_gen_try) {}
 
     /**
      * Invia un messaggio al client specificando conversation code e oggetto OnAction da eseguire una volta ricevuta
@@ -152,21 +217,181 @@ public abstract class Client {
             throw new RuntimeException("impossibile specificare un azione per il cc = 0x00 dal client: (" + client_name + ")");
         }
 
-        //concatena cc e msg[] in un unico messaggio
+        if (DEBUGGING) { Logger.log("invio (" + client_name + ")[" + cc + "] -> " + new String(msg)); }
+
+        //registra action prima di inviare il messaggio per non perdere risposte immediate
+        if (!register_action(cc, action)) { //fallisce a registrare action come azione da eseguire ricevuta la risposta
+            Logger.log("inviato un messaggio al client: (" + client_name + ")[" + cc + "] ma non è possibile registrare OnArrival essendo il cc già occupato", true);
+        }
+
+        OutboundQueue queue = outbound;
+        if (queue != null && encoder != null) {
+            queue.add(concat(cc, msg));
+            return;
+        }
+
+        //l encoder cifra un messaggio alla volta, e nello stesso ordine in cui vengono inviati
+        send_lock.lock();
+        try {
+            if (disconnected) {
+                return;
+            }
+
+            if (encoder == null) {
+                direct_send(concat(cc, msg));
+            }
+            else if (encoder.supports_buffers()) {
+                MessageBuffer encoded = encode_buffer(cc, msg);
+                if (encoded != null) {
+                    direct_send(encoded);
+                }
+            }
+            else {
+                direct_send(encoder.encode(concat(cc, msg)));
+            }
+        }
+        finally {
+            send_lock.unlock();
+        }
+    }
+
+    /**
+     * Invia l ultimo messaggio prima di chiudere il client con {@code cc} = 0x00. Se il client ha una coda dei
+     * messaggi in uscita questa viene svuotata subito dal thread chiamante insieme al messaggio, invece di lasciarlo in
+     * coda dove verrebbe scartato dalla chiusura
+     * @param msg      messaggio da inviare
+     * @param deadline istante in {@code System.nanoTime()} dopo cui non attende più che finisca un invio della coda
+     *                 già in corso
+     */
+    void send_final(byte[] msg, long deadline) {
+        OutboundQueue queue = outbound;
+        if (queue == null || encoder == null) {
+            send(msg);
+            return;
+        }
+
+        queue.flush_now(concat((byte) 0x00, msg), deadline);
+    }
+
+    /// Concatena {@code cc} e {@code msg} in un unico messaggio
+    private static byte[] concat(byte cc, byte[] msg) {
         byte[] final_msg = new byte[msg.length + 1];
         final_msg[0] = cc;
         System.arraycopy(msg, 0, final_msg, 1, msg.length);
 
-        if (DEBUGGING) { Logger.log("invio (" + client_name + ")[" + cc + "] -> " + new String(msg)); }
+        return final_msg;
+    }
 
-        if (encoder != null) {
-            final_msg = encoder.encode(final_msg);
+    /**
+     * Concatena {@code cc} e {@code msg} in un buffer del pool e lo cifra in un secondo buffer con i metodi
+     * {@code ByteBuffer} dell encoder, senza allocare nuovi array
+     * @return buffer con il messaggio cifrato o {@code null} se l encoder ha fallito
+     */
+    private MessageBuffer encode_buffer(byte cc, byte[] msg) {
+        MessageBuffer plain = BufferPool.acquire(msg.length + 1);
+        plain.array()[plain.offset()] = cc;
+        System.arraycopy(msg, 0, plain.array(), plain.offset() + 1, msg.length);
+
+        MessageBuffer encoded = BufferPool.acquire(encoder.max_encoded_length(plain.length()));
+        int len;
+        try {
+            len = encoder.encode(plain.as_source(), encoded.as_destination());
+        }
+        finally {
+            plain.release();
         }
-        direct_send(final_msg);
 
-        if (!register_action(cc, action)) { //fallisce a registrare action come azione da eseguire ricevuta la risposta
-            Logger.log("inviato un messaggio al client: (" + client_name + ")[" + cc + "] ma non è possibile registrare OnArrival essendo il cc già occupato", true);
+        if (len < 0) {
+            Logger.log("impossibile cifrare un messaggio per il client: (" + client_name + ")", true);
+            encoded.release();
+
+            return null;
         }
+
+        encoded.set_length(len);
+        return encoded;
+    }
+
+    /**
+     * Cifra e invia insieme i messaggi estratti dalla coda dei messaggi in uscita, i messaggi che l encoder non riesce
+     * a cifrare vengono scartati
+     * @param msgs messaggi da inviare, già concatenati al loro {@code cc}
+     */
+    void write_batch(byte[][] msgs) {
+        send_lock.lock();
+        try {
+            if (disconnected) {
+                return;
+            }
+
+            int encoded = 0;
+            for (byte[] msg : msgs) {
+                byte[] encoded_msg = encoder.encode(msg);
+                if (encoded_msg == null) {
+                    Logger.log("impossibile cifrare un messaggio per il client: (" + client_name + "), viene scartato", true);
+                    continue;
+                }
+
+                msgs[encoded++] = encoded_msg;
+            }
+
+            if (encoded != 0) {
+                direct_send(encoded == msgs.length? msgs : Arrays.copyOf(msgs, encoded));
+            }
+        }
+        finally {
+            send_lock.unlock();
+        }
+    }
+
+    /**
+     * Cifra un messaggio con {@code cc} = 0x00 senza inviarlo, in modo che possa essere inviato con
+     * {@code send_encoded()} a tutti i clients con un encoder dello stesso nome. Da utilizzare solo se
+     * {@code encoder.is_shareable()}, altrimenti il messaggio sarebbe leggibile solo da questo client
+     * @param msg messaggio da cifrare
+     * @return messaggio cifrato o {@code null} se il client è disconnesso o l encoder ha fallito
+     */
+    byte[] encode_shared(byte[] msg) {
+        send_lock.lock();
+        try {
+            if (disconnected || encoder == null) {
+                return null;
+            }
+
+            return encoder.encode(concat((byte) 0x00, msg));
+        }
+        finally {
+            send_lock.unlock();
+        }
+    }
+
+    /**
+     * Invia un messaggio già cifrato da {@code encode_shared()}, se il client ha una coda dei messaggi in uscita il
+     * messaggio viene invece inviato con {@code send()} per mantenere l'ordine con quelli già in coda
+     * @param encoded messaggio cifrato
+     * @param msg     messaggio originale
+     */
+    void send_encoded(byte[] encoded, byte[] msg) {
+        if (outbound != null) {
+            send(msg);
+            return;
+        }
+
+        send_lock.lock();
+        try {
+            if (!disconnected) {
+                direct_send(encoded);
+            }
+        }
+        finally {
+            send_lock.unlock();
+        }
+    }
+
+    /// Ritorna {@code true} se i messaggi cifrati dall encoder del client possono essere inviati ad altri clients
+    boolean has_shareable_encoder() {
+        Encoder current = encoder;
+        return current != null && current.is_shareable();
     }
 
     /**
@@ -178,20 +403,137 @@ public abstract class Client {
     }
 
     /**
-     * Invia un messaggio al client registrando un OnArrival in un {@code cc} random che viene ritornato, nel caso in cui action
-     * != null e riesca a generare il {@code cc}, questo viene bloccato.
+     * Invia un messaggio al client registrando un OnArrival in un {@code cc} random libero che viene ritornato, nel caso in
+     * cui action != null e riesca a generare il {@code cc}, questo viene bloccato.
      * @param msg    messaggio da inviare al client
      * @param action azione da eseguire una volta ricevuta una risposta
      * @return cc utilizzato per inviare il messaggio
      * @throws RuntimeException nel caso fallisca a generare un nuovo {@code cc}
      */
     public byte send(byte[] msg, OnArrival action) {
-        byte cc = gen_random_cc();
+        byte cc = cc_table.allocate();
+        if (cc == 0x00) {
+            Logger.log("impossibile generare un nuovo cc per il client: (" + client_name + ")", true);
+        }
+
         send(msg, cc, action);
+        if (action == null && cc != 0x00) { //senza un azione registrata il cc non rimane bloccato
+            cc_table.unlock(cc);
+        }
 
         return cc;
     }
 
+    /**
+     * Imposta la capacità della coda dei messaggi in uscita dei clients che si connetteranno da ora in poi, con una
+     * coda i messaggi inviati da {@code send()} vengono cifrati e inviati insieme da un altro thread invece che da
+     * quello chiamante, che non deve quindi attendere l'invio
+     * @param capacity numero massimo di messaggi in coda per ogni client, {@code 0} per inviare i messaggi subito
+     */
+    public static void set_outbound_queue(int capacity) {
+        if (capacity < 0) {
+            Logger.log("impossibile impostare la capacità della coda dei messaggi in uscita a un numero < 0: " + capacity, true);
+            return;
+        }
+
+        outbound_capacity = capacity;
+    }
+
+    /// Ritorna la capacità della coda dei messaggi in uscita, {@code 0} se disattivata
+    public static int get_outbound_queue() {
+        return outbound_capacity;
+    }
+
+    /**
+     * Imposta cosa fare quando la coda dei messaggi in uscita di un client è piena, per i clients che si connetteranno
+     * da ora in poi
+     * @param policy uno fra {@code OUTBOUND_DROP}, {@code OUTBOUND_DISCONNECT} e {@code OUTBOUND_BLOCK}
+     */
+    public static void set_outbound_policy(int policy) {
+        if (policy < OUTBOUND_DROP || policy > OUTBOUND_BLOCK) {
+            Logger.log("policy per la coda dei messaggi in uscita non valida: " + policy, true);
+            return;
+        }
+
+        outbound_policy = policy;
+    }
+
+    /// Ritorna cosa fare quando la coda dei messaggi in uscita di un client è piena
+    public static int get_outbound_policy() {
+        return outbound_policy;
+    }
+
+    /**
+     * Imposta il tempo dopo cui le richieste inviate con {@code send_async(byte[])} falliscono se il client non
+     * risponde
+     * @param timeout millisecondi di attesa, {@code 0} per attendere senza limite
+     */
+    public static void set_reply_timeout(long timeout) {
+        if (timeout < 0) {
+            Logger.log("impossibile impostare un timeout per le risposte negativo: " + timeout, true);
+            return;
+        }
+
+        reply_timeout = timeout;
+    }
+
+    /// Ritorna i millisecondi dopo cui le richieste inviate con {@code send_async(byte[])} falliscono
+    public static long get_reply_timeout() {
+        return reply_timeout;
+    }
+
+    /**
+     * Invia un messaggio al client in un {@code cc} libero e ritorna una future completata con la sua risposta, senza
+     * bloccare il thread chiamante. Utilizza il timeout impostato con {@code set_reply_timeout()}
+     * @param msg messaggio da inviare al client
+     * @return future completata con la risposta del client
+     */
+    public CompletableFuture<byte[]> send_async(byte[] msg) {
+        return send_async(msg, reply_timeout);
+    }
+
+    /**
+     * Invia un messaggio al client in un {@code cc} libero e ritorna una future completata con la sua risposta, senza
+     * bloccare il thread chiamante.
+     * <p>La future viene completata da un worker thread, e le azioni concatenate senza specificare un executor
+     * vengono eseguite da quel thread. Ricevuta la risposta il {@code cc} viene sbloccato.
+     * <p>Se il client non risponde entro {@code timeout} la future fallisce con un {@code TimeoutException} e il
+     * {@code cc} viene liberato, le attese sono gestite dal timer condiviso di {@code CompletableFuture} senza
+     * occupare un thread per ogni richiesta. Allo stesso modo se la future viene cancellata il {@code cc} viene
+     * liberato. Fallisce subito se tutti i {@code cc} sono occupati, e alla disconnessione del client
+     * @param msg     messaggio da inviare al client
+     * @param timeout millisecondi di attesa per la risposta, {@code 0} per attendere senza limite
+     * @return future completata con la risposta del client
+     */
+    public CompletableFuture<byte[]> send_async(byte[] msg, long timeout) {
+        byte cc = cc_table.allocate();
+        if (cc == 0x00) {
+            Logger.log("impossibile generare un nuovo cc per il client: (" + client_name + ")", true);
+            return CompletableFuture.failedFuture(new RuntimeException("nessun cc libero per il client: (" + client_name + ")"));
+        }
+
+        ReplyFuture reply = new ReplyFuture();
+        reply.whenComplete((_, e) -> {
+            //fallita per timeout, cancellazione o disconnessione, libera il cc se nessuna risposta lo ha già fatto
+            if (e != null && cc_table.unregister(cc, reply)) {
+                cc_table.unlock(cc);
+            }
+        });
+
+        send(msg, cc, reply);
+
+        //se si è disconnesso prima della registrazione on_disconnect() non ha trovato la future
+        if (disconnected) {
+            reply.completeExceptionally(new RuntimeException("il client: (" + client_name + ") si è disconnesso"));
+            return reply;
+        }
+
+        if (timeout > 0) {
+            reply.orTimeout(timeout, TimeUnit.MILLISECONDS);
+        }
+        return reply;
+    }
+
     /**
      * Invia un messaggio specificando {@code cc} e senza registrare nessun OnArrival, non viene bloccato il {@code cc}
      * @param msg messaggio da inviare al client
@@ -203,36 +545,43 @@ public abstract class Client {
 
     /**
      * Attende che il client invii una risposta a uno specifico {@code cc} bloccato, ritorna il messaggio decifrato o null nel
-     * caso in cui il {@code cc} specificato non sia stato bloccato, non riesca a registrare questo Thread come notifier, o
-     * una volta messo il thread in attesa arriva un InterruptedException
+     * caso in cui il {@code cc} specificato non sia stato bloccato, non riesca a registrare questo Thread come notifier, il
+     * client si scolleghi prima di rispondere o una volta messo il thread in attesa questo viene interrotto.
+     * <p>Se la risposta era già arrivata prima della chiamata viene ritornata subito
      * @param cc {@code cc} da cui attendere una risposta
-     * @return il messaggio decifrato, o null nel caso di un eccezione
+     * @return il messaggio decifrato, o null nel caso di un errore
      */
     public byte[] wait_for_reply(byte cc) {
-        if (!locked_cc.contains(cc)) {
+        if (!cc_table.is_locked(cc)) {
             return null;
         }
 
-        Thread current_thread = Thread.currentThread();
-        if (!register_action(cc, current_thread)) {
+        CcTable.Waiter waiter = new CcTable.Waiter(Thread.currentThread());
+        Object registered = cc_table.register(cc, waiter);
+
+        if (registered == null) {
             Logger.log("errore nella registrazione del thread per attendere una risposta dal client: (" + client_name + ")[" + cc + "]", true);
             return null;
         }
+        if (registered instanceof MessageBuffer reply) { //la risposta era già arrivata
+            byte[] msg = reply.to_array();
+            reply.release();
 
-        synchronized (current_thread) {
-            try {
-                current_thread.wait();
-            }
-            catch (InterruptedException e) {
-                Logger.log("errore nell'attesa di una risposta dal client: (" + client_name + ")[" + cc + "] da thread", true);
-                Logger.log(e.getMessage());
+            return msg;
+        }
 
-                return null;
-            }
+        if (disconnected) { //on_disconnect() potrebbe aver già svegliato tutti quelli in attesa
+            cc_table.unregister(cc, waiter);
+            return null;
         }
 
-        byte[] reply = thread_bridge.get(cc);
-        thread_bridge.remove(cc);
+        byte[] reply = waiter.await();
+        if (reply == null) { //thread interrotto o client scollegato
+            cc_table.unregister(cc, waiter);
+            Logger.log("errore nell'attesa di una risposta dal client: (" + client_name + ")[" + cc + "] da thread", true);
+
+            return null;
+        }
 
         return reply;
     }
@@ -240,81 +589,83 @@ public abstract class Client {
     /**
      * Blocca il {@code cc} specificato evitando che questo possa essere scelto per altre conversazioni
      * @param cc {@code cc} da bloccare
-     * @return true se riesce a bloccare il {@code cc}, false se {@code cc} è già bloccato
+     * @return true se riesce a bloccare il {@code cc}, false se {@code cc} è già bloccato o è 0x00
      */
     public boolean lock_cc(byte cc) {
-        if (locked_cc.contains(cc)) {
-            return false;
-        }
-
-        locked_cc.add(cc);
-        return true;
+        return cc_table.lock(cc);
     }
 
     /**
      * Sblocca un {@code cc} una volta che la conversazione che avveniva su di esso è finita, in nessun caso questa operazione è
-     * fatta in modo automatico e non sbloccare {@code cc} può causare problemi alla lunga
+     * fatta in modo automatico e non sbloccare {@code cc} può causare problemi alla lunga.
+     * <p>Chi era in attesa di una risposta a questo {@code cc} viene rimosso
      * @param cc {@code cc} da sbloccare
      * @return true se è riuscito a sbloccare il {@code cc}, false se non era bloccato
      */
     public boolean unlock_cc(byte cc) {
-        return locked_cc.removeElement(cc);
-    }
-
-    /**
-     * Tenta di generare un {@code cc} random non bloccato utilizzando this.random, ogni tentativo fallisce se il {@code cc} generato è
-     * già stato bloccato da una conversazione. Dopo MAX_CC_GEN_TRY tentativi falliti ritorna 0x00
-     * @return cc random utilizzabile per una nuova conversazione o 0x00 se MAX_CC_GEN_TRY tentativi sono falliti
-     */
-    private byte gen_random_cc() {
-        byte[] new_cc = new byte[1];
-        for (int i = 0; i < MAX_CC_GEN_TRY; i++) {
-            random.nextBytes(new_cc);
-
-            if (!locked_cc.contains(new_cc[0])) {
-                return new_cc[0];
-            }
-        }
-
-        Logger.log("impossibile generare un nuovo cc per il client: (" + client_name + ")", true);
-        return 0x00;
+        return cc_table.unlock(cc);
     }
 
     /**
      * Registra un oggetto in attesa di risposta a un {@code cc} specifico, può essere un istanza di Thread o di OnArrival. In
      * ogni caso potendoci essere solo un oggetto in attesa di risposta a un {@code cc}, ritorna false in caso trovi altri
      * oggetti in attesa al {@code cc} specificato.
-     * In caso notifier = null non fa nulla, altrimenti blocca il {@code cc}
+     * In caso notifier = null non fa nulla, altrimenti blocca il {@code cc}. Se la risposta era già arrivata viene
+     * consegnata subito a {@code notifier}
      * @param cc       {@code cc} a cui registrare action
      * @param notifier oggetto in attesa di risposta al {@code cc}
      * @return true se è riuscito a registrare action, false se ha trovato un altra azione legata a questo {@code cc}
      */
     public boolean register_action(byte cc, Object notifier) {
-        if (waiting_threads.containsKey(cc) || waiting_actions.containsKey(cc)) {
-            return false;
+        if (notifier == null) {
+            return true;
         }
 
-        if (notifier instanceof OnArrival action) {
-            waiting_actions.put(cc, action);
+        if (notifier instanceof Thread thread) {
+            notifier = new CcTable.Waiter(thread);
         }
-        else if (notifier instanceof Thread thread) {
-            waiting_threads.put(cc, thread);
-        }
-        else if (notifier != null) {
+        else if (!(notifier instanceof OnArrival)) {
             Logger.log("impossibile registrare un azione ad un cc che non sia istanza di OnArrival o Thread", true);
             return false;
         }
 
-        if (notifier != null && !locked_cc.contains(cc)) {
-            locked_cc.add(cc);
+        if (cc == 0x00) {
+            Logger.log("impossibile registrare un azione al cc = 0x00 per il client: (" + client_name + ")", true);
+            return false;
+        }
+
+        cc_table.lock(cc);
+
+        Object registered = cc_table.register(cc, notifier);
+        if (registered == null) {
+            return false;
+        }
+        if (registered instanceof MessageBuffer reply) { //la risposta era già arrivata
+            deliver_reply(cc, notifier, reply);
         }
 
         return true;
     }
 
+    /// Ritorna {@code true} una volta che il client si è disconnesso
+    boolean is_disconnected() {
+        return disconnected;
+    }
+
+    /// Ritorna l istante in millisecondi in cui è stato ricevuto l ultimo messaggio dal client
+    long get_last_activity() {
+        return last_activity;
+    }
+
+    /// Ritorna il nome con cui è stato richiesto l encoder del client, {@code null} se non è ancora impostato
+    String get_encoder_name() {
+        Encoder current = encoder;
+        return (current == null)? null : current.registered_name;
+    }
+
     /**
-     * Imposta l encoder da utilizzare per cifrare la connessione con questo client, una volta specificato viene fatto
-     * partire un Thread continuamente in attesa di ricevere messaggi dal client.
+     * Imposta l encoder da utilizzare per cifrare la connessione con questo client, una volta specificato il client
+     * inizia ad ascoltare i messaggi in arrivo chiamando {@code start_listening()}.
      * Non è possibile modificare encoder una volta specificato, ritorna true se riesce a impostare l encoder, false se
      * uno era già specificato
      * @param encoder encoder per cifrare la connessione
@@ -326,22 +677,35 @@ public abstract class Client {
             return false;
         }
 
+        if (outbound_capacity > 0) {
+            outbound = new OutboundQueue(this, outbound_capacity, outbound_policy);
+        }
         this.encoder = encoder;
 
         //inizia ad ascoltare per messaggi da parte del client
-        new Thread(this::listener).start();
+        last_activity = System.currentTimeMillis();
+        IdleReaper.watch(this);
+        ClientsInterface.client_connected(this);
+        start_listening();
 
         return true;
     }
 
     /**
-     * Continua ad attendere messaggi dal client, una volta ricevuto un messaggio e decifrato, a seconda del {@code cc}:
-     *
-     * <p>Se al {@code cc} è in attesa un Thread o legato un action vengono eseguiti quelli.
-     *
-     * <p>Se Al {@code cc} non è in attesa nessun Thread e non è legato nessun action, viene inoltrato al ClientsInterface per
-     * essere processato come messaggio normale, a meno che il {@code cc} non sia bloccato e in tal caso si aggiunge un errore
-     * ai log e il messaggio ignorato.
+     * Chiamato una volta impostato l encoder, di default fa partire un Thread che esegue {@code listener()} rimanendo
+     * in attesa di messaggi con {@code read_message()}, creato da {@code ClientsInterface.thread_builder()} può quindi
+     * essere un virtual thread.
+     * <p>Connector che ricevono i messaggi senza bloccare un thread per ogni client possono sovrascrivere questo
+     * metodo e passare ogni messaggio ricevuto a {@code handle_message()}, chiamando {@code on_disconnect()} una
+     * volta che la connessione viene chiusa
+     */
+    protected void start_listening() {
+        ClientsInterface.thread_builder("listener " + client_name).start(this::listener);
+    }
+
+    /**
+     * Continua ad attendere messaggi dal client con {@code read_message()} passandoli a {@code handle_message()},
+     * finché il client non viene chiuso
      */
     public void listener() {
         while(true) { //continua finche msg == null
@@ -350,53 +714,244 @@ public abstract class Client {
                 break;
             }
 
-            //decifra il messaggio e divide cc dal payload
-            if (encoder != null) {
-                msg = encoder.decode(msg);
-            }
-            byte cc = msg[0];
-            //viene passata nella lamba quindi deve essere final
-            msg = Arrays.copyOfRange(msg, 1, msg.length);
+            handle_message(msg);
+        }
 
-            if (DEBUGGING) { Logger.log("ricevuto (" + client_name + ")[" + cc + "] -> " + new String(msg)); }
+        on_disconnect();
+    }
 
-            if (locked_cc.contains(cc)) {
-                notify_reply_to(cc, msg);
-            }
-            else {
-                ClientsInterface.process_client_message(new WorkData(this, msg, cc));
+    /**
+     * Processa un messaggio cifrato ricevuto dal client, una volta decifrato, a seconda del {@code cc}:
+     *
+     * <p>Se al {@code cc} è in attesa un Thread o legato un action vengono eseguiti quelli.
+     *
+     * <p>Se Al {@code cc} non è in attesa nessun Thread e non è legato nessun action, viene inoltrato al ClientsInterface per
+     * essere processato come messaggio normale, a meno che il {@code cc} non sia bloccato e in tal caso si aggiunge un errore
+     * ai log e il messaggio ignorato.
+     * <p>Non blocca mai il thread chiamante, può quindi essere chiamato anche da thread condivisi fra più clients
+     * @param msg messaggio ricevuto dal client, ancora cifrato
+     */
+    protected void handle_message(byte[] msg) {
+        if (encoder != null && encoder.supports_buffers()) {
+            handle_message(MessageBuffer.wrap(msg));
+            return;
+        }
+
+        if (encoder != null) {
+            msg = encoder.decode(msg);
+        }
+
+        dispatch((msg == null)? null : MessageBuffer.wrap(msg));
+    }
+
+    /**
+     * Come {@code handle_message(byte[])} ma riceve il messaggio in un {@code MessageBuffer}, connector che leggono
+     * i messaggi direttamente in buffers ottenuti da {@code BufferPool} possono utilizzarlo per evitare di copiarli.
+     * Se l encoder supporta i {@code ByteBuffer} il messaggio viene decifrato direttamente in un altro buffer del pool.
+     * Il riferimento al buffer passa a questo metodo che lo rilascerà una volta finito di processare il messaggio
+     * @param msg messaggio ricevuto dal client, ancora cifrato
+     */
+    protected void handle_message(MessageBuffer msg) {
+        if (encoder == null) {
+            dispatch(msg);
+            return;
+        }
+
+        if (encoder.supports_buffers()) {
+            dispatch(decode_buffer(msg));
+            return;
+        }
+
+        byte[] decoded;
+        try {
+            decoded = encoder.decode(msg.to_array());
+        }
+        finally {
+            msg.release();
+        }
+
+        dispatch((decoded == null)? null : MessageBuffer.wrap(decoded));
+    }
+
+    /**
+     * Decifra un messaggio in un buffer del pool con i metodi {@code ByteBuffer} dell encoder
+     * @param msg messaggio cifrato, il riferimento passa a questo metodo
+     * @return buffer con il messaggio decifrato o {@code null} se l encoder ha fallito
+     */
+    private MessageBuffer decode_buffer(MessageBuffer msg) {
+        MessageBuffer decoded = BufferPool.acquire(encoder.max_decoded_length(msg.length()));
+        int len;
+        try {
+            len = encoder.decode(msg.as_source(), decoded.as_destination());
+        }
+        finally {
+            msg.release();
+        }
+
+        if (len < 0) {
+            decoded.release();
+            return null;
+        }
+
+        decoded.set_length(len);
+        return decoded;
+    }
+
+    /**
+     * Divide il {@code cc} dal payload di un messaggio decifrato senza copiarlo e lo inoltra a chi è in attesa della
+     * risposta o a ClientsInterface
+     * @param msg messaggio decifrato, o {@code null} se non è stato possibile decifrarlo
+     */
+    private void dispatch(MessageBuffer msg) {
+        if (msg == null || msg.length() == 0) {
+            Logger.log("ricevuto un messaggio non valido dal client: (" + client_name + "), viene ignorato", true);
+            if (msg != null) {
+                msg.release();
             }
+
+            return;
+        }
+
+        last_activity = System.currentTimeMillis();
+
+        byte cc = msg.get(0);
+        msg.skip(1);
+
+        if (DEBUGGING) { Logger.log("ricevuto (" + client_name + ")[" + cc + "] -> " + new String(msg.array(), msg.offset(), msg.length())); }
+
+        if (cc_table.is_locked(cc)) {
+            notify_reply_to(cc, msg);
+        }
+        else if (RateLimiter.admit(this, rate_bucket, cc)) {
+            ClientsInterface.process_client_message(new WorkData(this, msg, cc, null));
+        }
+        else { //oltre il limite di messaggi
+            msg.release();
+        }
+    }
+
+    /// Segna che il client è stato notificato del limite di messaggi superato, ritorna {@code true} se non lo era già
+    boolean mark_rate_notified() {
+        if (rate_notified) {
+            return false;
         }
 
+        rate_notified = true;
+        return true;
+    }
+
+    /// Chiamato da {@code RateLimiter} per ogni messaggio permesso, la prossima volta che supera il limite verrà notificato
+    void clear_rate_notified() {
+        if (rate_notified) {
+            rate_notified = false;
+        }
+    }
+
+    /**
+     * Chiamato quando il client supera il limite di messaggi di {@code RateLimiter} con la policy
+     * {@code RATE_DELAY}, smette di leggere messaggi dal client per {@code millis} millisecondi. Di default ferma il
+     * thread chiamante, che per i clients con un thread in ascolto è il listener, connector che leggono i messaggi
+     * da thread condivisi fra più clients devono sovrascriverlo
+     * @param millis millisecondi in cui non leggere messaggi dal client
+     */
+    protected void throttle(long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException _) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Chiamato una volta che la connessione con il client è stata chiusa e non si riceveranno altri messaggi, scarta
+     * i messaggi in uscita ancora in coda, restituisce l encoder a {@code ServerManager}, rimuove il client dagli
+     * utenti online, fa fallire tutte le richieste inviate con {@code send_async()} ancora in attesa di risposta e
+     * fa ritornare {@code null} ai threads bloccati in {@code wait_for_reply()}.
+     * <p>Una volta chiamato non devono più essere chiamati {@code handle_message()} da parte del connector, essendo
+     * l encoder riutilizzabile da altri clients
+     */
+    protected void on_disconnect() {
         Logger.log("il client: (" + client_name + ") è stato fermato");
+
+        if (outbound != null) {
+            outbound.close();
+        }
+
+        //una volta impostato disconnected nessun altro thread utilizzerà l encoder per inviare messaggi
+        boolean was_disconnected;
+        send_lock.lock();
+        try {
+            was_disconnected = disconnected;
+            disconnected = true;
+        }
+        finally {
+            send_lock.unlock();
+        }
+
+        if (!was_disconnected) {
+            ServerManager.recycle_encoder(encoder);
+
+            if (is_logged()) {
+                ClientsInterface.client_offline(this);
+            }
+            ClientsInterface.client_disconnected(this);
+            TopicRegistry.unsubscribe_all(this);
+        }
+
+        RuntimeException cause = new RuntimeException("il client: (" + client_name + ") si è disconnesso");
+        cc_table.for_each_waiting(notifier -> {
+            if (notifier instanceof ReplyFuture reply) {
+                reply.completeExceptionally(cause);
+            }
+            else if (notifier instanceof CcTable.Waiter waiter) { //wait_for_reply() ritornerà null
+                waiter.complete(null);
+            }
+        });
     }
 
     /**
      * Ha ricevuto una risposta a un {@code cc} bloccato, cerca se ha un oggetto in attesa di questa risposta e nel caso
-     * lo avvisa. Nel caso in cui nessun oggetto sia in attesa di una risposta viene aggiunto un errore ai Log e il
-     * messaggio ignorato
+     * lo avvisa. Nel caso in cui nessun oggetto sia in attesa la risposta viene mantenuta e consegnata al primo che si
+     * registrerà al {@code cc}, se un altra risposta era già in attesa viene aggiunto un errore ai Log e il messaggio
+     * ignorato
      * @param cc  {@code cc} da cui proviene la risposta
-     * @param msg risposta del client
+     * @param msg risposta del client, il riferimento passa a questo metodo
      */
-    private void notify_reply_to(byte cc, byte[] msg) {
-        if (waiting_threads.containsKey(cc)) {
-            Thread thread = waiting_threads.get(cc);
-            waiting_threads.remove(cc);
+    private void notify_reply_to(byte cc, MessageBuffer msg) {
+        Object notifier = cc_table.take_notifier(cc, msg);
 
-            thread_bridge.put(cc, msg);
-            synchronized (thread) {
-                thread.notify();
-            }
+        if (notifier == null) {
+            Logger.log("ricevuta una risposta a (" + client_name + ")[" + cc + "] ma nessun oggetto è in attesa", true);
+            msg.release();
+        }
+        else if (notifier != msg) {
+            deliver_reply(cc, notifier, msg);
         }
-        else if (waiting_actions.containsKey(cc)) {
-            OnArrival action = waiting_actions.get(cc);
-            waiting_actions.remove(cc);
+    }
 
-            ClientsInterface.process_client_message(new WorkData(this, msg, cc, action));
+    /**
+     * Consegna una risposta all'oggetto che la stava attendendo
+     * @param cc       {@code cc} della risposta
+     * @param notifier {@code OnArrival} o {@code Waiter} in attesa
+     * @param msg      risposta del client, il riferimento passa a questo metodo
+     */
+    private void deliver_reply(byte cc, Object notifier, MessageBuffer msg) {
+        if (notifier instanceof CcTable.Waiter waiter) {
+            waiter.complete(msg.to_array());
+            msg.release();
         }
         else {
-            //nessuna delle due mappe conteneva oggetti legati al cc
-            Logger.log("ricevuta una risposta a (" + client_name + ")[" + cc + "] ma nessun oggetto è in attesa", true);
+            ClientsInterface.process_client_message(new WorkData(this, msg, cc, (OnArrival) notifier));
+        }
+    }
+
+    /// Future ritornata da {@code send_async()}, registrata come azione al {@code cc} della richiesta
+    private static final class ReplyFuture extends CompletableFuture<byte[]> implements OnArrival {
+        @Override
+        public void on_arrival(Client client, byte conv_code, byte[] msg) {
+            client.unlock_cc(conv_code);
+            complete(msg);
         }
     }
 }
@@ -5,9 +5,18 @@ import files.Logger;
 import gui.ClientList_panel;
 
 import javax.crypto.Cipher;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 /**
  * Gestisce tutte le connessioni con i client e attivazione/disattivazione dei {@code Connector}.
@@ -18,26 +27,153 @@ import java.util.concurrent.ArrayBlockingQueue;
  * tramite i vari metodi.
  */
 public abstract class ClientsInterface {
-    /// Mappa fra il nome del {@code Connector} a cui sono legati e l'istanza di {@code Client} dei clients online
-    private static final Map<String, Vector<Client>> online_clients = new LinkedHashMap<>();
+    /**
+     * Mappa fra il nome di ogni utente online e il client con cui è entrato, un utente viene aggiunto con
+     * {@code claim_user()} che fallisce se è già online e rimosso alla disconnessione del suo client
+     */
+    private static final ConcurrentHashMap<String, Client> online_clients = new ConcurrentHashMap<>();
+
+    /// Tutti i clients che hanno completato l handshake e non si sono ancora disconnessi, anche senza login
+    private static final Set<Client> connected_clients = ConcurrentHashMap.newKeySet();
 
     /// Mappa fra il nome di ogni clients registrato nel server, e l hash della sua password
     private static final Map<String, byte[]> clients_credentials = new LinkedHashMap<>();
 
+    /// Numero massimo di clients a cui invia il messaggio ogni operazione in cui viene diviso un broadcast
+    private static final int BROADCAST_BATCH = 128;
+
     /// Array di threads che rispondono ai messaggi ricevuti dai clients
-    private static Thread[] threads_workers = new Thread[0];
+    private static WorkerThread[] threads_workers = new WorkerThread[0];
 
     /**
-     * Array di Boolean che rispecchiano se il worker thread allo stesso index in {@code threads_workers} è attivo, ed
-     * in tal caso vale {@code true}, o è in attesa di nuovo lavoro e vale {@code false}
-      */
-    private static boolean[] workers_status = new boolean[0];
+     * Worker threads in attesa di nuovi messaggi da processare, ogni worker si aggiunge prima di fermarsi e chi
+     * aggiunge un messaggio al backlog ne rimuove uno per risvegliarlo. Grazie a {@code WorkerThread.queued} ogni
+     * worker compare al massimo una volta
+     */
+    private static final ConcurrentLinkedQueue<WorkerThread> idle_workers = new ConcurrentLinkedQueue<>();
+
+    /// Numero di worker threads fermi in {@code wait_for_work()}, che quindi non stanno processando nessun messaggio
+    private static final AtomicInteger parked_workers = new AtomicInteger(0);
 
     /**
-     * Queue con ordinamento FIFO in cui vengono inseriti tutti i dati dei messaggi da clients che ancora non sono stati
-     * processati. La dimensione della queue è fissata e modificabile dall'utente a piacimento nelle impostazioni
+     * Backlog in cui vengono inseriti tutti i dati dei messaggi da clients che ancora non sono stati processati,
+     * diviso in lane FIFO con priorità diverse scelte da {@code WorkerThread.lane_of()}. La dimensione di ogni lane è
+     * fissata e modificabile dall'utente a piacimento nelle impostazioni
      */
-    private static ArrayBlockingQueue<WorkData> workers_backlog = new ArrayBlockingQueue<>(1);
+    private static WorkBacklog workers_backlog = new WorkBacklog(1, new int[] {8, 4, 2, 1});
+
+    /// Peso di ogni lane del backlog, in ordine da {@code WorkerThread.LANE_REPLY} a {@code WorkerThread.LANE_BULK}
+    private static int[] lane_weights = {8, 4, 2, 1};
+
+    /**
+     * Se {@code true} ogni client ha una sua {@code Mailbox} e i suoi messaggi vengono processati da un solo worker
+     * alla volta nell'ordine in cui sono stati ricevuti, mentre messaggi di clients diversi vengono processati in
+     * parallelo. Se {@code false} tutti i messaggi passano direttamente per il backlog e due messaggi dello stesso
+     * client possono essere processati in contemporanea e in ordine diverso
+     */
+    private static boolean mailbox_dispatch = false;
+
+    /// I messaggi vengono presi dal backlog nell'ordine di arrivo
+    public static final int BACKLOG_FIFO = 0;
+
+    /**
+     * I messaggi di ogni client passano dalla sua mailbox e i clients vengono serviti a turno con un deficit round
+     * robin, così un client che invia molti messaggi non rallenta quelli che ne inviano pochi
+     */
+    public static final int BACKLOG_FAIR = 1;
+
+    /// Come i workers scelgono fra i messaggi dei diversi clients, {@code BACKLOG_FIFO} o {@code BACKLOG_FAIR}
+    private static int backlog_policy = BACKLOG_FIFO;
+
+    /// Bytes di credito aggiunti a ogni turno di un client con la policy {@code BACKLOG_FAIR}
+    private static volatile int fair_quantum = 1024;
+
+    /// Costo in bytes di ogni messaggio nel deficit round robin oltre alla sua lunghezza
+    private static final int FAIR_MESSAGE_COST = 64;
+
+    /// Millisecondi di attesa nel backlog tollerati dal controlled delay, {@code 0} se non è attivo
+    private static volatile long codel_target = 0;
+
+    /// Durata in millisecondi degli intervalli in cui il controlled delay misura l attesa minima nel backlog
+    private static volatile long codel_interval = 1000;
+
+    /// Stato del controlled delay di ogni lane del backlog
+    private static final ControlledDelay[] codel = new ControlledDelay[WorkerThread.LANES];
+    static {
+        Arrays.setAll(codel, _ -> new ControlledDelay());
+    }
+
+    /// Messaggi scartati dal controlled delay
+    private static final AtomicLong codel_dropped = new AtomicLong(0);
+
+    /// I messaggi dei clients vengono processati normalmente
+    private static final int DRAIN_OFF = 0;
+
+    /// Durante lo spegnimento i nuovi messaggi dei clients vengono scartati mentre i workers finiscono il backlog
+    private static final int DRAIN_REFUSE = 1;
+
+    /// Scaduto il tempo concesso allo spegnimento ogni messaggio ancora da processare viene scartato
+    private static final int DRAIN_DISCARD = 2;
+
+    /// Fase dello spegnimento in corso, {@code DRAIN_OFF} con il server acceso normalmente
+    private static volatile int drain_state = DRAIN_OFF;
+
+    /// Messaggi scartati durante l ultimo spegnimento del server
+    private static final AtomicLong drain_dropped = new AtomicLong(0);
+
+    /// Ogni quanti millisecondi {@code drain()} controlla se i workers hanno finito il backlog
+    private static final long DRAIN_POLL = 10;
+
+    /// Numero massimo di threads che inviano {@code EOC} e chiudono i clients in {@code disconnect_clients()}
+    private static final int DISCONNECT_THREADS = 16;
+
+    /// Millisecondi attesi oltre la scadenza di {@code disconnect_clients()} prima di chiudere i clients rimanenti senza {@code EOC}
+    private static final long DISCONNECT_GRACE = 1000;
+
+    /**
+     * Se {@code true} i thread in ascolto dei clients e quelli che eseguono l handshake sono virtual threads, che
+     * permettono a connector con {@code read_message()} bloccante di gestire decine di migliaia di clients senza un
+     * thread di sistema per ognuno. Se {@code false} vengono utilizzati normali platform threads
+     */
+    private static boolean virtual_threads = false;
+
+    /**
+     * Prefisso del primo messaggio di un client che utilizza l handshake compatto di {@code compact_handshake()},
+     * inizia con {@code 0x00} per non poter essere confuso con il nome di un encoder
+     */
+    private static final byte[] COMPACT_HANDSHAKE = {0x00, 'h', 's', '1'};
+
+    /// Prefisso del primo messaggio di un client che riprende una sessione con {@code resume_session()}
+    private static final byte[] RESUME_HANDSHAKE = {0x00, 'r', 's', '1'};
+
+    /// Numero minimo di bytes random inviati dal client per riprendere una sessione
+    private static final int MIN_RESUME_RANDOM = 16;
+
+    //      CLIENT THREADS
+
+    /**
+     * Imposta il tipo di thread da creare per ascoltare i clients e per eseguire gli handshake, la modifica ha effetto
+     * solo per i clients che si collegano da questo momento
+     * @param use_virtual {@code true} per utilizzare virtual threads, {@code false} per platform threads
+     */
+    public static void set_virtual_threads(boolean use_virtual) {
+        virtual_threads = use_virtual;
+    }
+
+    /// Ritorna {@code true} se i thread per ascoltare i clients e per gli handshake sono virtual threads
+    public static boolean use_virtual_threads() {
+        return virtual_threads;
+    }
+
+    /**
+     * Ritorna un builder per creare i thread che si bloccano in attesa di messaggi dai clients, in base alle
+     * impostazioni crea virtual threads o platform threads
+     * @param name nome da assegnare ai thread creati
+     * @return builder per i nuovi thread
+     */
+    public static Thread.Builder thread_builder(String name) {
+        return virtual_threads? Thread.ofVirtual().name(name) : Thread.ofPlatform().name(name);
+    }
 
     //      WORKERS BACKLOG CAPACITY
 
@@ -60,13 +196,203 @@ public abstract class ClientsInterface {
             return;
         }
 
-        workers_backlog = new ArrayBlockingQueue<>(size);
-        workers_status = new boolean[size]; //viene inizializzato con tutti false, tutti i thread non sono attivi
+        workers_backlog = new WorkBacklog(size, lane_weights);
     }
 
-    /// Ritorna la capacità massima del backlog permesso per i worker threads
+    /// Ritorna la capacità massima del backlog permesso per i worker threads, per ogni lane
     public static int get_workers_backlog_capacity() {
-        return workers_backlog.remainingCapacity() + workers_backlog.size();
+        return workers_backlog.capacity();
+    }
+
+    /**
+     * Imposta i pesi con cui i worker threads prendono i messaggi dalle lane del backlog, una lane con peso doppio di
+     * un altra viene controllata per prima il doppio delle volte. Se la lane controllata per prima è vuota viene
+     * preso il messaggio dalla prima lane non vuota in ordine di priorità.
+     * <p>Questo paramento può essere modificato solo a server spento
+     * @param weights peso di ogni lane da {@code WorkerThread.LANE_REPLY} a {@code WorkerThread.LANE_BULK}, {@code > 0}
+     */
+    public static void set_lane_weights(int[] weights) {
+        if (ServerManager.is_online()) {
+            Logger.log("impossibile modificare i pesi delle lane del backlog con il server attivo", true);
+            return;
+        }
+
+        if (weights.length != WorkerThread.LANES || Arrays.stream(weights).anyMatch(weight -> weight <= 0)) {
+            Logger.log("impossibile impostare i pesi delle lane del backlog a: " + Arrays.toString(weights) + ", sono richiesti " + WorkerThread.LANES + " interi > 0", true);
+            return;
+        }
+
+        lane_weights = weights.clone();
+        workers_backlog = new WorkBacklog(workers_backlog.capacity(), lane_weights);
+    }
+
+    /// Ritorna i pesi delle lane del backlog
+    public static int[] get_lane_weights() {
+        return lane_weights.clone();
+    }
+
+    //      MAILBOX DISPATCH
+
+    /**
+     * Imposta se processare i messaggi di ogni client in ordine attraverso la sua mailbox, con la mailbox dispatch
+     * attiva le azioni registrate ai prefissi non hanno bisogno di lock per i dati legati a un singolo client.
+     * <p>Questo paramento può essere modificato solo a server spento
+     * @param use_mailbox {@code true} per processare i messaggi di ogni client in ordine
+     */
+    public static void set_mailbox_dispatch(boolean use_mailbox) {
+        if (ServerManager.is_online()) {
+            Logger.log("impossibile modificare la modalità di dispatch dei messaggi con il server attivo", true);
+            return;
+        }
+
+        mailbox_dispatch = use_mailbox;
+    }
+
+    /// Ritorna {@code true} se i messaggi di ogni client vengono processati in ordine attraverso la sua mailbox
+    public static boolean use_mailbox_dispatch() {
+        return mailbox_dispatch;
+    }
+
+    /// Ritorna {@code true} se i messaggi dei clients passano dalle loro mailbox, per la mailbox dispatch o la policy {@code BACKLOG_FAIR}
+    private static boolean use_mailbox() {
+        return mailbox_dispatch || backlog_policy == BACKLOG_FAIR;
+    }
+
+    //      FAIR QUEUEING
+
+    /**
+     * Imposta come i workers scelgono fra i messaggi dei diversi clients.
+     * <p>Con {@code BACKLOG_FAIR} i messaggi di ogni client passano dalla sua mailbox, come con la mailbox dispatch, e
+     * ogni client ha al massimo un messaggio nel backlog. Quando un worker prende il messaggio di un client gli
+     * aggiunge {@code fair_quantum} bytes di credito, e processa di seguito i suoi messaggi finché il credito copre la
+     * loro lunghezza più {@code FAIR_MESSAGE_COST}, poi il client torna in fondo al backlog. Un client con un
+     * messaggio più lungo del suo credito ritorna in fondo al backlog accumulando credito finché non lo copre.
+     * <p>Questo paramento può essere modificato solo a server spento
+     * @param policy {@code BACKLOG_FIFO} o {@code BACKLOG_FAIR}
+     */
+    public static void set_backlog_policy(int policy) {
+        if (ServerManager.is_online()) {
+            Logger.log("impossibile modificare la policy del backlog con il server attivo", true);
+            return;
+        }
+
+        if (policy != BACKLOG_FIFO && policy != BACKLOG_FAIR) {
+            Logger.log("impossibile impostare la policy del backlog: " + policy, true);
+            return;
+        }
+
+        backlog_policy = policy;
+    }
+
+    /// Ritorna come i workers scelgono fra i messaggi dei diversi clients
+    public static int get_backlog_policy() {
+        return backlog_policy;
+    }
+
+    /**
+     * Imposta i bytes di credito aggiunti a ogni turno di un client con la policy {@code BACKLOG_FAIR}, valori più
+     * alti permettono a un client di processare più messaggi per turno riducendo i passaggi dal backlog
+     * @param quantum bytes di credito, almeno {@code FAIR_MESSAGE_COST}
+     */
+    public static void set_fair_quantum(int quantum) {
+        fair_quantum = Math.max(FAIR_MESSAGE_COST, quantum);
+    }
+
+    /// Ritorna i bytes di credito aggiunti a ogni turno di un client con la policy {@code BACKLOG_FAIR}
+    public static int get_fair_quantum() {
+        return fair_quantum;
+    }
+
+    /// Ritorna il costo di un messaggio nel deficit round robin
+    private static int fair_cost(WorkData data) {
+        return FAIR_MESSAGE_COST + data.message().length();
+    }
+
+    /**
+     * Se il client ha abbastanza credito per il messaggio lo scala e ritorna {@code true}
+     * @param data prossimo messaggio del client
+     */
+    private static boolean charge(WorkData data) {
+        Mailbox mailbox = data.get_client().get_mailbox();
+
+        int cost = fair_cost(data);
+        if (cost > mailbox.deficit) {
+            return false;
+        }
+
+        mailbox.deficit -= cost;
+        return true;
+    }
+
+    //      CONTROLLED DELAY
+
+    /**
+     * Attiva il controlled delay (CoDel) sul backlog: quando in una lane per un intero intervallo di {@code interval}
+     * millisecondi tutti i messaggi hanno atteso più di {@code target} millisecondi, fino alla fine dell intervallo
+     * successivo i workers scartano i messaggi presi da quella lane che hanno atteso più di {@code 2 * target}
+     * millisecondi. L attesa viene misurata dalla ricezione del messaggio, compreso il tempo nella mailbox del client.
+     * <p>Cosa fare dei messaggi scartati viene scelto per ogni prefisso con {@code WorkerThread.set_prefix_overload()},
+     * le risposte attese e le operazioni del server non vengono mai scartate
+     * @param target   millisecondi di attesa tollerati, {@code 0} per disattivare il controlled delay
+     * @param interval durata in millisecondi degli intervalli in cui viene misurata l attesa minima, almeno {@code 1}
+     */
+    public static void set_codel(long target, long interval) {
+        codel_interval = Math.max(1, interval);
+        codel_target = Math.max(0, target);
+    }
+
+    /// Ritorna i millisecondi di attesa nel backlog tollerati dal controlled delay, {@code 0} se non è attivo
+    public static long get_codel_target() {
+        return codel_target;
+    }
+
+    /// Ritorna la durata in millisecondi degli intervalli in cui il controlled delay misura l attesa minima
+    public static long get_codel_interval() {
+        return codel_interval;
+    }
+
+    /// Ritorna il numero di messaggi scartati dal controlled delay
+    public static long get_codel_dropped() {
+        return codel_dropped.get();
+    }
+
+    /**
+     * Controlla con il controlled delay se un messaggio preso dal backlog ha atteso troppo, in quel caso lo scarta
+     * seguendo l azione assegnata al suo prefisso. Il posto nella mailbox del client non viene liberato
+     * @param data messaggio appena preso dal backlog
+     * @return {@code true} se il messaggio è stato scartato
+     */
+    private static boolean shed(WorkData data) {
+        long target = codel_target;
+        if (target <= 0) {
+            return false;
+        }
+
+        long now = System.nanoTime();
+        long sojourn = now - data.get_enqueued_at();
+        ControlledDelay lane = codel[data.get_lane()];
+        if (!lane.should_drop(sojourn, now, TimeUnit.MILLISECONDS.toNanos(target), TimeUnit.MILLISECONDS.toNanos(codel_interval))) {
+            return false;
+        }
+
+        int overload = WorkerThread.overload_of(data);
+        if (overload == WorkerThread.OVERLOAD_KEEP) {
+            return false;
+        }
+
+        if (overload == WorkerThread.OVERLOAD_FAIL) {
+            byte cc = data.get_cc();
+            if (cc != 0x00) {
+                data.get_client().send("fail:server occupato".getBytes(), cc);
+            }
+            else {
+                data.get_client().send("busy".getBytes());
+            }
+        }
+
+        data.release();
+        codel_dropped.incrementAndGet();
+        return true;
     }
 
     //      WORKER THREADS
@@ -88,7 +414,7 @@ public abstract class ClientsInterface {
         }
 
         //a server spento threads_workers è vuoto, viene popolato all'accensione
-        threads_workers = new Thread[num];
+        threads_workers = new WorkerThread[num];
     }
 
     /// Ritorna il numero di worker threads creati per rispondere ai messaggi dei clients
@@ -101,6 +427,11 @@ public abstract class ClientsInterface {
         return workers_backlog.size();
     }
 
+    /// Ritorna il numero di messaggi in attesa in una lane del backlog
+    public static int get_workers_backlog_size(int lane) {
+        return workers_backlog.size(lane);
+    }
+
     /**
      * All'accensione del server l array {@code threads_workers} sarà vuoto o conterrà threads vecchi e viene popolato
      * con una nuova generazione di threads.
@@ -119,6 +450,7 @@ public abstract class ClientsInterface {
             return false;
         }
 
+        drain_state = DRAIN_OFF;
         for (int i = 0; i < threads_workers.length; i++) {
             threads_workers[i] = new WorkerThread(i);
         }
@@ -126,7 +458,7 @@ public abstract class ClientsInterface {
     }
 
     /**
-     * Libera tutti i threads worker notificando tutti quelli che erano in attesa di nuovi messaggi da clients.
+     * Libera tutti i threads worker risvegliando tutti quelli che erano in attesa di nuovi messaggi da clients.
      * Utilizzabile solo una volta spento il server, altrimenti non avrà nessun effetto
      */
     public static void free_workers() {
@@ -135,167 +467,692 @@ public abstract class ClientsInterface {
             return;
         }
 
-        //notifica tutti i worker threads in attesa facendoli terminare, tutti gli altri si spegneranno una volta finito
-        for (int i = 0; i < threads_workers.length; i++) {
-            if (!workers_status[i]) {
-                Thread worker = threads_workers[i];
+        //risveglia tutti i worker threads facendoli terminare, quelli al lavoro si spegneranno una volta finito
+        for (WorkerThread worker : threads_workers) {
+            LockSupport.unpark(worker);
+        }
+        idle_workers.clear();
+        for (WorkerThread worker : threads_workers) {
+            if (worker != null) {
+                worker.queued.set(false);
+            }
+        }
 
-                synchronized (worker) {
-                    worker.notify();
+        Logger.log("liberati tutti i thread workers del server");
+    }
+
+    /**
+     * Chiamato da un worker thread che non ha trovato messaggi nel backlog, lo ferma finché non viene risvegliato
+     * dall'arrivo di un nuovo messaggio o dallo spegnimento del server.
+     * <p>Il worker si aggiunge a {@code idle_workers} prima di controllare un ultima volta il backlog, così un
+     * messaggio aggiunto in contemporanea viene visto dal worker o chi lo aggiunge trova il worker da risvegliare.
+     * Se il worker è ancora in {@code idle_workers}, ad esempio dopo un risveglio spurio, non viene aggiunto di nuovo.
+     * Il ritorno da questo metodo non garantisce che ci siano messaggi nel backlog
+     * @param worker worker che si mette in attesa, deve essere il thread chiamante
+     */
+    protected static void wait_for_work(WorkerThread worker) {
+        if (worker.queued.compareAndSet(false, true)) {
+            idle_workers.add(worker);
+        }
+
+        if (!workers_backlog.is_empty() || !ServerManager.is_online()) {
+            /*
+             * se non riesce a rimuoversi è perché un altro thread lo ha già rimosso per risvegliarlo, e il permesso
+             * lasciato da unpark() farà ritornare subito la prossima chiamata a park(), che non crea problemi
+             */
+            if (idle_workers.remove(worker)) {
+                worker.queued.set(false);
+            }
+            return;
+        }
+
+        parked_workers.incrementAndGet();
+        try {
+            LockSupport.park(worker);
+        }
+        finally {
+            parked_workers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Ritorna l'elemento di testa del backlog dei dati per i threads workers, o {@code null} nel caso il backlog sia
+     * vuoto.
+     * <p>Non è possibile per le mod richiedere accesso ai messaggi ricevuti dal server così liberamente, poiché
+     * causerebbe il loro mancato processa dai {@code workers threads}
+     * @return head element del backlog
+     */
+    protected static WorkData next_workers_data_backlog() {
+        WorkData data;
+        while ((data = workers_backlog.poll()) != null) {
+            if (shed(data)) {
+                schedule(next_in_mailbox(data));
+                continue;
+            }
+
+            if (backlog_policy != BACKLOG_FAIR || data.is_task()) {
+                return data;
+            }
+
+            //inizia un nuovo turno del client, se il credito non basta torna in fondo al backlog
+            Mailbox mailbox = data.get_client().get_mailbox();
+            mailbox.deficit = (int) Math.min(Integer.MAX_VALUE, (long) mailbox.deficit + fair_quantum);
+
+            if (charge(data)) {
+                return data;
+            }
+            schedule(data);
+        }
+
+        return null;
+    }
+
+    /**
+     * Cerca di processare un messaggio ricevuto da un client aggiungendolo al backlog dei worker threads e, in caso ce
+     * ne sia uno in attesa, risvegliandolo. Se tutti i workers sono già attivi verrà solo aggiunto al backlog in
+     * attesa che si liberino per essere processato.
+     * <p>Con la mailbox dispatch attiva il messaggio viene prima aggiunto alla mailbox del client, e inserito nel
+     * backlog solo se non ci sono altri messaggi dello stesso client in attesa
+     * <p>Non utilizza lock e non scorre la lista dei workers, il worker da risvegliare viene preso in {@code O(1)} da
+     * {@code idle_workers}
+     * <p>Il messaggio viene inserito nella lane del backlog scelta da {@code WorkerThread.lane_of()}, in caso la lane
+     * sia piena viene stampato un errore nei log e il messaggio verrà perso
+     * @param data nuovo messaggio da processare
+     */
+    public static void process_client_message(WorkData data) {
+        if (drain_state != DRAIN_OFF) { //il server si sta spegnendo e non accetta nuovi messaggi
+            data.release();
+            drain_dropped.incrementAndGet();
+
+            return;
+        }
+
+        if (use_mailbox()) {
+            data = data.get_client().get_mailbox().add(data);
+        }
+
+        schedule(data);
+    }
+
+    /**
+     * Chiamato da un worker thread una volta finito di processare un messaggio, se la mailbox dispatch è attiva
+     * inserisce nel backlog il prossimo messaggio dello stesso client. Con la policy {@code BACKLOG_FAIR}, se il
+     * client ha ancora credito nel turno, il messaggio viene invece ritornato per essere processato subito dallo
+     * stesso worker
+     * @param data messaggio appena processato
+     * @return il prossimo messaggio da processare senza passare dal backlog, o {@code null}
+     */
+    protected static WorkData work_done(WorkData data) {
+        WorkData next = next_in_mailbox(data);
+        while (next != null && backlog_policy == BACKLOG_FAIR && drain_state != DRAIN_DISCARD && charge(next)) {
+            //il messaggio non passa dal backlog, il controlled delay lo controlla comunque nella sua lane
+            next.set_lane(WorkerThread.lane_of(next));
+            if (!shed(next)) {
+                return next;
+            }
+
+            next = next_in_mailbox(next);
+        }
+
+        schedule(next);
+        return null;
+    }
+
+    /**
+     * Aggiunge un messaggio al backlog e risveglia un worker in attesa. Se il backlog è pieno il messaggio viene perso
+     * e con la mailbox dispatch attiva si prova a inserire il prossimo messaggio dello stesso client, altrimenti la
+     * sua mailbox rimarrebbe bloccata. Se durante lo spegnimento è scaduto il tempo di {@code drain()} i messaggi
+     * vengono scartati e contati in {@code drain_dropped}
+     * @param data messaggio da aggiungere, se {@code null} non fa nulla
+     */
+    private static void schedule(WorkData data) {
+        while (data != null) {
+            if (drain_state == DRAIN_DISCARD) {
+                data.release();
+                drain_dropped.incrementAndGet();
+
+                data = next_in_mailbox(data);
+                continue;
+            }
+
+            if (offer(data)) {
+                return;
+            }
+
+            data.release();
+            data = next_in_mailbox(data);
+        }
+    }
+
+    /**
+     * Aggiunge un messaggio al backlog nella sua lane e risveglia un worker in attesa
+     * @param data messaggio da aggiungere
+     * @return {@code true} se è stato aggiunto, {@code false} se la lane è piena
+     */
+    private static boolean offer(WorkData data) {
+        int lane = WorkerThread.lane_of(data);
+        data.set_lane(lane);
+        if (workers_backlog.offer(data, lane)) {
+            WorkerThread worker = idle_workers.poll();
+            if (worker != null) {
+                //prima di risvegliarlo, così se si ferma di nuovo può riaggiungersi
+                worker.queued.set(false);
+                LockSupport.unpark(worker);
+            }
+
+            //tutti i workers stanno già lavorando, il messaggio verrà processato automaticamente quando uno si libera
+            return true;
+        }
+
+        Logger.log("backlog dei worker threads pieno nella lane: " + lane + ", dimensione: " + workers_backlog.size(lane), true);
+        return false;
+    }
+
+    /**
+     * Se la mailbox dispatch o la policy {@code BACKLOG_FAIR} sono attive libera il posto del messaggio specificato
+     * nella mailbox del suo client
+     * @param data messaggio processato o perso
+     * @return il prossimo messaggio dello stesso client da inserire nel backlog, o {@code null} se non ce ne sono, la
+     * mailbox dispatch non è attiva o {@code data} è un'operazione del server
+     */
+    private static WorkData next_in_mailbox(WorkData data) {
+        if (!use_mailbox() || data.is_task()) {
+            return null;
+        }
+
+        return data.get_client().get_mailbox().done();
+    }
+
+    //      GRACEFUL DRAIN
+
+    /**
+     * Chiamato allo spegnimento del server dopo aver fermato i connectors, smette di accettare messaggi dai clients e
+     * attende che i workers processino quelli già nel backlog, così le risposte vengono inviate prima di scollegare
+     * i clients. Scaduto {@code timeout} i messaggi ancora in attesa vengono scartati.
+     * <p>I messaggi ricevuti durante l attesa e quelli scartati alla scadenza vengono contati e ritornati
+     * @param timeout millisecondi massimi di attesa, con {@code 0} il backlog viene scartato subito
+     * @return numero di messaggi scartati
+     */
+    public static long drain(long timeout) {
+        drain_dropped.set(0);
+        drain_state = DRAIN_REFUSE;
+
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!workers_idle() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(DRAIN_POLL);
+            }
+            catch (InterruptedException _) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        drain_state = DRAIN_DISCARD;
+        discard_backlog();
+
+        return drain_dropped.get();
+    }
+
+    /**
+     * Ritorna {@code true} se il backlog è vuoto e tutti i workers sono fermi in attesa di nuovi messaggi. Un worker
+     * smette di essere contato fra quelli fermi appena risvegliato, prima di prendere un messaggio dal backlog, così
+     * non c'è un momento in cui il backlog è vuoto e il worker che ha preso l'ultimo messaggio risulta ancora fermo
+     */
+    private static boolean workers_idle() {
+        return workers_backlog.is_empty() && parked_workers.get() >= threads_workers.length;
+    }
+
+    /// Rimuove dal backlog tutti i messaggi ancora da processare contandoli come scartati
+    private static void discard_backlog() {
+        WorkData data;
+        while ((data = workers_backlog.poll()) != null) {
+            data.release();
+            drain_dropped.incrementAndGet();
+
+            schedule(next_in_mailbox(data));
+        }
+    }
+
+    /// Ritorna il numero di messaggi scartati durante l ultimo spegnimento del server
+    public static long get_drain_dropped() {
+        return drain_dropped.get();
+    }
+
+    //      METODI IO PER LE MAPPE DEI CLIENTS
+
+    /**
+     * Ritorna la lista di tutti i nomi dei Clients registrati in questo server
+     * @return Array con tutti i clients registrati
+     */
+    public static String[] get_clients_list() {
+        return clients_credentials.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Ritorna la lista di tutti i nomi degli utenti online e che hanno già eseguito il login o registrazione nel server
+     * @return lista di nomi degli utenti online
+     */
+    public static String[] get_online_clients_list() {
+        return online_clients.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Ritorna il client con cui è online un utente
+     * @param uname nome dell utente
+     * @return il client dell utente o {@code null} se non è online
+     */
+    public static Client get_online_client(String uname) {
+        return online_clients.get(uname);
+    }
+
+    /**
+     * Test se un client con il nome utente specificato è online
+     * @param uname nome del client
+     * @return {@code true} se l'utente è online, {@code false} se non è online
+     */
+    public static boolean is_online(String uname) {
+        return online_clients.containsKey(uname);
+    }
+
+    /**
+     * Test se un client con il nome specificato è già stato creato o meno
+     * @param uname nome utente
+     * @return {@code true} se esiste un utente, {@code false} se non esiste un utente con quel nome
+     */
+    public static boolean exist_user(String uname) {
+        return clients_credentials.containsKey(uname);
+    }
+
+    //      CLIENTS CONNECTION START / END
+
+    /**
+     * Esegue {@code new_client()} attraverso {@code HandshakeStage}, permettendo al connector di continuare ad
+     * accettare connessioni mentre l handshake con il client è in corso, con un limite agli handshake contemporanei e
+     * alla loro durata
+     * @param connector_name nome del connector da cui proviene il client
+     * @param client         client appena collegato da un connector
+     * @param session_key    chiavi di sessione arrivate dall handshake
+     */
+    public static void start_new_client(String connector_name, Client client, Cipher[] session_key) {
+        HandshakeStage.submit(client, () -> new_client(connector_name, client, session_key));
+    }
+
+    /**
+     * Riceve un {@code Client} e {@code session key}, arrivati dall handshake con il connector, e dovrà eseguire
+     * l encoder agreement, inizializzare l encoder scelto, inizializzare il client con l encoder, impostarlo in
+     * ascolto e attendere esegua il login. Una volta eseguito il login sarà aggiunto ai client online.
+     * <p>Se il primo messaggio del client inizia con {@code COMPACT_HANDSHAKE} encoder agreement, inizializzazione e
+     * test dell encoder vengono sostituiti da {@code compact_handshake()}, se inizia con {@code RESUME_HANDSHAKE} il
+     * client riprende una sessione precedente con {@code resume_session()}, altrimenti viene eseguito il protocollo
+     * completo per i client che non li supportano.
+     * @param connector_name nome del connector da cui proviene il client
+     * @param client         client appena collegato da un connector
+     * @param session_key    chiavi di sessione arrivate dall handshake
+     */
+    public static boolean new_client(String connector_name, Client client, Cipher[] session_key) {
+        byte[] first_message = read_first_message(client, session_key);
+        if (first_message == null) {
+            client.close();
+            return false;
+        }
+
+        Encoder encoder = null;
+        ResumptionTickets.Ticket ticket = null;
+
+        if (starts_with(first_message, RESUME_HANDSHAKE)) {
+            ticket = read_ticket(first_message);
+            encoder = (ticket == null)? null : resume_session(client, session_key, first_message, ticket);
+
+            if (encoder == null) { //il client deve concordare un nuovo encoder
+                Logger.log("il client: (" + client.get_name() + ") non ha potuto riprendere la sessione");
+                ticket = null;
+
+                if (!send_handshake_reply(client, session_key, RESUME_HANDSHAKE, new byte[0]) || (first_message = read_first_message(client, session_key)) == null) {
+                    client.close();
+                    return false;
                 }
             }
         }
 
-        Logger.log("liberati tutti i thread workers del server");
+        if (encoder == null) {
+            encoder = starts_with(first_message, COMPACT_HANDSHAKE)?
+                    compact_handshake(client, session_key, first_message) :
+                    legacy_handshake(client, session_key, new String(first_message));
+        }
+
+        if (encoder == null) {
+            client.close();
+            return false;
+        }
+
+        //imposta l encoder per il client e inizia a utilizzare le conversazioni
+        client.set_encoder(encoder);
+
+        if (ticket != null && !ticket.uname.isEmpty() && ResumptionTickets.get_restore_login()) {
+            if (!exist_user(ticket.uname)) {
+                Logger.log("l'utente: (" + ticket.uname + ") del ticket non esiste più, il client: (" + client.get_name() + ") dovrà eseguire il login", true);
+            }
+            else if (claim_user(client, ticket.uname)) {
+                Logger.log("il client: (" + client.get_name() + ") è rientrato nell'account: (" + ticket.uname + ") con un ticket");
+                client.send(("log:" + ticket.uname).getBytes());
+                login_completed(client);
+
+                return true;
+            }
+            else {
+                Logger.log("l'utente: (" + ticket.uname + ") è già online, il client: (" + client.get_name() + ") dovrà eseguire il login", true);
+            }
+        }
+
+        //fa partire il processo che permette al client di eseguire il login
+        Logger.log("attendo richiesta di login / registrazione dal client: (" + client.get_name() + ")");
+        client.send("log_here".getBytes(), login_request_manager);
+
+        return true;
+    }
+
+    /**
+     * Attende il primo messaggio dell encoder agreement dal client e lo decifra con la session key
+     * @return il messaggio decifrato o {@code null} se non è stato possibile riceverlo
+     */
+    private static byte[] read_first_message(Client client, Cipher[] session_key) {
+        byte[] first_message = HandshakeStage.read_message(client);
+        if (first_message == null) {
+            Logger.log("errore nell'attesa del primo messaggio dal client: (" + client.get_name() + ")", true);
+            return null;
+        }
+
+        try {
+            return session_key[1].doFinal(first_message);
+        }
+        catch (Exception e) {
+            Logger.log("impossibile decifrare il primo messaggio ricevuto dal client: (" + client.get_name() + ")\n\t\t\t\t" + e.getMessage(), true);
+            return null;
+        }
+    }
+
+    /**
+     * Legge il ticket dal messaggio con cui il client chiede di riprendere la sessione, formattato come
+     * {@code RESUME_HANDSHAKE | lunghezza ticket | ticket | bytes}, dove la lunghezza è in {@code 2 bytes} big endian
+     * @return il contenuto del ticket o {@code null} se il messaggio o il ticket non sono validi
+     */
+    private static ResumptionTickets.Ticket read_ticket(byte[] hello) {
+        int offset = RESUME_HANDSHAKE.length;
+        if (hello.length < offset + 2) {
+            return null;
+        }
+
+        int ticket_length = ((hello[offset] & 0xFF) << 8) | (hello[offset + 1] & 0xFF);
+        if (hello.length - offset - 2 - ticket_length < MIN_RESUME_RANDOM) {
+            return null;
+        }
+
+        return ResumptionTickets.open(Arrays.copyOfRange(hello, offset + 2, offset + 2 + ticket_length));
+    }
+
+    /**
+     * Riprende una sessione precedente del client con un solo messaggio per parte, cifrati con {@code session_key}:
+     * <ul>
+     *     <li>
+     *         Il client invia {@code RESUME_HANDSHAKE | lunghezza ticket | ticket | bytes client}, con il ticket
+     *         ricevuto nella sessione precedente e almeno {@code 16} bytes random
+     *     </li>
+     *     <li>
+     *         Il server inizializza l encoder del ticket con {@code ResumptionTickets.resume_bytes()} e risponde con
+     *         {@code RESUME_HANDSHAKE | bytes server | tag}, dove i bytes server sono {@code 32} bytes random e
+     *         {@code tag} è {@code SHA-256} del messaggio del client cifrato con l encoder, come in
+     *         {@code compact_handshake()}
+     *     </li>
+     *     <li>
+     *         Se il ticket non è valido o è scaduto risponde solo con {@code RESUME_HANDSHAKE} e attende dal client un
+     *         nuovo primo messaggio per concordare l encoder normalmente
+     *     </li>
+     * </ul>
+     * Ripresa la sessione, se il ticket contiene un utente, il server invia "{@code log:<utente>}" senza attendere un
+     * login, altrimenti "{@code log_here}" come per un nuovo client. In entrambi i casi, una volta nell utente, il
+     * client riceve un nuovo ticket.
+     * @return l encoder inizializzato o {@code null} se non è stato possibile riprendere la sessione
+     */
+    private static Encoder resume_session(Client client, Cipher[] session_key, byte[] hello, ResumptionTickets.Ticket ticket) {
+        if (!ServerManager.exist_encoder(ticket.encoder_name)) {
+            return null;
+        }
+
+        int ticket_length = ((hello[RESUME_HANDSHAKE.length] & 0xFF) << 8) | (hello[RESUME_HANDSHAKE.length + 1] & 0xFF);
+        byte[] client_random = Arrays.copyOfRange(hello, RESUME_HANDSHAKE.length + 2 + ticket_length, hello.length);
+        byte[] server_random = ResumptionTickets.random_bytes(32);
+
+        byte[] init_bytes = ResumptionTickets.resume_bytes(ticket.secret, client_random, server_random);
+        if (init_bytes == null) {
+            return null;
+        }
+
+        Encoder encoder = ServerManager.get_encoder_instance(ticket.encoder_name);
+        if (encoder == null) {
+            return null;
+        }
+
+        byte[] tag;
+        try {
+            tag = encoder.init(init_bytes)? encoder.encode(MessageDigest.getInstance("SHA-256").digest(hello)) : null;
+        }
+        catch (Exception e) {
+            Logger.log("impossibile calcolare il tag di conferma per il client: (" + client.get_name() + ")\n\t\t\t\t" + e.getMessage(), true);
+            tag = null;
+        }
+
+        byte[] payload = (tag == null)? null : Arrays.copyOf(server_random, server_random.length + tag.length);
+        if (payload != null) {
+            System.arraycopy(tag, 0, payload, server_random.length, tag.length);
+        }
+
+        if (payload == null || !send_handshake_reply(client, session_key, RESUME_HANDSHAKE, payload)) {
+            ServerManager.recycle_encoder(encoder);
+            return null;
+        }
+
+        Logger.log("il client: (" + client.get_name() + ") ha ripreso la sessione con l encoder: (" + ticket.encoder_name + ")");
+        return encoder;
     }
 
     /**
-     * Modifica lo stato di un thread worker con quello specificato, gli unici a poter modificare questo parametro sono
-     * i worker stessi.
-     * @param index  index del worker a cui si moifica lo stato
-     * @param status nuovo stato del worker, {@code true} vuol dire che il thread sta lavorando, {@code false} è in
-     *               attesa di un nuovo messaggio
+     * Invia al client un nuovo ticket per riprendere la sessione come "{@code ticket:<segreto><ticket>}", dove il
+     * segreto è lungo {@code 32 bytes}. Non invia niente se il client non è in un utente o i ticket sono disattivati
+     * @param client client a cui inviare il ticket
      */
-    protected static void set_worker_status(int index, boolean status) {
-        workers_status[index] = status;
-    }
+    private static void issue_ticket(Client client) {
+        if (!client.is_logged()) {
+            return;
+        }
 
-    /**
-     * Ritorna l'elemento di testa del backlog dei dati per i threads workers, o {@code null} nel caso il backlog sia
-     * vuoto.
-     * <p>Non è possibile per le mod richiedere accesso ai messaggi ricevuti dal server così liberamente, poiché
-     * causerebbe il loro mancato processa dai {@code workers threads}
-     * @return head element del backlog
-     */
-    protected static WorkData next_workers_data_backlog() {
-        return workers_backlog.poll();
+        byte[][] ticket = ResumptionTickets.issue(client.get_encoder_name(), client.get_name());
+        if (ticket == null) {
+            return;
+        }
+
+        byte[] prefix = "ticket:".getBytes();
+        byte[] msg = new byte[prefix.length + ticket[0].length + ticket[1].length];
+        System.arraycopy(prefix, 0, msg, 0, prefix.length);
+        System.arraycopy(ticket[0], 0, msg, prefix.length, ticket[0].length);
+        System.arraycopy(ticket[1], 0, msg, prefix.length + ticket[0].length, ticket[1].length);
+
+        client.send(msg);
     }
 
     /**
-     * Cerca di processare un messaggio ricevuto da un client aggiungendolo al backlog dei worker threads e, in caso ce
-     * ne sia uno libero, notificando che è arrivato un nuovo messaggio da processare. Se tutti i workers sono già
-     * attivi verrà solo aggiunto al backlog in attesa che si liberino per essere processato.
-     * <p>In caso la queue sia piena viene stampato un errore nei log e il messaggio verrà perso
-     * @param data nuovo messaggio da processare
+     * Esegue con il client l encoder agreement, l inizializzazione e il test dell encoder un passaggio alla volta
+     * @param client         client appena collegato da un connector
+     * @param session_key    chiavi di sessione arrivate dall handshake
+     * @param client_encoder nome dell encoder scelto dal client, ricevuto come primo messaggio
+     * @return l encoder inizializzato e testato o {@code null} se è fallito uno dei passaggi
      */
-    public static void process_client_message(WorkData data) {
-        if (!workers_backlog.offer(data)) { //queue piena
-            Logger.log("backlog dei worker threads pieno, dimensione: " + workers_backlog.size(), true);
-            return;
+    private static Encoder legacy_handshake(Client client, Cipher[] session_key, String client_encoder) {
+        //concorda un encoder con il client
+        String encoder_name = encoder_agreement(client, session_key, client_encoder);
+        if (encoder_name == null) {
+            Logger.log("encoder agreement fallito con il client: (" + client.get_name() + ")", true);
+            return null;
         }
 
-        for (int i = 0; i < threads_workers.length; i++) {
-            Thread worker = threads_workers[i];
+        Encoder encoder = ServerManager.get_encoder_instance(encoder_name);
+        if (encoder == null) {
+            Logger.log("impossibile creare una nuova istanza dell encoder: (" + encoder_name + ")", true);
+            return null;
+        }
 
-            synchronized (worker) {
-                //i thread in attesa hanno come status false
-                if (!workers_status[i]) {
-                    workers_status[i] = true; //imposta il thread come al lavoro
+        if (!init_encoder(client, session_key, encoder)) {
+            Logger.log("il client: (" + client.get_name() + ") ha fallito a inizializzare l encoder: (" + encoder_name + ")", true);
+            ServerManager.recycle_encoder(encoder);
 
-                    worker.notify();
-                    return;
-                }
-            }
+            return null;
         }
 
-        //tutti i workers stanno già lavorando, il messaggio verrà processato automaticamente quando uno si libera
+        return encoder;
     }
 
-    //      METODI IO PER LE MAPPE DEI CLIENTS
-
     /**
-     * Ritorna la lista di tutti i nomi dei Clients registrati in questo server
-     * @return Array con tutti i clients registrati
+     * Sostituisce encoder agreement, inizializzazione e test dell encoder con un solo messaggio per parte, cifrati
+     * con {@code session_key}:
+     * <ul>
+     *     <li>
+     *         Il client invia {@code COMPACT_HANDSHAKE | encoder1;encoder2;... | 0x00 | bytes}, con gli encoder che
+     *         supporta in ordine di preferenza, anche pipeline, seguiti dai bytes random con cui inizializzarli
+     *     </li>
+     *     <li>
+     *         Il server sceglie il primo encoder della lista che supporta, lo inizializza e risponde con
+     *         {@code COMPACT_HANDSHAKE | encoder | 0x00 | tag}, dove {@code tag} è {@code SHA-256} del messaggio del
+     *         client cifrato con l encoder scelto. Il client decifra il tag con il suo encoder e se non corrisponde
+     *         chiude la connessione
+     *     </li>
+     *     <li>
+     *         Se nessun encoder è supportato risponde con {@code COMPACT_HANDSHAKE | 0x00 | lista}, dove {@code lista}
+     *         contiene tutti gli encoder supportati dal server formattati come {@code nome_encoder1;nome_encoder2;...}
+     *     </li>
+     * </ul>
+     * Senza attendere altri messaggi il server invia subito "{@code log_here}" cifrato con l encoder.
+     * @param client      client appena collegato da un connector
+     * @param session_key chiavi di sessione arrivate dall handshake
+     * @param hello       primo messaggio del client decifrato con la session key
+     * @return l encoder inizializzato o {@code null} se non è stato possibile concordarne uno
      */
-    public static String[] get_clients_list() {
-        return clients_credentials.keySet().toArray(new String[0]);
-    }
+    private static Encoder compact_handshake(Client client, Cipher[] session_key, byte[] hello) {
+        int separator = index_of(hello, (byte) 0x00, COMPACT_HANDSHAKE.length);
+        if (separator == -1) {
+            Logger.log("ricevuto un handshake non valido dal client: (" + client.get_name() + ")", true);
+            return null;
+        }
 
-    /**
-     * Ritorna la lista di tutti i nomi degli utenti online e che hanno già eseguito il login o registrazione nel server
-     * @return lista di nomi degli utenti online
-     */
-    public static String[] get_online_clients_list() {
-        Vector<String> clients = new Vector<>();
+        String[] client_encoders = new String(hello, COMPACT_HANDSHAKE.length, separator - COMPACT_HANDSHAKE.length).split(";");
+        byte[] init_bytes = Arrays.copyOfRange(hello, separator + 1, hello.length);
 
-        for (Vector<Client> vector : online_clients.values()) {
-            for (Client client : vector) {
-                clients.add(client.get_name());
+        String encoder_name = null;
+        for (String name : client_encoders) {
+            if (!name.isEmpty() && ServerManager.exist_encoder(name)) {
+                encoder_name = name;
+                break;
             }
         }
 
-        return clients.toArray(new String[0]);
-    }
+        if (encoder_name == null) {
+            Logger.log("nessuno degli encoder proposti dal client: (" + client.get_name() + ") è supportato", true);
+            send_compact_reply(client, session_key, "", encoders_list().getBytes());
 
-    /**
-     * Test se un client con il nome utente specificato è online
-     * @param uname nome del client
-     * @return {@code true} se l'utente è online, {@code false} se non è online
-     */
-    public static boolean is_online(String uname) {
-        return online_clients.containsKey(uname);
+            return null;
+        }
+
+        Encoder encoder = ServerManager.get_encoder_instance(encoder_name);
+        if (encoder == null) {
+            Logger.log("impossibile creare una nuova istanza dell encoder: (" + encoder_name + ")", true);
+            return null;
+        }
+
+        byte[] tag;
+        try {
+            tag = encoder.init(init_bytes)? encoder.encode(MessageDigest.getInstance("SHA-256").digest(hello)) : null;
+        }
+        catch (Exception e) {
+            Logger.log("impossibile calcolare il tag di conferma per il client: (" + client.get_name() + ")\n\t\t\t\t" + e.getMessage(), true);
+            tag = null;
+        }
+
+        if (tag == null || !send_compact_reply(client, session_key, encoder_name, tag)) {
+            Logger.log("il client: (" + client.get_name() + ") ha fallito a inizializzare l encoder: (" + encoder_name + ")", true);
+            ServerManager.recycle_encoder(encoder);
+
+            return null;
+        }
+
+        Logger.log("il client: (" + client.get_name() + ") ha scelto l encoder: (" + encoder_name + ") con l handshake compatto");
+        return encoder;
     }
 
     /**
-     * Test se un client con il nome specificato è già stato creato o meno
-     * @param uname nome utente
-     * @return {@code true} se esiste un utente, {@code false} se non esiste un utente con quel nome
+     * Invia al client la risposta di {@code compact_handshake()} cifrata con la session key
+     * @return {@code true} se è stata inviata, {@code false} se non è stato possibile cifrarla
      */
-    public static boolean exist_user(String uname) {
-        return clients_credentials.containsKey(uname);
-    }
+    private static boolean send_compact_reply(Client client, Cipher[] session_key, String encoder_name, byte[] payload) {
+        byte[] name = encoder_name.getBytes();
+        byte[] reply = new byte[name.length + 1 + payload.length];
 
-    //      CLIENTS CONNECTION START / END
+        System.arraycopy(name, 0, reply, 0, name.length);
+        System.arraycopy(payload, 0, reply, name.length + 1, payload.length);
+
+        return send_handshake_reply(client, session_key, COMPACT_HANDSHAKE, reply);
+    }
 
     /**
-     * Riceve un {@code Client} e {@code session key}, arrivati dall handshake con il connector, e dovrà eseguire
-     * l encoder agreement, inizializzare l encoder scelto, inizializzare il client con l encoder, impostarlo in
-     * ascolto e attendere esegua il login. Una volta eseguito il login sarà aggiunto ai client online.
-     * @param connector_name nome del connector da cui proviene il client
-     * @param client         client appena collegato da un connector
-     * @param session_key    chiavi di sessione arrivate dall handshake
+     * Invia al client {@code prefix | payload} cifrato con la session key
+     * @return {@code true} se è stata inviata, {@code false} se non è stato possibile cifrarla
      */
-    public static boolean new_client(String connector_name, Client client, Cipher[] session_key) {
-        //concorda un encoder con il client
-        String encoder_name = encoder_agreement(client, session_key);
-        if (encoder_name == null) {
-            Logger.log("encoder agreement fallito con il client: (" + client.get_name() + ")", true);
-            client.close();
+    private static boolean send_handshake_reply(Client client, Cipher[] session_key, byte[] prefix, byte[] payload) {
+        byte[] reply = Arrays.copyOf(prefix, prefix.length + payload.length);
+        System.arraycopy(payload, 0, reply, prefix.length, payload.length);
 
-            return false;
+        try {
+            client.direct_send(session_key[0].doFinal(reply));
+            return true;
         }
-
-        Encoder encoder = ServerManager.get_encoder_instance(encoder_name);
-        if (encoder == null) {
-            Logger.log("impossibile creare una nuova istanza dell encoder: (" + encoder_name + ")", true);
-            client.close();
-
+        catch (Exception e) {
+            Logger.log("impossibile cifrare e inviare la risposta all handshake del client: (" + client.get_name() + ")\n\t\t\t\t" + e.getMessage(), true);
             return false;
         }
+    }
 
-        if (!init_encoder(client, session_key, encoder)) {
-            Logger.log("il client: (" + client.get_name() + ") ha fallito a inizializzare l encoder: (" + encoder_name + ")", true);
-            client.close();
+    /// Ritorna {@code true} se {@code msg} inizia con i bytes di {@code prefix}
+    private static boolean starts_with(byte[] msg, byte[] prefix) {
+        return msg.length >= prefix.length && Arrays.equals(msg, 0, prefix.length, prefix, 0, prefix.length);
+    }
 
-            return false;
+    /// Ritorna la posizione della prima occorrenza di {@code b} in {@code msg} da {@code from}, o {@code -1}
+    private static int index_of(byte[] msg, byte b, int from) {
+        for (int i = from; i < msg.length; i++) {
+            if (msg[i] == b) {
+                return i;
+            }
         }
+        return -1;
+    }
 
-        //imposta l encoder per il client e inizia a utilizzare le conversazioni
-        client.set_encoder(encoder);
+    /// Ritorna i nomi di tutti gli encoder registrati formattati come {@code nome_encoder1;nome_encoder2;...}
+    private static String encoders_list() {
+        StringBuilder encoders_list = new StringBuilder();
 
-        //fa partire il processo che permette al client di eseguire il login
-        Logger.log("attendo richiesta di login / registrazione dal client: (" + client.get_name() + ")");
-        client.send("log_here".getBytes(), login_request_manager);
+        for (String encoder : ServerManager.get_encoders_list()) {
+            encoders_list.append(encoder).append(";");
+        }
 
-        return true;
+        return encoders_list.toString();
     }
 
     /**
      * Tutta la seguente connessione è realizzata cifrando e decifrando con {@code session_key}.
      * <ul>
      *     <li>
-     *         Riceve il nome dell encoder scelto dal client e controlla se è presente un encoder con lo
-     *         stesso nome, in questa versione encoder compatibili devono essere nominati con lo stesso nome
+     *         Ricevuto il nome dell encoder scelto dal client controlla se è presente un encoder con lo
+     *         stesso nome, in questa versione encoder compatibili devono essere nominati con lo stesso nome. Il client
+     *         può scegliere più encoder da applicare in ordine unendo i loro nomi con {@code +}, come
+     *         {@code deflate+aes-gcm}, in questo caso devono essere tutti registrati
      *     </li>
      *     <li>
      *         A seconda se l encoder è supportato dal server procede in modi diversi:
@@ -314,26 +1171,12 @@ public abstract class ClientsInterface {
      *          {@code changing_encoder()} concordando un nuovo encoder da usare
      *     </li>
      * </ul>
-     * @param client      client con cui concordare l encoder
-     * @param session_key session key concordata con il client
+     * @param client         client con cui concordare l encoder
+     * @param session_key    session key concordata con il client
+     * @param client_encoder nome dell encoder scelto dal client
      * @return il nome dell encoder concordato con il client o {@code null} se è fallito
      */
-    private static String encoder_agreement(Client client, Cipher[] session_key) {
-        byte[] client_encoder_bytes = client.read_message();
-        if (client_encoder_bytes == null) {
-            Logger.log("errore nell'attesa dell encoder scelto dal client: (" + client.get_name() + ")", true);
-            return null;
-        }
-
-        try {
-            client_encoder_bytes = session_key[1].doFinal(client_encoder_bytes);
-        }
-        catch (Exception e) {
-            Logger.log("impossibile decifrare il messaggio ricevuto dal client: (" + client.get_name() + ") con l encoder scelto\n\t\t\t\t" + e.getMessage(), true);
-            return null;
-        }
-
-        String client_encoder = new String(client_encoder_bytes);
+    private static String encoder_agreement(Client client, Cipher[] session_key, String client_encoder) {
         if (ServerManager.exist_encoder(client_encoder)) { //encoder supportato
             Logger.log("il client: (" + client.get_name() + ") ha scelto l encoder: (" + client_encoder + "), encoder supportato");
 
@@ -368,8 +1211,8 @@ public abstract class ClientsInterface {
      *                  {@code null}
      *              </li>
      *              <li>
-     *                  Se riceve il nome di un encoder registrato in questo server invia "{@code ack}" e ritorna il
-     *                  nome di questo encoder
+     *                  Se riceve il nome di un encoder registrato in questo server, o una pipeline di encoder
+     *                  registrati, invia "{@code ack}" e ritorna il nome di questo encoder
      *              </li>
      *              <li>
      *                  Se riceve qualcosa che non è il nome di un encoder registrato in questo server invia
@@ -383,15 +1226,8 @@ public abstract class ClientsInterface {
      * @return il nome del nuovo encoder concordato o null se il protocollo è fallito
      */
     private static String changing_encoder(Client client, Cipher[] session_key) {
-        String[] supported_encoders = ServerManager.get_encoders_list();
-        StringBuilder encoders_list = new StringBuilder();
-
-        for (String encoder : supported_encoders) {
-            encoders_list.append(encoder).append(";");
-        }
-
         try {
-            client.send(session_key[0].doFinal(encoders_list.toString().getBytes()));
+            client.send(session_key[0].doFinal(encoders_list().getBytes()));
         }
         catch (Exception e) {
             Logger.log("impossibile cifrare e inviare al client: (" + client.get_name() + ") la lista di encoder supportati\n\t\t\t\t" + e.getMessage(), true);
@@ -399,7 +1235,7 @@ public abstract class ClientsInterface {
         }
         Logger.log("inviata la lista di encoder supportati al client: (" + client.get_name()+ ")");
 
-        byte[] client_reply_bytes = client.read_message();
+        byte[] client_reply_bytes = HandshakeStage.read_message(client);
         if (client_reply_bytes == null) {
             Logger.log("errore aspettando una risposta alla lista del client: (" + client.get_name() + ") alla lista di encoder supportati", true);
             return null;
@@ -454,7 +1290,7 @@ public abstract class ClientsInterface {
      * @return {@code true} se riesce a inizializzare l encoder, {@code false} se è riscontrato un errore
      */
     private static boolean init_encoder(Client client, Cipher[] session_key, Encoder encoder) {
-        byte[] random_bytes = client.read_message();
+        byte[] random_bytes = HandshakeStage.read_message(client);
         if (random_bytes == null) {
             Logger.log("errore nell'attesa dei bytes random dal client: (" + client.get_name() + ") per inizializzare l encoder", true);
             return false;
@@ -513,7 +1349,7 @@ public abstract class ClientsInterface {
             return false;
         }
 
-        byte[] received_bytes = client.read_message();
+        byte[] received_bytes = HandshakeStage.read_message(client);
         if (received_bytes == null) {
             Logger.log("errore nell'attesa dei random bytes dal client: (" + client.get_name() + ") per il test dell encoder", true);
             return false;
@@ -536,7 +1372,7 @@ public abstract class ClientsInterface {
         client.send(received_bytes);
 
         //si sono scambiati i random bytes, controlla che il client gli invii in dietro gli stessi
-        byte[] test_bytes = client.read_message();
+        byte[] test_bytes = HandshakeStage.read_message(client);
         if (test_bytes == null) {
             Logger.log("errore nell'attesa dei test bytes dal client: (" + client.get_name() + ") per il test dell encoder", true);
             return false;
@@ -557,7 +1393,7 @@ public abstract class ClientsInterface {
                 return false;
             }
 
-            byte[] client_result = client.read_message();
+            byte[] client_result = HandshakeStage.read_message(client);
             if (client_result == null) {
                 Logger.log("errore nell'attesa del risultato del client: (" + client.get_name() + ") per il test dell encoder", true);
                 return false;
@@ -644,20 +1480,84 @@ public abstract class ClientsInterface {
 
                 client.register_action(conv_code, this); //attende una nuova richiesta
             }
+            else if (!claim_user(client, uname)) { //un altro client è entrato nell utente nel frattempo
+                Logger.log("il client: (" + client.get_name() + ") ha tentato di eseguire il login in un utente già online", true);
+                client.send("fail:utente già online".getBytes(), conv_code);
+
+                client.register_action(conv_code, this); //attende una nuova richiesta
+            }
             else { //login / registrazione riuscita
                 Logger.log("il client: (" + client.get_name() + ") è entrato nell'account: (" + uname + ")");
 
                 client.send(("log:" + uname).getBytes(), conv_code);
-                client.set_uname(uname);
-
-                online_clients.get(client.get_connector_name()).add(client);
-                ClientList_panel.set_online(client.get_name());
+                login_completed(client);
 
                 client.unlock_cc(conv_code);
             }
         }
     };
 
+    /**
+     * Aggiunge l utente agli utenti online legandolo al client e imposta il nome del client, se l utente è già online
+     * con un altro client fallisce senza modificare niente. Essendo un operazione atomica due clients che eseguono il
+     * login contemporaneamente nello stesso utente non possono riuscire entrambi
+     * @param client client che è entrato nell utente
+     * @param uname  nome dell utente
+     * @return {@code true} se il client è ora online con l utente, {@code false} se l utente era già online o il
+     * client si è disconnesso
+     */
+    private static boolean claim_user(Client client, String uname) {
+        if (online_clients.putIfAbsent(uname, client) != null) {
+            return false;
+        }
+        client.set_uname(uname);
+
+        //se si è disconnesso prima di impostare il nome on_disconnect() non lo ha rimosso
+        if (client.is_disconnected()) {
+            online_clients.remove(uname, client);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Chiamato una volta che il client è entrato nell utente con {@code claim_user()}, lo segna online e gli invia un
+     * ticket per riprendere la sessione alla prossima connessione
+     * @param client client che è entrato nell utente
+     */
+    private static void login_completed(Client client) {
+        ClientList_panel.set_online(client.get_name());
+        issue_ticket(client);
+    }
+
+    /**
+     * Chiamato da {@code Client.on_disconnect()} per rimuovere l utente del client da quelli online
+     * @param client client disconnesso
+     */
+    static void client_offline(Client client) {
+        if (online_clients.remove(client.get_name(), client)) {
+            ClientList_panel.set_offline(client.get_name());
+        }
+    }
+
+    /**
+     * Chiamato da {@code Client.set_encoder()} una volta completato l handshake, da questo momento il client viene
+     * scollegato con {@code EOC} allo spegnimento del server anche se non esegue il login
+     * @param client client che ha completato l handshake
+     */
+    static void client_connected(Client client) {
+        connected_clients.add(client);
+    }
+
+    /**
+     * Chiamato da {@code Client.on_disconnect()} per rimuovere il client da quelli collegati
+     * @param client client disconnesso
+     */
+    static void client_disconnected(Client client) {
+        connected_clients.remove(client);
+    }
+
     /**
      * Memorizza, per un nuovo utente appena registrato, il codice segreto legato a ogni utente e che viene utilizzato
      * dal {@code LoginManager} per verificare la correttezza delle login request dei clients.
@@ -687,36 +1587,226 @@ public abstract class ClientsInterface {
         return clients_credentials.get(uname);
     }
 
-    /// Sconnette tutti i clients dal server notificandoli con {@code EOC}, "End Of Connection"
+    /// Sconnette tutti i clients dal server, anche quelli che non hanno eseguito il login, notificandoli con {@code EOC}, "End Of Connection"
     public static void disconnect_all() {
-        for (Vector<Client> clients_vector : online_clients.values()) {
-            for (Client client : clients_vector) {
-                client.send("EOC".getBytes());
-                client.close();
-            }
-        }
+        disconnect_clients(collect_clients(null));
         online_clients.clear();
+        connected_clients.clear();
 
         Logger.log("disconnessi tutti i clients collegati al server");
     }
 
     /**
-     * Sconnette tutti i clients che si sono collegati attraverso un dato connector notificano prima ognuno con
-     * {@code EOC}, "End Of Connection"
+     * Sconnette tutti i clients che si sono collegati attraverso un dato connector, anche quelli che non hanno
+     * eseguito il login, notificano prima ognuno con {@code EOC}, "End Of Connection"
      * @param connector_name nome del connector
      */
     public static void disconnect_all(String connector_name) {
-        Vector<Client> online = online_clients.get(connector_name);
-        if (online == null) { //nessun client online
+        List<Client> clients = collect_clients(connector_name);
+
+        disconnect_clients(clients);
+        for (Client client : clients) {
+            online_clients.remove(client.get_name(), client);
+            connected_clients.remove(client);
+        }
+    }
+
+    /**
+     * Ritorna tutti i clients collegati attraverso un connector, sia quelli che hanno completato l handshake che quelli
+     * online con un utente, senza ripetizioni
+     * @param connector_name nome del connector, o {@code null} per i clients di tutti i connectors
+     * @return lista dei clients
+     */
+    private static List<Client> collect_clients(String connector_name) {
+        LinkedHashSet<Client> clients = new LinkedHashSet<>(connected_clients);
+        clients.addAll(online_clients.values());
+
+        if (connector_name != null) {
+            clients.removeIf(client -> !client.get_connector_name().equals(connector_name));
+        }
+        return new ArrayList<>(clients);
+    }
+
+    /**
+     * Invia {@code EOC} e chiude i clients specificati in parallelo, con al massimo {@code DISCONNECT_THREADS}
+     * threads creati da {@code thread_builder()} che si dividono i clients, uno per ogni {@code BROADCAST_BATCH}.
+     * <p>Tutti i threads condividono la stessa scadenza di {@code ServerManager.get_drain_timeout()} millisecondi,
+     * fino a cui l invio di {@code EOC} può attendere che finisca un invio della coda dei messaggi in uscita già in
+     * corso. Se {@code DISCONNECT_GRACE} millisecondi dopo la scadenza non hanno ancora finito vengono interrotti e
+     * i clients rimanenti vengono chiusi dal thread chiamante senza {@code EOC}
+     * @param clients clients da scollegare
+     */
+    private static void disconnect_clients(List<Client> clients) {
+        if (clients.isEmpty()) {
             return;
         }
 
-        for (Client client : online) {
-            client.send("EOC".getBytes());
-            client.close();
+        byte[] eoc = "EOC".getBytes();
+        long timeout = ServerManager.get_drain_timeout();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        //ogni thread prende il prossimo client da scollegare, così nessuno resta fermo mentre altri hanno clients lenti
+        AtomicInteger next = new AtomicInteger(0);
+        int threads = Math.min(DISCONNECT_THREADS, (clients.size() + BROADCAST_BATCH - 1) / BROADCAST_BATCH);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, thread_builder("disconnect").factory());
+        for (int i = 0; i < threads; i++) {
+            executor.execute(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < clients.size()) {
+                    Client client = clients.get(index);
+                    client.send_final(eoc, deadline);
+                    client.close();
+                }
+            });
+        }
+        executor.shutdown();
+
+        boolean finished;
+        try {
+            finished = executor.awaitTermination(timeout + DISCONNECT_GRACE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException _) {
+            Thread.currentThread().interrupt();
+            finished = false;
+        }
+
+        if (!finished) {
+            executor.shutdownNow();
+
+            int index, closed = 0;
+            while ((index = next.getAndIncrement()) < clients.size()) {
+                clients.get(index).close();
+                closed++;
+            }
+            Logger.log("scaduto il tempo per scollegare i clients, " + closed + " clients sono stati chiusi senza inviare EOC", true);
+        }
+    }
+
+    //      BROADCAST
+
+    /**
+     * Invia un messaggio con {@code cc} = 0x00 a tutti gli utenti online
+     * @param msg messaggio da inviare
+     * @return numero di clients a cui verrà inviato il messaggio
+     */
+    public static int broadcast(byte[] msg) {
+        return broadcast_to(new ArrayList<>(online_clients.values()), msg);
+    }
+
+    /**
+     * Invia un messaggio con {@code cc} = 0x00 a tutti gli utenti online collegati attraverso un dato connector
+     * @param connector_name nome del connector
+     * @param msg            messaggio da inviare
+     * @return numero di clients a cui verrà inviato il messaggio
+     */
+    public static int broadcast(String connector_name, byte[] msg) {
+        ArrayList<Client> recipients = new ArrayList<>();
+        for (Client client : online_clients.values()) {
+            if (client.get_connector_name().equals(connector_name)) {
+                recipients.add(client);
+            }
+        }
+
+        return broadcast_to(recipients, msg);
+    }
+
+    /**
+     * Invia un messaggio con {@code cc} = 0x00 agli utenti specificati, quelli che non sono online vengono ignorati
+     * @param unames nomi degli utenti
+     * @param msg    messaggio da inviare
+     * @return numero di clients a cui verrà inviato il messaggio
+     */
+    public static int broadcast(Collection<String> unames, byte[] msg) {
+        ArrayList<Client> recipients = new ArrayList<>();
+        for (String uname : unames) {
+            Client client = online_clients.get(uname);
+            if (client != null) {
+                recipients.add(client);
+            }
+        }
+
+        return broadcast_to(recipients, msg);
+    }
+
+    /**
+     * Divide i destinatari in gruppi di al massimo {@code BROADCAST_BATCH} clients e fa inviare ogni gruppo da un
+     * worker thread, in modo che l invio a molti clients avvenga in parallelo e non blocchi il thread chiamante.
+     * <p>I clients con un encoder {@code is_shareable()} vengono raggruppati per nome dell encoder e il messaggio viene
+     * cifrato una volta sola per ogni gruppo, gli altri lo cifrano ognuno con il proprio encoder
+     * @param recipients clients a cui inviare il messaggio
+     * @param msg        messaggio da inviare
+     * @return numero di clients a cui verrà inviato il messaggio, minore di quelli specificati se il backlog era pieno
+     */
+    static int broadcast_to(List<Client> recipients, byte[] msg) {
+        byte[] message = msg.clone();
+
+        Map<String, List<Client>> shared = new HashMap<>();
+        List<Client> single = new ArrayList<>();
+        for (Client client : recipients) {
+            String encoder_name = client.get_encoder_name();
+            if (encoder_name != null && client.has_shareable_encoder()) {
+                shared.computeIfAbsent(encoder_name, _ -> new ArrayList<>()).add(client);
+            }
+            else {
+                single.add(client);
+            }
+        }
+
+        int scheduled = 0;
+        for (List<Client> group : shared.values()) {
+            byte[] encoded = null;
+            for (int i = 0; i < group.size() && encoded == null; i++) {
+                encoded = group.get(i).encode_shared(message);
+            }
+
+            if (encoded == null) { //nessun client del gruppo è riuscito a cifrarlo, lo cifrano singolarmente
+                single.addAll(group);
+                continue;
+            }
+
+            byte[] shared_msg = encoded;
+            scheduled += schedule_batches(group, client -> client.send_encoded(shared_msg, message));
+        }
+        scheduled += schedule_batches(single, client -> client.send(message));
+
+        if (scheduled < recipients.size()) {
+            Logger.log("backlog pieno, il broadcast verrà inviato solo a " + scheduled + " clients su " + recipients.size(), true);
+        }
+
+        return scheduled;
+    }
+
+    /**
+     * Fa eseguire un'operazione del server a un worker thread, se il backlog è pieno o il server sta scartando il
+     * backlog durante lo spegnimento l operazione viene persa
+     * @param task operazione da eseguire
+     * @return {@code true} se l operazione è stata aggiunta al backlog
+     */
+    static boolean schedule_task(Runnable task) {
+        WorkData data = WorkData.task(task);
+        if (drain_state != DRAIN_DISCARD && offer(data)) {
+            return true;
+        }
+
+        data.release();
+        return false;
+    }
+
+    /**
+     * Aggiunge al backlog un'operazione che esegue {@code send} per ogni gruppo di {@code BROADCAST_BATCH} clients
+     * @return numero di clients nei gruppi aggiunti al backlog
+     */
+    private static int schedule_batches(List<Client> clients, Consumer<Client> send) {
+        int scheduled = 0;
+        for (int start = 0; start < clients.size(); start += BROADCAST_BATCH) {
+            List<Client> batch = clients.subList(start, Math.min(start + BROADCAST_BATCH, clients.size()));
+            if (schedule_task(() -> batch.forEach(send))) {
+                scheduled += batch.size();
+            }
         }
 
-        online_clients.remove(connector_name);
+        return scheduled;
     }
 
     /**
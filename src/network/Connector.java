@@ -5,7 +5,10 @@ package network;
  * disattivato da {@code ServerManager}, quando attivo dovrà rimanere in attesa di connessioni con nuovi clients,
  * creare istanze di {@code Client} che permettano di comunicare con essi e iniziare l handshake fino a definire una
  * session key {@code Cipher[2]}, poi passera i due oggetti a {@code ClientsInterface.new_client()} assieme al proprio
- * nome.
+ * nome. Per non bloccare il thread che accetta le connessioni l handshake può essere eseguito con
+ * {@code HandshakeStage.submit()}, che limita gli handshake contemporanei e la loro durata, o passando la session key
+ * a {@code ClientsInterface.start_new_client()}. Con {@code IdleReaper.set_idle_timeout()} è possibile far chiudere
+ * i clients del connector che smettono di inviare messaggi.
  * <p>Nuove istanze di questa classe verranno create chiamando il constructor {@code Connector(name : String)},
  * ricevendo come unico argomento il nome con cui si sta registrando. Appena creata l'istanza questa dovrà poter essere
  * fatta partire da subito.
@@ -0,0 +1,44 @@
+package network;
+
+/**
+ * Stato del controlled delay (CoDel) di una lane del backlog, utilizzato da {@code ClientsInterface} per scartare i
+ * messaggi che hanno atteso troppo quando il backlog non riesce più a smaltire i messaggi in arrivo.
+ * <p>Invece di limitare la lunghezza della lane controlla quanto hanno atteso i messaggi presi dai workers, tenendo
+ * l attesa minima di ogni {@code interval}. Se in un intero intervallo anche il messaggio che ha atteso meno ha
+ * superato {@code target} la lane non si è mai svuotata e viene considerata sovraccarica fino alla fine
+ * dell intervallo successivo, e i messaggi che hanno atteso più di {@code 2 * target} vengono scartati. Così un picco
+ * breve, in cui almeno alcuni messaggi vengono presi subito, non perde nulla, mentre in un sovraccarico prolungato
+ * i workers saltano i messaggi a cui i clients hanno probabilmente già rinunciato invece di accumulare ritardo.
+ * <p>A differenza del CoDel per i pacchetti di rete, che scarta con frequenza crescente aspettando che i mittenti
+ * rallentino, qui ogni messaggio troppo vecchio viene scartato subito, dato che i clients non reagiscono agli scarti.
+ */
+final class ControlledDelay {
+    /// Istante in nanosecondi in cui termina l intervallo in corso
+    private long interval_end = System.nanoTime();
+
+    /// Attesa minima in nanosecondi dei messaggi presi dalla lane nell intervallo in corso
+    private long min_sojourn = Long.MAX_VALUE;
+
+    /// {@code true} se nell ultimo intervallo concluso nessun messaggio ha atteso meno del target
+    private boolean overloaded = false;
+
+    /**
+     * Controlla se il messaggio appena preso dalla lane deve essere scartato
+     * @param sojourn  nanosecondi di attesa del messaggio
+     * @param now      istante attuale in nanosecondi
+     * @param target   nanosecondi di attesa tollerati
+     * @param interval durata in nanosecondi degli intervalli in cui viene misurata l attesa minima
+     * @return {@code true} se il messaggio deve essere scartato
+     */
+    synchronized boolean should_drop(long sojourn, long now, long target, long interval) {
+        if (now - interval_end >= 0) {
+            //se nessun messaggio è stato preso nell intervallo la lane era vuota, quindi non sovraccarica
+            overloaded = min_sojourn != Long.MAX_VALUE && min_sojourn > target;
+            min_sojourn = Long.MAX_VALUE;
+            interval_end = now + interval;
+        }
+
+        min_sojourn = Math.min(min_sojourn, sojourn);
+        return overloaded && sojourn > 2 * target;
+    }
+}
@@ -1,10 +1,21 @@
 package network;
 
+import java.nio.ByteBuffer;
+
 /**
  * Permette di cifrare le connessioni fra server e client, per inizializzare l encoder vengono concordati con il client
  * un numero specificato nella mod di bytes segreti, e passati in init()
+ * <p>Oltre ai metodi con array è possibile sovrascrivere {@code encode(ByteBuffer, ByteBuffer)} e
+ * {@code decode(ByteBuffer, ByteBuffer)} per cifrare direttamente nei buffers di {@code BufferPool} senza allocare un
+ * nuovo array per ogni messaggio, in questo caso {@code supports_buffers()} deve ritornare {@code true} e i client li
+ * utilizzeranno al posto di quelli con array.
+ * <p>Un encoder viene utilizzato da un solo client, i messaggi vengono cifrati uno alla volta nell'ordine in cui sono
+ * inviati e decifrati uno alla volta nell'ordine in cui sono ricevuti.
  */
 public abstract class Encoder {
+    /// Nome con cui l encoder è registrato in {@code ServerManager}, utilizzato per restituirlo al suo pool
+    String registered_name = null;
+
     /**
      * Cifra i bytes ricevuti come specificato nella mod da cui proviene l encoder
      * @param msg bytes da cifrare
@@ -25,4 +36,99 @@ public abstract class Encoder {
      * @return {@code true} se riesce a inizializzarlo, {@code false} se fallisce
      */
     public abstract boolean init(byte[] shared_bytes);
+
+    /**
+     * Specifica se una volta disconnesso il client l istanza può essere riutilizzata per un nuovo client, in questo
+     * caso viene chiamato {@code reset()} e l istanza mantenuta da {@code ServerManager} fino alla prossima richiesta
+     * di un encoder con lo stesso nome, che la inizializzerà nuovamente con {@code init()}
+     * @return {@code true} se l istanza può essere riutilizzata
+     */
+    public boolean is_reusable() {
+        return false;
+    }
+
+    /**
+     * Chiamato prima di riutilizzare l istanza per un nuovo client, deve cancellare ogni chiave o stato legato al
+     * client precedente. Utilizzato solo se {@code is_reusable()} ritorna {@code true}
+     */
+    public void reset() {}
+
+    /**
+     * Specifica se l encoder implementa direttamente i metodi con {@code ByteBuffer}, se {@code false} i client
+     * utilizzano solo quelli con array
+     * @return {@code true} se {@code encode(ByteBuffer, ByteBuffer)} e {@code decode(ByteBuffer, ByteBuffer)} non
+     * passano dai metodi con array
+     */
+    public boolean supports_buffers() {
+        return false;
+    }
+
+    /**
+     * Specifica se un messaggio cifrato da questo encoder può essere inviato così com'è a tutti i clients che
+     * utilizzano un encoder con lo stesso nome, utilizzato dai broadcast per cifrare il messaggio una volta sola.
+     * Deve ritornare {@code true} solo se {@code encode()} non dipende dai bytes con cui è stato inizializzato né dai
+     * messaggi cifrati in precedenza, non è quindi possibile per encoder con chiavi diverse per ogni client
+     * @return {@code true} se istanze diverse cifrano lo stesso messaggio negli stessi bytes
+     */
+    public boolean is_shareable() {
+        return false;
+    }
+
+    /**
+     * Ritorna il numero massimo di bytes che può occupare un messaggio di {@code length} bytes una volta cifrato,
+     * utilizzato per scegliere la dimensione del buffer in cui cifrarlo
+     * @param length lunghezza del messaggio da cifrare
+     * @return lunghezza massima del messaggio cifrato
+     */
+    public int max_encoded_length(int length) {
+        return length + 64;
+    }
+
+    /**
+     * Ritorna il numero massimo di bytes che può occupare un messaggio cifrato di {@code length} bytes una volta
+     * decifrato, utilizzato per scegliere la dimensione del buffer in cui decifrarlo
+     * @param length lunghezza del messaggio cifrato
+     * @return lunghezza massima del messaggio decifrato
+     */
+    public int max_decoded_length(int length) {
+        return length;
+    }
+
+    /**
+     * Cifra i bytes rimanenti di {@code src} scrivendo il risultato in {@code dst} dalla sua posizione attuale, di
+     * default utilizza {@code encode(byte[])}
+     * @param src bytes da cifrare, viene consumato
+     * @param dst buffer in cui scrivere i bytes cifrati, con almeno {@code max_encoded_length()} bytes liberi
+     * @return numero di bytes scritti in {@code dst}, o {@code -1} se non è stato possibile cifrare il messaggio
+     */
+    public int encode(ByteBuffer src, ByteBuffer dst) {
+        byte[] msg = new byte[src.remaining()];
+        src.get(msg);
+
+        return write_result(encode(msg), dst);
+    }
+
+    /**
+     * Decifra i bytes rimanenti di {@code src} scrivendo il risultato in {@code dst} dalla sua posizione attuale, di
+     * default utilizza {@code decode(byte[])}
+     * @param src bytes da decifrare, viene consumato
+     * @param dst buffer in cui scrivere i bytes decifrati, con almeno {@code max_decoded_length()} bytes liberi
+     * @return numero di bytes scritti in {@code dst}, o {@code -1} se non è stato possibile decifrare il messaggio
+     */
+    public int decode(ByteBuffer src, ByteBuffer dst) {
+        byte[] msg = new byte[src.remaining()];
+        src.get(msg);
+
+        return write_result(decode(msg), dst);
+    }
+
+    /// Scrive il risultato dei metodi con array in {@code dst} ritornando quanti bytes ha scritto o {@code -1}
+    private static int write_result(byte[] result, ByteBuffer dst) {
+        if (result == null || result.length > dst.remaining()) {
+            return -1;
+        }
+
+        dst.put(result);
+        return result.length;
+    }
 }
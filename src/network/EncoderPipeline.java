@@ -0,0 +1,205 @@
+package network;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * Encoder composto da più encoder registrati, richiesto durante l encoder agreement con i nomi degli stadi uniti da
+ * {@code +}, come {@code deflate+aes-gcm}.
+ * <p>I messaggi inviati passano per gli stadi nell'ordine in cui sono nominati e quelli ricevuti nell'ordine
+ * inverso. Ogni stadio è inizializzato con bytes diversi derivati da quelli concordati con il client, lunghi quanto
+ * questi ultimi e formati dai blocchi {@code SHA-256(index | nome dello stadio | blocco | shared_bytes)}, dove
+ * {@code index} è la posizione dello stadio e {@code blocco} il numero del blocco, entrambi in {@code 4 bytes} big
+ * endian. Così due stadi non condividono mai le stesse chiavi. Se tutti gli stadi supportano i metodi con
+ * {@code ByteBuffer} i risultati intermedi vengono scritti in buffers di {@code BufferPool}, altrimenti passano da
+ * uno stadio all'altro come array.
+ * <p>La pipeline non viene riutilizzata, alla disconnessione del client ogni stadio torna separatamente al suo pool
+ * in {@code ServerManager}.
+ */
+class EncoderPipeline extends Encoder {
+    /// Separatore dei nomi degli stadi nel nome della pipeline
+    public static final String SEPARATOR = "+";
+
+    /// Encoder che compongono la pipeline, nell'ordine in cui vengono cifrati i messaggi inviati
+    private final Encoder[] stages;
+
+    /// {@code true} se tutti gli stadi supportano i metodi con {@code ByteBuffer}
+    private final boolean buffers;
+
+    /// {@code true} se tutti gli stadi possono condividere i messaggi cifrati fra più clients
+    private final boolean shareable;
+
+    public EncoderPipeline(Encoder[] stages) {
+        this.stages = stages;
+
+        boolean buffers = true;
+        boolean shareable = true;
+        for (Encoder stage : stages) {
+            buffers &= stage.supports_buffers();
+            shareable &= stage.is_shareable();
+        }
+        this.buffers = buffers;
+        this.shareable = shareable;
+    }
+
+    /// Ritorna gli encoder che compongono la pipeline
+    Encoder[] get_stages() {
+        return stages;
+    }
+
+    @Override
+    public boolean init(byte[] shared_bytes) {
+        for (int i = 0; i < stages.length; i++) {
+            byte[] stage_bytes;
+            try {
+                stage_bytes = (shared_bytes == null)? null : stage_bytes(i, stages[i].registered_name, shared_bytes);
+            }
+            catch (GeneralSecurityException _) {
+                return false;
+            }
+
+            if (!stages[i].init(stage_bytes)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Deriva dai bytes concordati con il client quelli con cui inizializzare uno stadio, come descritto nella
+     * documentazione della classe
+     * @param index        posizione dello stadio nella pipeline
+     * @param name         nome con cui è registrato lo stadio
+     * @param shared_bytes bytes concordati con il client
+     * @return bytes dello stadio, lunghi quanto {@code shared_bytes}
+     */
+    private static byte[] stage_bytes(int index, String name, byte[] shared_bytes) throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] stage_bytes = new byte[shared_bytes.length];
+
+        for (int block = 0, pos = 0; pos < stage_bytes.length; block++, pos += digest.getDigestLength()) {
+            digest.update(ByteBuffer.allocate(4).putInt(0, index).array());
+            digest.update(name.getBytes());
+            digest.update(ByteBuffer.allocate(4).putInt(0, block).array());
+            byte[] hash = digest.digest(shared_bytes);
+
+            System.arraycopy(hash, 0, stage_bytes, pos, Math.min(hash.length, stage_bytes.length - pos));
+        }
+
+        return stage_bytes;
+    }
+
+    @Override
+    public byte[] encode(byte[] msg) {
+        for (int i = 0; i < stages.length && msg != null; i++) {
+            msg = stages[i].encode(msg);
+        }
+
+        return msg;
+    }
+
+    @Override
+    public byte[] decode(byte[] msg) {
+        for (int i = stages.length - 1; i >= 0 && msg != null; i--) {
+            msg = stages[i].decode(msg);
+        }
+
+        return msg;
+    }
+
+    @Override
+    public boolean supports_buffers() {
+        return buffers;
+    }
+
+    @Override
+    public boolean is_shareable() {
+        return shareable;
+    }
+
+    @Override
+    public int max_encoded_length(int length) {
+        for (Encoder stage : stages) {
+            length = stage.max_encoded_length(length);
+        }
+
+        return length;
+    }
+
+    @Override
+    public int max_decoded_length(int length) {
+        for (int i = stages.length - 1; i >= 0; i--) {
+            length = stages[i].max_decoded_length(length);
+        }
+
+        return length;
+    }
+
+    @Override
+    public int encode(ByteBuffer src, ByteBuffer dst) {
+        if (!buffers) {
+            return super.encode(src, dst);
+        }
+
+        MessageBuffer current = null;
+        try {
+            for (int i = 0; i < stages.length - 1; i++) {
+                ByteBuffer source = (current == null)? src : current.as_source();
+                MessageBuffer next = BufferPool.acquire(stages[i].max_encoded_length(source.remaining()));
+
+                int len = stages[i].encode(source, next.as_destination());
+                if (current != null) {
+                    current.release();
+                }
+                current = next;
+
+                if (len < 0) {
+                    return -1;
+                }
+                current.set_length(len);
+            }
+
+            return stages[stages.length - 1].encode((current == null)? src : current.as_source(), dst);
+        }
+        finally {
+            if (current != null) {
+                current.release();
+            }
+        }
+    }
+
+    @Override
+    public int decode(ByteBuffer src, ByteBuffer dst) {
+        if (!buffers) {
+            return super.decode(src, dst);
+        }
+
+        MessageBuffer current = null;
+        try {
+            for (int i = stages.length - 1; i > 0; i--) {
+                ByteBuffer source = (current == null)? src : current.as_source();
+                MessageBuffer next = BufferPool.acquire(stages[i].max_decoded_length(source.remaining()));
+
+                int len = stages[i].decode(source, next.as_destination());
+                if (current != null) {
+                    current.release();
+                }
+                current = next;
+
+                if (len < 0) {
+                    return -1;
+                }
+                current.set_length(len);
+            }
+
+            return stages[0].decode((current == null)? src : current.as_source(), dst);
+        }
+        finally {
+            if (current != null) {
+                current.release();
+            }
+        }
+    }
+}
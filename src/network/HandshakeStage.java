@@ -0,0 +1,257 @@
+package network;
+
+import files.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Esegue gli handshake dei nuovi clients, dallo scambio della session key con il connector fino all invio di
+ * "{@code log_here}", ognuno su un thread creato da {@code ClientsInterface.thread_builder()}.
+ * <p>Al massimo {@code limit} handshake possono essere in corso contemporaneamente, i clients che si collegano oltre
+ * questo limite vengono chiusi subito. Ogni handshake ha una scadenza totale e ogni messaggio atteso dal client con
+ * {@code read_message()} una scadenza per il singolo passaggio, un thread di controllo chiude i clients che superano
+ * una delle due facendo ritornare {@code null} alla lettura in corso, in modo che un client che non risponde o invia
+ * i dati molto lentamente occupi un posto solo per un tempo limitato.
+ */
+public abstract class HandshakeStage {
+    /// Ogni quanti millisecondi vengono controllate le scadenze degli handshake in corso
+    private static final long WATCHDOG_PERIOD = 100;
+
+    /// Handshake in corso
+    private static final class Attempt {
+        private final Client client;
+
+        /// Istante in millisecondi entro cui deve terminare l handshake
+        private final long deadline;
+
+        /// Istante in millisecondi entro cui deve arrivare il messaggio atteso, {@code Long.MAX_VALUE} se non ne attende
+        private volatile long step_deadline = Long.MAX_VALUE;
+
+        /// Diventa {@code true} quando il client viene chiuso per aver superato una scadenza
+        private final AtomicBoolean expired = new AtomicBoolean(false);
+
+        private Attempt(Client client, long deadline) {
+            this.client = client;
+            this.deadline = deadline;
+        }
+    }
+
+    /// Numero massimo di handshake contemporanei
+    private static volatile int limit = 256;
+
+    /// Millisecondi concessi al client per inviare ogni messaggio atteso durante l handshake
+    private static volatile long step_timeout = 5000;
+
+    /// Millisecondi concessi al client per completare l intero handshake
+    private static volatile long timeout = 15000;
+
+    /// Handshake in corso per ogni client
+    private static final Map<Client, Attempt> in_flight = new ConcurrentHashMap<>();
+
+    /// Numero di handshake in corso, incrementato prima di far partire il thread per rispettare {@code limit}
+    private static final AtomicInteger running = new AtomicInteger(0);
+
+    private static final AtomicLong completed = new AtomicLong(0);
+    private static final AtomicLong failed = new AtomicLong(0);
+    private static final AtomicLong timed_out = new AtomicLong(0);
+    private static final AtomicLong rejected = new AtomicLong(0);
+
+    /// Thread che chiude i clients che superano le scadenze, {@code null} finché non viene fatto partire
+    private static Thread watchdog = null;
+
+    /**
+     * Esegue l handshake con un nuovo client su un thread separato, se sono già in corso {@code limit} handshake il
+     * client viene chiuso senza eseguirlo
+     * @param client    client appena collegato
+     * @param handshake operazione da eseguire, ritorna {@code true} se l handshake è stato completato
+     * @return {@code true} se l handshake è partito, {@code false} se il client è stato rifiutato
+     */
+    public static boolean submit(Client client, BooleanSupplier handshake) {
+        if (!reserve()) {
+            Logger.log("troppi handshake in corso, il client: (" + client.get_name() + ") viene chiuso", true);
+            rejected.incrementAndGet();
+            client.close();
+
+            return false;
+        }
+
+        start_watchdog();
+
+        Attempt attempt = new Attempt(client, System.currentTimeMillis() + timeout);
+        in_flight.put(client, attempt);
+
+        try {
+            ClientsInterface.thread_builder("handshake " + client.get_name()).start(() -> run(attempt, handshake));
+        }
+        catch (Throwable e) {
+            Logger.log("impossibile far partire l handshake con il client: (" + client.get_name() + ")\n\t\t\t\t" + e.getMessage(), true);
+            finish(attempt, false);
+            client.close();
+
+            return false;
+        }
+
+        return true;
+    }
+
+    private static void run(Attempt attempt, BooleanSupplier handshake) {
+        boolean success = false;
+        try {
+            success = handshake.getAsBoolean();
+        }
+        catch (Exception e) {
+            Logger.log("errore durante l handshake con il client: (" + attempt.client.get_name() + ")\n\t\t\t\t" + e.getMessage(), true);
+        }
+        finally {
+            finish(attempt, success);
+        }
+    }
+
+    /// Rimuove l handshake da quelli in corso aggiornando le statistiche
+    private static void finish(Attempt attempt, boolean success) {
+        in_flight.remove(attempt.client, attempt);
+        running.decrementAndGet();
+
+        if (attempt.expired.get()) {
+            timed_out.incrementAndGet();
+        }
+        else if (success) {
+            completed.incrementAndGet();
+        }
+        else {
+            failed.incrementAndGet();
+        }
+    }
+
+    /// Incrementa gli handshake in corso se non è stato raggiunto il limite
+    private static boolean reserve() {
+        while (true) {
+            int current = running.get();
+            if (current >= limit) {
+                return false;
+            }
+
+            if (running.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Attende il prossimo messaggio dal client durante l handshake, se non arriva entro {@code step_timeout} il
+     * client viene chiuso. Chiamato fuori da un handshake eseguito da {@code submit()} equivale a
+     * {@code client.read_message()}
+     * @param client client da cui attendere il messaggio
+     * @return il messaggio ricevuto o {@code null} se il client è stato chiuso
+     */
+    public static byte[] read_message(Client client) {
+        Attempt attempt = in_flight.get(client);
+        if (attempt == null) {
+            return client.read_message();
+        }
+
+        attempt.step_deadline = System.currentTimeMillis() + step_timeout;
+        try {
+            return client.read_message();
+        }
+        finally {
+            attempt.step_deadline = Long.MAX_VALUE;
+        }
+    }
+
+    private static synchronized void start_watchdog() {
+        if (watchdog == null) {
+            watchdog = Thread.ofPlatform().name("handshake watchdog").daemon().start(HandshakeStage::check_deadlines);
+        }
+    }
+
+    /// Controlla periodicamente le scadenze degli handshake in corso chiudendo i clients che le hanno superate
+    private static void check_deadlines() {
+        while (true) {
+            try {
+                Thread.sleep(WATCHDOG_PERIOD);
+            }
+            catch (InterruptedException _) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            for (Attempt attempt : in_flight.values()) {
+                if ((now >= attempt.deadline || now >= attempt.step_deadline) && attempt.expired.compareAndSet(false, true)) {
+                    Logger.log("il client: (" + attempt.client.get_name() + ") non ha completato l handshake in tempo, viene chiuso", true);
+                    attempt.client.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Imposta il numero massimo di handshake contemporanei, gli handshake già in corso oltre il nuovo limite
+     * continuano normalmente
+     * @param new_limit numero massimo di handshake, almeno {@code 1}
+     */
+    public static void set_limit(int new_limit) {
+        limit = Math.max(1, new_limit);
+    }
+
+    /// Ritorna il numero massimo di handshake contemporanei
+    public static int get_limit() {
+        return limit;
+    }
+
+    /**
+     * Imposta i millisecondi concessi al client per inviare ogni messaggio atteso durante l handshake
+     * @param millis millisecondi per ogni passaggio, almeno {@code 1}
+     */
+    public static void set_step_timeout(long millis) {
+        step_timeout = Math.max(1, millis);
+    }
+
+    /// Ritorna i millisecondi concessi al client per inviare ogni messaggio atteso durante l handshake
+    public static long get_step_timeout() {
+        return step_timeout;
+    }
+
+    /**
+     * Imposta i millisecondi concessi al client per completare l intero handshake, ha effetto dal prossimo client
+     * @param millis millisecondi per l handshake, almeno {@code 1}
+     */
+    public static void set_timeout(long millis) {
+        timeout = Math.max(1, millis);
+    }
+
+    /// Ritorna i millisecondi concessi al client per completare l intero handshake
+    public static long get_timeout() {
+        return timeout;
+    }
+
+    /// Ritorna il numero di handshake attualmente in corso
+    public static int get_in_flight() {
+        return running.get();
+    }
+
+    /// Ritorna il numero di handshake completati con successo
+    public static long get_completed() {
+        return completed.get();
+    }
+
+    /// Ritorna il numero di handshake falliti prima di superare una scadenza
+    public static long get_failed() {
+        return failed.get();
+    }
+
+    /// Ritorna il numero di handshake interrotti per aver superato una scadenza
+    public static long get_timed_out() {
+        return timed_out.get();
+    }
+
+    /// Ritorna il numero di clients chiusi senza iniziare l handshake per aver raggiunto il limite
+    public static long get_rejected() {
+        return rejected.get();
+    }
+}
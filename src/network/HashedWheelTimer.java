@@ -0,0 +1,206 @@
+package network;
+
+import files.Logger;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timer in grado di gestire centinaia di migliaia di scadenze con un solo thread e senza un oggetto
+ * {@code ScheduledFuture} in una coda ordinata per ognuna.
+ * <p>Il tempo è diviso in tick di durata fissa e le scadenze vengono inserite in una ruota di {@code wheel_size}
+ * bucket, ognuna nel bucket del tick in cui scade e con il numero di giri completi della ruota che deve ancora
+ * attendere. A ogni tick il thread del timer scorre un solo bucket eseguendo le scadenze arrivate a zero giri, così
+ * inserire e cancellare una scadenza costa {@code O(1)} indipendentemente da quante sono in attesa, al prezzo di una
+ * precisione limitata alla durata di un tick.
+ * <p>Le nuove scadenze vengono aggiunte a una coda senza lock e spostate nella ruota dal thread del timer, quelle
+ * cancellate vengono rimosse quando il loro bucket viene scorso. Le azioni vengono eseguite dal thread del timer e
+ * devono quindi essere brevi, operazioni lunghe o bloccanti devono essere passate ad altri thread.
+ */
+public class HashedWheelTimer {
+    /// Scadenza in attesa nel timer
+    public static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+
+        /// Istante in nanosecondi, relativo a {@code System.nanoTime()}, in cui scade
+        private final long deadline;
+
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        /// Giri completi della ruota mancanti alla scadenza, utilizzato solo dal thread del timer
+        private long rounds;
+
+        /// Prossima scadenza nello stesso bucket, utilizzato solo dal thread del timer
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancella la scadenza se non è ancora stata eseguita
+         * @return {@code true} se è stata cancellata, {@code false} se era già stata eseguita o cancellata
+         */
+        public boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        /// Ritorna {@code true} se la scadenza è stata cancellata
+        public boolean is_cancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+
+    /// Timer condiviso dal server, il suo thread viene creato alla prima scadenza
+    private static final HashedWheelTimer shared = new HashedWheelTimer("server timer", 100, 512);
+
+    private final String name;
+
+    /// Durata di un tick in nanosecondi
+    private final long tick_nanos;
+
+    /// Primo elemento della lista di scadenze in ogni bucket
+    private final Timeout[] wheel;
+
+    /// {@code wheel.length - 1}, la dimensione della ruota è sempre una potenza di 2
+    private final int mask;
+
+    /// Scadenze aggiunte e non ancora inserite nella ruota
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    /// Numero di scadenze nella ruota o in attesa di esserci inserite
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    /// Thread del timer, {@code null} finché non viene aggiunta la prima scadenza
+    private Thread worker = null;
+
+    /**
+     * Crea un nuovo timer, il suo thread viene fatto partire all'aggiunta della prima scadenza
+     * @param name       nome del thread del timer
+     * @param tick       durata di un tick in millisecondi, precisione delle scadenze
+     * @param wheel_size numero di bucket della ruota, arrotondato alla potenza di 2 successiva
+     */
+    public HashedWheelTimer(String name, long tick, int wheel_size) {
+        this.name = name;
+        this.tick_nanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tick));
+
+        int buckets = Integer.highestOneBit(Math.max(1, wheel_size - 1)) << 1;
+        this.wheel = new Timeout[buckets];
+        this.mask = buckets - 1;
+    }
+
+    /// Ritorna il timer condiviso dal server
+    public static HashedWheelTimer get_shared() {
+        return shared;
+    }
+
+    /**
+     * Esegue un azione sul thread del timer dopo {@code delay} millisecondi
+     * @param task  azione da eseguire, deve essere breve
+     * @param delay millisecondi di attesa
+     * @return la scadenza creata, con cui è possibile cancellarla
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        start();
+
+        Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay)));
+        size.incrementAndGet();
+        pending.add(timeout);
+
+        return timeout;
+    }
+
+    /// Ritorna il numero di scadenze in attesa, comprese quelle cancellate non ancora rimosse
+    public int get_size() {
+        return size.get();
+    }
+
+    private synchronized void start() {
+        if (worker == null) {
+            worker = Thread.ofPlatform().name(name).daemon().start(this::run);
+        }
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+        long tick = 0;
+
+        while (true) {
+            long sleep = start + (tick + 1) * tick_nanos - System.nanoTime();
+            while (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                sleep = start + (tick + 1) * tick_nanos - System.nanoTime();
+            }
+
+            transfer_pending(start, tick);
+            expire((int) (tick & mask));
+            tick++;
+        }
+    }
+
+    /// Inserisce nella ruota le scadenze aggiunte dall ultimo tick
+    private void transfer_pending(long start, long tick) {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.is_cancelled()) {
+                size.decrementAndGet();
+                continue;
+            }
+
+            //scadenze già passate vengono eseguite in questo tick
+            long expiry_tick = Math.max((timeout.deadline - start) / tick_nanos, tick);
+            timeout.rounds = (expiry_tick - tick) / wheel.length;
+
+            int bucket = (int) (expiry_tick & mask);
+            timeout.next = wheel[bucket];
+            wheel[bucket] = timeout;
+        }
+    }
+
+    /// Scorre un bucket eseguendo le scadenze arrivate e rimuovendo quelle cancellate
+    private void expire(int bucket) {
+        Timeout previous = null;
+        Timeout timeout = wheel[bucket];
+
+        while (timeout != null) {
+            Timeout next = timeout.next;
+
+            if (timeout.is_cancelled() || timeout.rounds <= 0) {
+                if (previous == null) {
+                    wheel[bucket] = next;
+                }
+                else {
+                    previous.next = next;
+                }
+                timeout.next = null;
+                size.decrementAndGet();
+
+                if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+                    run_task(timeout);
+                }
+            }
+            else {
+                timeout.rounds--;
+                previous = timeout;
+            }
+
+            timeout = next;
+        }
+    }
+
+    private void run_task(Timeout timeout) {
+        try {
+            timeout.task.run();
+        }
+        catch (Exception e) {
+            Logger.log("errore nell eseguire una scadenza del timer: (" + name + ")\n\t\t\t\t" + e.getMessage(), true);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package network;
+
+import files.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chiude i clients che non inviano nessun messaggio per più di {@code idle_timeout} millisecondi, impostato per ogni
+ * connector, in modo che una connessione interrotta senza che il server se ne accorga non mantenga per sempre il
+ * suo listener, l utente online e i {@code cc} in attesa di risposta.
+ * <p>Ogni client viene controllato da una sola scadenza in {@code HashedWheelTimer.get_shared()}, che alla scadenza
+ * confronta l ultimo messaggio ricevuto dal client e si reinserisce per il tempo mancante. Passata metà del timeout
+ * senza messaggi il server invia al client un heartbeat {@code hb}, a cui deve rispondere con un messaggio
+ * qualsiasi, come {@code hb}. Scaduto il timeout il client viene chiuso e segue la normale disconnessione.
+ * <p>Un client può anche inviare {@code hb} di sua iniziativa per mantenere la connessione attiva, se utilizza un
+ * {@code cc} diverso da {@code 0x00} il server risponde con {@code hb} allo stesso {@code cc}.
+ */
+public abstract class IdleReaper {
+    /// Prefisso degli heartbeat
+    public static final String HEARTBEAT_PREFIX = "hb";
+
+    /// Client controllato e il suo stato
+    private static final class Watch {
+        private final Client client;
+
+        /// Millisecondi senza messaggi dopo cui il client viene chiuso
+        private final long timeout;
+
+        /// Ultima attività del client per cui è già stato inviato un heartbeat
+        private long pinged_activity = -1;
+
+        private Watch(Client client, long timeout) {
+            this.client = client;
+            this.timeout = timeout;
+        }
+    }
+
+    /// Timeout dei clients di ogni connector, i connector senza timeout non chiudono i clients inattivi
+    private static final Map<String, Long> idle_timeouts = new ConcurrentHashMap<>();
+
+    private static final AtomicLong reaped = new AtomicLong(0);
+
+    /**
+     * Imposta dopo quanti millisecondi senza messaggi vengono chiusi i clients di un connector, ha effetto dai
+     * clients che si collegano da questo momento
+     * @param connector_name nome del connector
+     * @param millis         millisecondi di inattività, {@code 0} per non chiudere mai i clients
+     */
+    public static void set_idle_timeout(String connector_name, long millis) {
+        if (millis <= 0) {
+            idle_timeouts.remove(connector_name);
+        }
+        else {
+            idle_timeouts.put(connector_name, millis);
+        }
+    }
+
+    /// Ritorna dopo quanti millisecondi senza messaggi vengono chiusi i clients di un connector, {@code 0} se mai
+    public static long get_idle_timeout(String connector_name) {
+        return idle_timeouts.getOrDefault(connector_name, 0L);
+    }
+
+    /// Ritorna il numero di clients chiusi per inattività
+    public static long get_reaped() {
+        return reaped.get();
+    }
+
+    /**
+     * Inizia a controllare un client appena completato l handshake, se il suo connector ha un timeout
+     * @param client client da controllare
+     */
+    static void watch(Client client) {
+        long timeout = get_idle_timeout(client.get_connector_name());
+        if (timeout > 0) {
+            Watch watch = new Watch(client, timeout);
+            HashedWheelTimer.get_shared().schedule(() -> check(watch), timeout / 2);
+        }
+    }
+
+    /// Chiamato dal timer, chiude il client se è inattivo da troppo tempo o invia un heartbeat a metà del timeout
+    private static void check(Watch watch) {
+        Client client = watch.client;
+        if (client.is_disconnected()) {
+            return;
+        }
+
+        long last_activity = client.get_last_activity();
+        long idle = System.currentTimeMillis() - last_activity;
+
+        if (idle >= watch.timeout) {
+            Logger.log("il client: (" + client.get_name() + ") non invia messaggi da " + idle + "ms, viene chiuso", true);
+            reaped.incrementAndGet();
+            client.close();
+
+            return;
+        }
+
+        long next_check;
+        if (idle >= watch.timeout / 2) {
+            if (watch.pinged_activity != last_activity) {
+                watch.pinged_activity = last_activity;
+
+                //l invio potrebbe bloccare, non viene eseguito dal thread del timer
+                ClientsInterface.schedule_task(() -> client.send(HEARTBEAT_PREFIX.getBytes()));
+            }
+            next_check = watch.timeout - idle;
+        }
+        else {
+            next_check = watch.timeout / 2 - idle;
+        }
+
+        HashedWheelTimer.get_shared().schedule(() -> check(watch), next_check);
+    }
+
+    /// Azione registrata al prefisso {@code hb}, l attività del client è già aggiornata alla ricezione del messaggio
+    static void on_heartbeat(Client client, byte cc, ByteBuffer payload) {
+        if (cc != 0x00) {
+            client.send(HEARTBEAT_PREFIX.getBytes(), cc);
+        }
+    }
+}
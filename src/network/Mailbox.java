@@ -0,0 +1,60 @@
+package network;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mailbox di un client utilizzata quando {@code ClientsInterface} è impostato per processare i messaggi di ogni
+ * client in ordine, contiene i messaggi ricevuti dal client mentre un altro suo messaggio è nel backlog o in
+ * processing da un worker thread.
+ * <p>Per ogni client c'è al massimo un messaggio nel backlog o in processing, il prossimo viene preso dalla mailbox
+ * solo una volta finito il precedente, così i messaggi di uno stesso client non vengono mai processati in
+ * contemporanea o in ordine diverso da quello di arrivo.
+ * <p>Con la policy {@code BACKLOG_FAIR} di {@code ClientsInterface} la mailbox è anche la coda del client nel deficit
+ * round robin, e mantiene il credito rimasto al client nel turno in corso.
+ */
+class Mailbox {
+    /// Messaggi in attesa che venga processato quello precedente
+    private final ConcurrentLinkedQueue<WorkData> queue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Numero di messaggi nella mailbox più quello nel backlog o in processing, un messaggio viene aggiunto alla queue
+     * prima di incrementare questo contatore e quindi se è {@code > 0} dopo averlo decrementato la queue contiene
+     * sicuramente un elemento
+     */
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    /**
+     * Credito in bytes del client nel deficit round robin, utilizzato solo dal worker che sta processando il suo
+     * messaggio e azzerato quando la mailbox si riattiva dopo essere rimasta vuota
+     */
+    int deficit = 0;
+
+    /**
+     * Aggiunge un messaggio alla mailbox
+     * @param data messaggio ricevuto dal client
+     * @return il messaggio da inserire nel backlog se nessun altro messaggio del client era in attesa, altrimenti
+     * {@code null} e il messaggio verrà inserito nel backlog una volta finiti i precedenti
+     */
+    public WorkData add(WorkData data) {
+        queue.add(data);
+
+        if (size.getAndIncrement() == 0) {
+            deficit = 0; //nessun worker sta utilizzando la mailbox
+            return queue.poll();
+        }
+        return null;
+    }
+
+    /**
+     * Chiamato una volta finito di processare un messaggio del client, o se non è stato possibile inserirlo nel
+     * backlog
+     * @return il prossimo messaggio da inserire nel backlog o {@code null} se la mailbox è vuota
+     */
+    public WorkData done() {
+        if (size.decrementAndGet() > 0) {
+            return queue.poll();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,151 @@
+package network;
+
+import files.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Contiene un messaggio ricevuto da un client mentre passa dal connector a {@code WorkData} e all'azione che lo
+ * processa, evitando di copiarlo a ogni passaggio.
+ * <p>I buffers sono ottenuti da {@code BufferPool.acquire()} e hanno un contatore di riferimenti, ogni oggetto che
+ * lo mantiene chiama {@code retain()} e una volta finito {@code release()}. Quando nessuno lo utilizza più il buffer
+ * torna nel pool per essere riutilizzato, e da quel momento non deve più essere letto.
+ */
+public final class MessageBuffer {
+    /// Array che contiene il messaggio, può essere più grande del messaggio stesso
+    private final byte[] data;
+
+    /// Classe di dimensione del pool a cui appartiene il buffer, {@code -1} se non appartiene al pool
+    private final int size_class;
+
+    /// Posizione in {@code data} del primo byte del messaggio
+    private int offset;
+
+    /// Lunghezza del messaggio
+    private int length;
+
+    /// Numero di riferimenti al buffer, una volta a zero il buffer torna nel pool
+    private final AtomicInteger refs = new AtomicInteger(0);
+
+    MessageBuffer(byte[] data, int size_class) {
+        this.data = data;
+        this.size_class = size_class;
+    }
+
+    /**
+     * Crea un buffer che non appartiene al pool contenente {@code msg} senza copiarlo, il buffer ha già un
+     * riferimento
+     * @param msg messaggio da contenere nel buffer
+     * @return buffer contenente il messaggio
+     */
+    public static MessageBuffer wrap(byte[] msg) {
+        MessageBuffer buffer = new MessageBuffer(msg, -1);
+        buffer.reset(msg.length);
+
+        return buffer;
+    }
+
+    /// Prepara il buffer a contenere un messaggio di {@code length} bytes con un solo riferimento
+    void reset(int length) {
+        this.offset = 0;
+        this.length = length;
+        refs.set(1);
+    }
+
+    /// Ritorna la classe di dimensione del pool a cui appartiene il buffer, {@code -1} se non appartiene al pool
+    int get_size_class() {
+        return size_class;
+    }
+
+    /// Aggiunge un riferimento al buffer, ogni chiamata deve essere seguita da una chiamata a {@code release()}
+    public void retain() {
+        if (refs.getAndIncrement() <= 0) {
+            Logger.log("tentativo di utilizzare un buffer già rilasciato", true);
+            throw new RuntimeException("il buffer è già stato rilasciato");
+        }
+    }
+
+    /// Rimuove un riferimento al buffer, una volta rimossi tutti il buffer torna nel pool
+    public void release() {
+        int left = refs.decrementAndGet();
+
+        if (left == 0) {
+            BufferPool.recycle(this);
+        }
+        else if (left < 0) {
+            Logger.log("un buffer è stato rilasciato più volte di quelle in cui è stato trattenuto", true);
+        }
+    }
+
+    /// Ritorna l'array che contiene il messaggio, il messaggio inizia a {@code offset()} ed è lungo {@code length()}
+    public byte[] array() {
+        return data;
+    }
+
+    /// Ritorna la posizione nell'array del primo byte del messaggio
+    public int offset() {
+        return offset;
+    }
+
+    /// Ritorna la lunghezza del messaggio
+    public int length() {
+        return length;
+    }
+
+    /// Ritorna la capacità massima dell'array che contiene il messaggio
+    public int capacity() {
+        return data.length;
+    }
+
+    /// Ritorna il byte del messaggio alla posizione {@code index}
+    public byte get(int index) {
+        return data[offset + index];
+    }
+
+    /**
+     * Scarta i primi bytes del messaggio senza copiarlo, utilizzato per rimuovere il {@code cc} o un prefisso
+     * @param n numero di bytes da scartare
+     */
+    public void skip(int n) {
+        offset += n;
+        length -= n;
+    }
+
+    /**
+     * Ritorna una vista in sola lettura del messaggio senza copiarlo, valida finché il buffer non viene rilasciato
+     * @return vista del messaggio
+     */
+    public ByteBuffer view() {
+        return ByteBuffer.wrap(data, offset, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Ritorna un buffer modificabile che contiene il messaggio senza copiarlo, utilizzato come sorgente dagli encoder.
+     * A differenza di {@code view()} permette a {@code Cipher} di leggere direttamente l'array
+     * @return buffer con posizione all'inizio del messaggio e limite alla sua fine
+     */
+    ByteBuffer as_source() {
+        return ByteBuffer.wrap(data, offset, length);
+    }
+
+    /**
+     * Ritorna un buffer in cui scrivere un nuovo messaggio dall'inizio di questo buffer fino alla fine dell'array,
+     * una volta scritto la lunghezza deve essere impostata con {@code set_length()}
+     * @return buffer con posizione all'inizio del messaggio
+     */
+    ByteBuffer as_destination() {
+        return ByteBuffer.wrap(data, offset, data.length - offset);
+    }
+
+    /// Imposta la lunghezza del messaggio una volta scritto con {@code as_destination()}
+    void set_length(int length) {
+        this.length = length;
+    }
+
+    /// Ritorna una copia del messaggio
+    public byte[] to_array() {
+        return Arrays.copyOfRange(data, offset, offset + length);
+    }
+}
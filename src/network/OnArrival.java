@@ -1,9 +1,26 @@
 package network;
 
+import java.nio.ByteBuffer;
+
 /**
  * Utilizzato nelle conversazioni con il server per registrare delle azioni da eseguire una volta ricevuto una
  * risposta a una certo conv code
  */
 public interface OnArrival {
     void on_arrival(Client client, byte conv_code, byte[] msg);
+
+    /**
+     * Chiamato dai worker threads con una vista in sola lettura della risposta, valida solo durante la chiamata. Di
+     * default la copia e chiama {@code on_arrival()}, le azioni che non hanno bisogno di mantenere il messaggio
+     * possono sovrascriverlo per evitare la copia
+     * @param client    client che ha inviato la risposta
+     * @param conv_code cc della conversazione
+     * @param payload   vista della risposta
+     */
+    default void on_arrival_buffer(Client client, byte conv_code, ByteBuffer payload) {
+        byte[] msg = new byte[payload.remaining()];
+        payload.get(msg);
+
+        on_arrival(client, conv_code, msg);
+    }
 }
\ No newline at end of file
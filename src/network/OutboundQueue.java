@@ -0,0 +1,198 @@
+package network;
+
+import files.Logger;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Coda dei messaggi in uscita di un client, utilizzata quando è impostata una capacità con
+ * {@code Client.set_outbound_queue()}.
+ * <p>{@code Client.send()} aggiunge il messaggio alla coda e ritorna subito, un thread di {@code flushers}, o un
+ * virtual thread se il server li utilizza, cifra e invia tutti i messaggi accumulati passandoli insieme a
+ * {@code Client.direct_send(byte[][])}, in modo che i connector possano scriverli con una sola operazione. Mentre un
+ * invio è in corso i nuovi messaggi si accumulano e vengono inviati tutti insieme al giro successivo.
+ * <p>Se il connector segnala che il client non sta leggendo i dati con {@code Client.is_writable()} i messaggi
+ * rimangono in coda finché non viene chiamato {@code Client.on_writable()}, una volta piena si comporta secondo la
+ * policy del client.
+ */
+class OutboundQueue {
+    /// Numero massimo di messaggi inviati insieme
+    private static final int MAX_BATCH = 64;
+
+    /**
+     * Platform threads che inviano i messaggi in coda di tutti i clients, riutilizzati fra un invio e l altro invece
+     * di crearne uno nuovo ogni volta, quelli inattivi per più di un minuto vengono terminati
+     */
+    private static final ExecutorService flushers = Executors.newCachedThreadPool(
+            Thread.ofPlatform().name("outbound flusher ", 0).daemon().factory()
+    );
+
+    /// Client a cui inviare i messaggi
+    private final Client client;
+
+    /// Messaggi in attesa di essere inviati, già concatenati al loro {@code cc} ma non ancora cifrati
+    private final ArrayBlockingQueue<byte[]> queue;
+
+    /// Cosa fare quando la coda è piena, uno fra {@code Client.OUTBOUND_DROP}, {@code OUTBOUND_DISCONNECT}, {@code OUTBOUND_BLOCK}
+    private final int policy;
+
+    /// {@code true} mentre un thread sta inviando i messaggi in coda
+    private final AtomicBoolean flushing = new AtomicBoolean(false);
+
+    /// Messaggi estratti dalla coda da inviare insieme, utilizzato solo dal thread che sta inviando
+    private final ArrayList<byte[]> batch = new ArrayList<>(MAX_BATCH);
+
+    /// Diventa {@code true} alla disconnessione del client
+    private volatile boolean closed = false;
+
+    public OutboundQueue(Client client, int capacity, int policy) {
+        this.client = client;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+    }
+
+    /**
+     * Aggiunge un messaggio alla coda e se necessario fa partire un thread per inviarlo
+     * @param msg messaggio da inviare, già concatenato al suo {@code cc}
+     */
+    public void add(byte[] msg) {
+        if (closed) {
+            return;
+        }
+
+        if (!queue.offer(msg)) {
+            switch (policy) {
+                case Client.OUTBOUND_DISCONNECT -> {
+                    Logger.log("la coda dei messaggi in uscita al client: (" + client.get_name() + ") è piena, viene disconnesso", true);
+                    client.close();
+                    return;
+                }
+                case Client.OUTBOUND_BLOCK -> {
+                    if (!wait_space(msg)) {
+                        return;
+                    }
+                }
+                default -> {
+                    Logger.log("la coda dei messaggi in uscita al client: (" + client.get_name() + ") è piena, il messaggio viene scartato", true);
+                    return;
+                }
+            }
+        }
+
+        schedule();
+    }
+
+    /**
+     * Attende che si liberi spazio nella coda per aggiungere il messaggio, utilizzato con la policy
+     * {@code OUTBOUND_BLOCK}
+     * @return {@code true} se il messaggio è stato aggiunto, {@code false} se il client è stato disconnesso o il
+     * thread interrotto durante l'attesa
+     */
+    private boolean wait_space(byte[] msg) {
+        schedule(); //la coda potrebbe essere piena mentre nessuno la sta svuotando
+
+        try {
+            while (!queue.offer(msg, 50, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        catch (InterruptedException _) {
+            Logger.log("interrotta l'attesa per inviare un messaggio al client: (" + client.get_name() + ")", true);
+            return false;
+        }
+    }
+
+    /**
+     * Se nessuno sta inviando i messaggi in coda e il client può riceverli li fa inviare da un thread di
+     * {@code flushers}, o da un nuovo virtual thread se il server li utilizza
+     */
+    public void schedule() {
+        if (!closed && !queue.isEmpty() && client.is_writable() && flushing.compareAndSet(false, true)) {
+            if (ClientsInterface.use_virtual_threads()) {
+                Thread.ofVirtual().name("outbound " + client.get_name()).start(this::flush);
+            }
+            else {
+                flushers.execute(this::flush);
+            }
+        }
+    }
+
+    /// Invia i messaggi in coda in gruppi di al massimo {@code MAX_BATCH} finché la coda non è vuota
+    private void flush() {
+        try {
+            while (!closed && client.is_writable()) {
+                queue.drainTo(batch, MAX_BATCH);
+                if (batch.isEmpty()) {
+                    break;
+                }
+
+                byte[][] msgs = batch.toArray(new byte[0][]);
+                batch.clear();
+
+                client.write_batch(msgs);
+            }
+        }
+        catch (Exception e) {
+            Logger.log("errore nell'invio dei messaggi in coda al client: (" + client.get_name() + ")\n\t\t\t\t" + e.getMessage(), true);
+        }
+        finally {
+            batch.clear();
+            flushing.set(false);
+        }
+
+        //messaggi aggiunti dopo aver trovato la coda vuota ma prima di aver liberato flushing
+        schedule();
+    }
+
+    /**
+     * Invia dal thread chiamante tutti i messaggi in coda seguiti da {@code last}, attendendo che finisca l invio in
+     * corso per mantenerne l ordine. Utilizzato prima di chiudere il client, poiché {@code close()} scarta i messaggi
+     * rimasti in coda
+     * @param last     ultimo messaggio da inviare, già concatenato al suo {@code cc}
+     * @param deadline istante in {@code System.nanoTime()} dopo cui smette di attendere l invio in corso
+     * @return {@code true} se i messaggi sono stati inviati, {@code false} se l invio in corso non è finito in tempo o
+     * il client è già disconnesso
+     */
+    public boolean flush_now(byte[] last, long deadline) {
+        while (!flushing.compareAndSet(false, true)) {
+            if (closed || System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        try {
+            queue.drainTo(batch);
+            batch.add(last);
+
+            byte[][] msgs = batch.toArray(new byte[0][]);
+            batch.clear();
+
+            client.write_batch(msgs);
+            return true;
+        }
+        catch (Exception e) {
+            Logger.log("errore nell'invio dei messaggi in coda al client: (" + client.get_name() + ")\n\t\t\t\t" + e.getMessage(), true);
+            return false;
+        }
+        finally {
+            batch.clear();
+            flushing.set(false);
+        }
+    }
+
+    /// Chiamato alla disconnessione del client, scarta i messaggi in coda
+    public void close() {
+        closed = true;
+        queue.clear();
+    }
+}
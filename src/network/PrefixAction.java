@@ -0,0 +1,13 @@
+package network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Azione registrata a un prefisso con {@code WorkerThread.add_prefix_handler()}, riceve il payload del messaggio
+ * senza che venga copiato.
+ * <p>{@code payload} è una vista in sola lettura valida solo durante la chiamata, per utilizzarne il contenuto più
+ * tardi deve essere copiato
+ */
+public interface PrefixAction {
+    void on_message(Client client, byte conv_code, ByteBuffer payload);
+}
@@ -0,0 +1,229 @@
+package network;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Associa ai prefissi dei messaggi {@code prefix;payload} le azioni registrate, la lane del backlog in cui inserirli e
+ * cosa fare dei messaggi rimasti troppo nel backlog, confrontando direttamente i bytes del messaggio senza costruire
+ * stringhe o copiare il payload.
+ * <p>Ogni volta che viene registrata un azione viene ricompilato un albero immutabile con un nodo per ogni byte dei
+ * prefissi, i worker threads lo percorrono senza lock leggendo una sola volta il riferimento alla radice.
+ */
+class PrefixRouter {
+    /// Nodo dell'albero dei prefissi, immutabile una volta costruito
+    static final class Node {
+        /// Bytes che portano ai nodi figli, ordinati
+        private final byte[] keys;
+
+        /// Nodi figli, {@code children[i]} è raggiunto con il byte {@code keys[i]}
+        private final Node[] children;
+
+        /// Azioni registrate al prefisso che termina in questo nodo, {@code null} se nessun prefisso termina qui
+        private final PrefixAction[] actions;
+
+        /// Lunghezza in bytes del prefisso che termina in questo nodo
+        private final int depth;
+
+        /// Lane del backlog in cui inserire i messaggi con il prefisso che termina in questo nodo, {@code -1} se non impostata
+        private final int lane;
+
+        /// Cosa fare dei messaggi con il prefisso che termina in questo nodo se il backlog è in ritardo, {@code -1} se non impostato
+        private final int overload;
+
+        private Node(byte[] keys, Node[] children, PrefixAction[] actions, int depth, int lane, int overload) {
+            this.keys = keys;
+            this.children = children;
+            this.actions = actions;
+            this.depth = depth;
+            this.lane = lane;
+            this.overload = overload;
+        }
+
+        /// Ritorna il figlio raggiunto con il byte {@code b} o {@code null} se non esiste
+        private Node child(byte b) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == b) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        /// Ritorna le azioni registrate al prefisso che termina in questo nodo, o {@code null}
+        public PrefixAction[] get_actions() {
+            return actions;
+        }
+
+        /// Ritorna la lunghezza in bytes del prefisso che termina in questo nodo
+        public int get_depth() {
+            return depth;
+        }
+    }
+
+    /// Mappa fra ogni prefisso registrato e le azioni a lui legate, utilizzata per ricompilare l'albero
+    private final Map<String, PrefixAction[]> registered = new LinkedHashMap<>();
+
+    /// Mappa fra i prefissi a cui è stata assegnata una lane del backlog e la lane
+    private final Map<String, Integer> lanes = new LinkedHashMap<>();
+
+    /// Mappa fra i prefissi a cui è stato assegnato cosa fare con il backlog in ritardo e l azione assegnata
+    private final Map<String, Integer> overloads = new LinkedHashMap<>();
+
+    /// Radice dell'albero compilato
+    private volatile Node root = new Node(new byte[0], new Node[0], null, 0, -1, -1);
+
+    /**
+     * Aggiunge un azione a un prefisso e ricompila l'albero
+     * @param prefix prefisso, non può contenere {@code ;}
+     * @param action azione da aggiungere
+     */
+    public synchronized void add(String prefix, PrefixAction action) {
+        PrefixAction[] actions = registered.getOrDefault(prefix, new PrefixAction[0]);
+        actions = Arrays.copyOf(actions, actions.length + 1);
+        actions[actions.length - 1] = action;
+        registered.put(prefix, actions);
+
+        root = compile();
+    }
+
+    /**
+     * Assegna una lane del backlog ai messaggi con un prefisso e ricompila l'albero
+     * @param prefix prefisso, non può contenere {@code ;}
+     * @param lane   lane in cui inserire i messaggi, {@code -1} per utilizzare quella predefinita
+     */
+    public synchronized void set_lane(String prefix, int lane) {
+        if (lane < 0) {
+            lanes.remove(prefix);
+        }
+        else {
+            lanes.put(prefix, lane);
+        }
+
+        root = compile();
+    }
+
+    /**
+     * Assegna ai messaggi con un prefisso cosa fare se rimangono troppo nel backlog e ricompila l'albero
+     * @param prefix   prefisso, non può contenere {@code ;}
+     * @param overload azione da eseguire, {@code -1} per utilizzare quella predefinita
+     */
+    public synchronized void set_overload(String prefix, int overload) {
+        if (overload < 0) {
+            overloads.remove(prefix);
+        }
+        else {
+            overloads.put(prefix, overload);
+        }
+
+        root = compile();
+    }
+
+    /**
+     * Cerca la lane assegnata al prefisso del messaggio come {@code match()}, senza eseguire allocazioni
+     * @return la lane del prefisso o {@code default_lane} se al prefisso non è assegnata una lane
+     */
+    public int lane_of(byte[] msg, int offset, int length, int default_lane) {
+        Node node = walk(msg, offset, length);
+        return (node == null || node.lane < 0)? default_lane : node.lane;
+    }
+
+    /**
+     * Cerca cosa fare del messaggio se il backlog è in ritardo come {@code match()}, senza eseguire allocazioni
+     * @return l azione assegnata al prefisso o {@code default_overload} se al prefisso non è assegnata
+     */
+    public int overload_of(byte[] msg, int offset, int length, int default_overload) {
+        Node node = walk(msg, offset, length);
+        return (node == null || node.overload < 0)? default_overload : node.overload;
+    }
+
+    /// Percorre l'albero con il prefisso del messaggio, ritorna il nodo in cui termina o {@code null} se non esiste
+    private Node walk(byte[] msg, int offset, int length) {
+        Node node = root;
+
+        for (int i = offset; i < offset + length; i++) {
+            byte b = msg[i];
+            if (b == ';') {
+                break;
+            }
+
+            node = node.child(b);
+            if (node == null) {
+                return null;
+            }
+        }
+
+        return node;
+    }
+
+    /**
+     * Cerca il prefisso del messaggio, formattato come {@code prefix;payload} o {@code prefix}, fra quelli registrati.
+     * Non esegue allocazioni
+     * @param msg    array contenente il messaggio ricevuto dal client
+     * @param offset posizione in {@code msg} del primo byte del messaggio
+     * @param length lunghezza del messaggio
+     * @return il nodo in cui termina il prefisso o {@code null} se il prefisso del messaggio non è registrato
+     */
+    public Node match(byte[] msg, int offset, int length) {
+        Node node = walk(msg, offset, length);
+        return (node == null || node.actions == null)? null : node;
+    }
+
+    /// Costruisce un nuovo albero con tutti i prefissi registrati
+    private Node compile() {
+        Builder root_builder = new Builder();
+
+        for (Map.Entry<String, PrefixAction[]> entry : registered.entrySet()) {
+            Builder node = root_builder;
+            for (byte b : entry.getKey().getBytes()) {
+                node = node.children.computeIfAbsent(b, _ -> new Builder());
+            }
+
+            node.actions = entry.getValue();
+        }
+
+        for (Map.Entry<String, Integer> entry : lanes.entrySet()) {
+            Builder node = root_builder;
+            for (byte b : entry.getKey().getBytes()) {
+                node = node.children.computeIfAbsent(b, _ -> new Builder());
+            }
+
+            node.lane = entry.getValue();
+        }
+
+        for (Map.Entry<String, Integer> entry : overloads.entrySet()) {
+            Builder node = root_builder;
+            for (byte b : entry.getKey().getBytes()) {
+                node = node.children.computeIfAbsent(b, _ -> new Builder());
+            }
+
+            node.overload = entry.getValue();
+        }
+
+        return root_builder.build(0);
+    }
+
+    /// Nodo modificabile utilizzato durante la compilazione dell'albero
+    private static final class Builder {
+        private final TreeMap<Byte, Builder> children = new TreeMap<>();
+        private PrefixAction[] actions = null;
+        private int lane = -1;
+        private int overload = -1;
+
+        private Node build(int depth) {
+            byte[] keys = new byte[children.size()];
+            Node[] nodes = new Node[children.size()];
+
+            int i = 0;
+            for (Map.Entry<Byte, Builder> child : children.entrySet()) {
+                keys[i] = child.getKey();
+                nodes[i] = child.getValue().build(depth + 1);
+                i++;
+            }
+
+            return new Node(keys, nodes, actions, depth, lane, overload);
+        }
+    }
+}
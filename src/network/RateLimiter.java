@@ -0,0 +1,175 @@
+package network;
+
+import files.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limita il numero di messaggi al secondo che ogni client e ogni connector possono inviare ai worker threads, in
+ * modo che un singolo client non possa riempire il backlog condiviso facendo perdere i messaggi di tutti gli altri.
+ * <p>Ogni client ha un suo {@code TokenBucket} creato alla connessione con il limite impostato in quel momento, e
+ * ogni connector può avere un bucket condiviso da tutti i suoi clients. Un messaggio viene inoltrato ai workers solo
+ * se entrambi i bucket lo permettono, altrimenti si segue la policy impostata:
+ * <ul>
+ *     <li>{@code RATE_DELAY}: il messaggio viene processato ma il client smette di essere letto finché non torna
+ *     entro il limite, con {@code Client.throttle()}</li>
+ *     <li>{@code RATE_DROP}: il messaggio viene scartato, se il client attende una risposta riceve
+ *     {@code fail:limite di messaggi superato}, altrimenti riceve {@code rate_limited} solo al primo messaggio
+ *     scartato dopo uno permesso, anche se il limite superato è quello del connector</li>
+ *     <li>{@code RATE_DISCONNECT}: il client viene chiuso</li>
+ * </ul>
+ * Un messaggio rifiutato da uno dei bucket non consuma il token dell altro.
+ * Le risposte a messaggi inviati dal server con un {@code cc} non vengono limitate.
+ */
+public abstract class RateLimiter {
+    /// Superato il limite il client smette di essere letto finché non torna entro il limite
+    public static final int RATE_DELAY = 0;
+
+    /// Superato il limite il messaggio viene scartato notificando il client
+    public static final int RATE_DROP = 1;
+
+    /// Superato il limite il client viene disconnesso
+    public static final int RATE_DISCONNECT = 2;
+
+    /// Messaggi al secondo permessi a ogni nuovo client, {@code 0} per nessun limite
+    private static volatile double client_rate = 0;
+
+    /// Messaggi consecutivi permessi a ogni nuovo client prima di applicare il limite
+    private static volatile int client_burst = 64;
+
+    /// Cosa fare con i messaggi oltre il limite
+    private static volatile int policy = RATE_DELAY;
+
+    /// Bucket condiviso dai clients di ogni connector con un limite
+    private static final Map<String, TokenBucket> connector_buckets = new ConcurrentHashMap<>();
+
+    /// Messaggi al secondo permessi a ogni connector con un limite
+    private static final Map<String, Double> connector_rates = new ConcurrentHashMap<>();
+
+    /// Ritorna un bucket con il limite attuale per un nuovo client, o {@code null} se non è impostato un limite
+    static TokenBucket new_client_bucket() {
+        double rate = client_rate;
+        return (rate > 0)? new TokenBucket(rate, client_burst) : null;
+    }
+
+    /**
+     * Controlla se un messaggio ricevuto da un client può essere inoltrato ai worker threads, altrimenti applica la
+     * policy impostata
+     * @param client client che ha inviato il messaggio
+     * @param bucket bucket del client, {@code null} se il client non ha un limite
+     * @param cc     {@code cc} del messaggio
+     * @return {@code true} se il messaggio deve essere processato, {@code false} se deve essere scartato
+     */
+    static boolean admit(Client client, TokenBucket bucket, byte cc) {
+        TokenBucket connector_bucket = connector_buckets.get(client.get_connector_name());
+        if (bucket == null && connector_bucket == null) {
+            return true;
+        }
+
+        int current_policy = policy;
+        boolean reserve = current_policy == RATE_DELAY;
+
+        long wait = 0;
+        if (bucket != null) {
+            wait = bucket.acquire(reserve);
+        }
+        if (connector_bucket != null && (wait == 0 || reserve)) {
+            long connector_wait = connector_bucket.acquire(reserve);
+
+            //il messaggio viene rifiutato dal connector, non deve contare nel limite del client
+            if (connector_wait > 0 && !reserve && bucket != null) {
+                bucket.refund();
+            }
+            wait = Math.max(wait, connector_wait);
+        }
+
+        if (wait == 0) {
+            client.clear_rate_notified();
+            return true;
+        }
+
+        switch (current_policy) {
+            case RATE_DELAY -> {
+                client.throttle(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                return true;
+            }
+            case RATE_DISCONNECT -> {
+                Logger.log("il client: (" + client.get_name() + ") ha superato il limite di messaggi, viene disconnesso", true);
+                client.close();
+            }
+            default -> {
+                if (cc != 0x00) {
+                    client.send("fail:limite di messaggi superato".getBytes(), cc);
+                }
+                else if (client.mark_rate_notified()) {
+                    Logger.log("il client: (" + client.get_name() + ") ha superato il limite di messaggi, i suoi messaggi vengono scartati", true);
+                    client.send("rate_limited".getBytes());
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Imposta il limite di messaggi dei clients che si connetteranno da ora in poi
+     * @param rate  messaggi al secondo, {@code 0} per nessun limite
+     * @param burst messaggi consecutivi permessi prima di applicare il limite, almeno {@code 1}
+     */
+    public static void set_client_limit(double rate, int burst) {
+        client_rate = Math.max(0, rate);
+        client_burst = Math.max(1, burst);
+    }
+
+    /// Ritorna i messaggi al secondo permessi a ogni nuovo client, {@code 0} se non c'è un limite
+    public static double get_client_rate() {
+        return client_rate;
+    }
+
+    /// Ritorna i messaggi consecutivi permessi a ogni nuovo client prima di applicare il limite
+    public static int get_client_burst() {
+        return client_burst;
+    }
+
+    /**
+     * Imposta il limite di messaggi condiviso da tutti i clients di un connector, i picchi permessi corrispondono a
+     * un secondo di messaggi
+     * @param connector_name nome del connector
+     * @param rate           messaggi al secondo, {@code 0} per nessun limite
+     */
+    public static void set_connector_limit(String connector_name, double rate) {
+        if (rate <= 0) {
+            connector_rates.remove(connector_name);
+            connector_buckets.remove(connector_name);
+            return;
+        }
+
+        connector_rates.put(connector_name, rate);
+        connector_buckets.put(connector_name, new TokenBucket(rate, (int) Math.ceil(rate)));
+    }
+
+    /// Ritorna i messaggi al secondo permessi ai clients di un connector, {@code 0} se non c'è un limite
+    public static double get_connector_rate(String connector_name) {
+        return connector_rates.getOrDefault(connector_name, 0.0);
+    }
+
+    /**
+     * Imposta cosa fare con i messaggi oltre il limite
+     * @param new_policy {@code RATE_DELAY}, {@code RATE_DROP} o {@code RATE_DISCONNECT}
+     */
+    public static void set_policy(int new_policy) {
+        if (new_policy < RATE_DELAY || new_policy > RATE_DISCONNECT) {
+            Logger.log("impossibile impostare la policy del limite di messaggi: " + new_policy, true);
+            return;
+        }
+
+        policy = new_policy;
+    }
+
+    /// Ritorna cosa viene fatto con i messaggi oltre il limite
+    public static int get_policy() {
+        return policy;
+    }
+}
@@ -0,0 +1,221 @@
+package network;
+
+import files.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Crea e verifica i ticket con cui un client già collegato in precedenza può riprendere la sessione con un solo
+ * messaggio, senza ripetere encoder agreement e login.
+ * <p>Ogni ticket contiene il nome dell encoder utilizzato dal client, il nome dell utente e un segreto di
+ * {@code 32 bytes} generato per il ticket, il tutto cifrato con {@code AES-GCM} da una chiave generata all'avvio del
+ * server e conosciuta solo da esso, i ticket non sono quindi più validi dopo un riavvio. Il segreto viene inviato al
+ * client assieme al ticket e alla ripresa della sessione viene utilizzato per derivare i bytes con cui inizializzare
+ * un nuovo encoder, in modo che solo chi lo conosce possa utilizzare la sessione ripresa.
+ * <p>Ogni ticket può essere utilizzato una volta sola: il suo nonce viene ricordato fino alla scadenza e un ticket già
+ * presentato viene rifiutato, il client riceve un nuovo ticket a ogni sessione ripresa.
+ */
+public abstract class ResumptionTickets {
+    /// Contenuto di un ticket valido
+    static final class Ticket {
+        final String encoder_name;
+        final String uname;
+        final byte[] secret;
+
+        private Ticket(String encoder_name, String uname, byte[] secret) {
+            this.encoder_name = encoder_name;
+            this.uname = uname;
+            this.secret = secret;
+        }
+    }
+
+    /// Lunghezza in bytes del segreto di ogni ticket
+    static final int SECRET_SIZE = 32;
+
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_SIZE = 16;
+
+    /// Millisecondi di validità di un ticket dalla sua creazione, con {@code 0} non vengono creati ticket
+    private static volatile long lifetime = 12 * 60 * 60 * 1000;
+
+    /// Se {@code true} un client che riprende la sessione viene riportato nell utente del ticket senza login
+    private static volatile boolean restore_login = true;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /// Nonce dei ticket già utilizzati e la loro scadenza, per rifiutarli se vengono presentati di nuovo
+    private static final Map<ByteBuffer, Long> used_tickets = new ConcurrentHashMap<>();
+
+    /// Ogni quanti ticket utilizzati vengono rimossi da {@code used_tickets} quelli scaduti
+    private static final int PRUNE_INTERVAL = 1024;
+
+    private static final AtomicInteger used_count = new AtomicInteger(0);
+
+    /// Chiave con cui vengono cifrati i ticket
+    private static final SecretKeySpec server_key;
+
+    static {
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+
+        server_key = new SecretKeySpec(key, "AES");
+        Arrays.fill(key, (byte) 0);
+    }
+
+    /**
+     * Crea un nuovo ticket per un client che ha eseguito il login
+     * @param encoder_name nome dell encoder utilizzato dal client
+     * @param uname        nome dell utente del client
+     * @return {@code [segreto, ticket]} o {@code null} se i ticket sono disattivati o non è stato possibile crearlo
+     */
+    static byte[][] issue(String encoder_name, String uname) {
+        if (lifetime == 0 || encoder_name == null) {
+            return null;
+        }
+
+        byte[] secret = new byte[SECRET_SIZE];
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(secret);
+        random.nextBytes(nonce);
+
+        byte[] name = encoder_name.getBytes();
+        byte[] user = uname.getBytes();
+
+        //scadenza | segreto | encoder | 0x00 | utente
+        ByteBuffer plain = ByteBuffer.allocate(Long.BYTES + SECRET_SIZE + name.length + 1 + user.length);
+        plain.putLong(System.currentTimeMillis() + lifetime).put(secret).put(name).put((byte) 0x00).put(user);
+
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, server_key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+
+            byte[] ticket = Arrays.copyOf(nonce, NONCE_SIZE + plain.capacity() + TAG_SIZE);
+            cipher.doFinal(plain.array(), 0, plain.capacity(), ticket, NONCE_SIZE);
+
+            return new byte[][] {secret, ticket};
+        }
+        catch (Exception e) {
+            Logger.log("impossibile creare un ticket per l utente: (" + uname + ")\n\t\t\t\t" + e.getMessage(), true);
+            return null;
+        }
+    }
+
+    /**
+     * Verifica e decifra un ticket, segnandolo come utilizzato
+     * @param ticket ticket presentato dal client
+     * @return il contenuto del ticket o {@code null} se non è valido, è scaduto, è già stato utilizzato o i ticket
+     * sono disattivati
+     */
+    static Ticket open(byte[] ticket) {
+        if (lifetime == 0 || ticket.length < NONCE_SIZE + Long.BYTES + SECRET_SIZE + 1 + TAG_SIZE) {
+            return null;
+        }
+
+        byte[] plain;
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, server_key, new GCMParameterSpec(TAG_SIZE * 8, ticket, 0, NONCE_SIZE));
+
+            plain = cipher.doFinal(ticket, NONCE_SIZE, ticket.length - NONCE_SIZE);
+        }
+        catch (Exception _) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(plain);
+        long expiration = buffer.getLong();
+        long now = System.currentTimeMillis();
+        if (expiration < now) {
+            return null;
+        }
+
+        if (used_tickets.putIfAbsent(ByteBuffer.wrap(Arrays.copyOf(ticket, NONCE_SIZE)), expiration) != null) {
+            Logger.log("un ticket già utilizzato è stato presentato di nuovo, viene rifiutato", true);
+            return null;
+        }
+        if (used_count.incrementAndGet() % PRUNE_INTERVAL == 0) {
+            used_tickets.values().removeIf(used_expiration -> used_expiration < now);
+        }
+
+        byte[] secret = new byte[SECRET_SIZE];
+        buffer.get(secret);
+
+        int name_start = buffer.position();
+        int separator = name_start;
+        while (separator < plain.length && plain[separator] != 0x00) {
+            separator++;
+        }
+        if (separator == plain.length) {
+            return null;
+        }
+
+        return new Ticket(
+                new String(plain, name_start, separator - name_start),
+                new String(plain, separator + 1, plain.length - separator - 1),
+                secret
+        );
+    }
+
+    /**
+     * Deriva i bytes con cui inizializzare l encoder della sessione ripresa come
+     * {@code SHA-256("resume" | segreto | bytes client | bytes server)}, nuovi per ogni ripresa in modo che l encoder
+     * non riutilizzi mai le stesse chiavi
+     */
+    static byte[] resume_bytes(byte[] secret, byte[] client_random, byte[] server_random) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update("resume".getBytes());
+            digest.update(secret);
+            digest.update(client_random);
+
+            return digest.digest(server_random);
+        }
+        catch (Exception e) {
+            Logger.log("impossibile derivare i bytes per riprendere una sessione\n\t\t\t\t" + e.getMessage(), true);
+            return null;
+        }
+    }
+
+    /// Ritorna {@code length} bytes random
+    static byte[] random_bytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+
+        return bytes;
+    }
+
+    /**
+     * Imposta per quanti millisecondi sono validi i nuovi ticket
+     * @param millis millisecondi di validità, con {@code 0} i ticket vengono disattivati e quelli già creati rifiutati
+     */
+    public static void set_lifetime(long millis) {
+        lifetime = Math.max(0, millis);
+    }
+
+    /// Ritorna per quanti millisecondi sono validi i nuovi ticket, {@code 0} se disattivati
+    public static long get_lifetime() {
+        return lifetime;
+    }
+
+    /**
+     * Specifica se un client che riprende la sessione viene riportato nell utente del ticket, altrimenti viene
+     * ripristinato solo l encoder e il client deve eseguire nuovamente il login
+     */
+    public static void set_restore_login(boolean restore) {
+        restore_login = restore;
+    }
+
+    /// Ritorna {@code true} se un client che riprende la sessione viene riportato nell utente del ticket
+    public static boolean get_restore_login() {
+        return restore_login;
+    }
+}
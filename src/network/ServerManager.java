@@ -5,12 +5,22 @@ import files.Logger;
 import files.Pair;
 import gui.temppanel.TempPanel;
 import gui.temppanel.TempPanel_info;
+import network.encoders.AesGcmEncoder;
+import network.encoders.ChaCha20Poly1305Encoder;
+import network.encoders.DeflateEncoder;
+import network.selector.SelectorConnector;
 
 import java.lang.reflect.Constructor;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * Interfaccia per gestire l'attività del server, attivazione e spegnimento dei connectors, e alcuni dei suoi parametri.
@@ -24,8 +34,17 @@ public class ServerManager {
      */
     private static final Map<String, Pair<Connector, Boolean>> registered_connectors = new LinkedHashMap<>();
 
-    /// Mappa fra il nome di ogni {@code Encoder} registrato e il constructor della sua classe
-    private static final Map<String, Constructor<? extends Encoder>> registered_encoders = new LinkedHashMap<>();
+    /// Mappa fra il nome di ogni {@code Encoder} registrato e la factory che ne crea nuove istanze
+    private static final Map<String, Supplier<? extends Encoder>> registered_encoders = new LinkedHashMap<>();
+
+    /// Nomi degli encoder registrati che non cifrano i messaggi, utilizzabili solo prima di un encoder che li cifra
+    private static final Set<String> pre_stage_encoders = ConcurrentHashMap.newKeySet();
+
+    /// Numero massimo di istanze riutilizzabili mantenute per ogni encoder
+    private static final int ENCODER_POOL_SIZE = 256;
+
+    /// Mappa fra il nome di ogni encoder riutilizzabile e le sue istanze libere
+    private static final Map<String, WorkQueue<Encoder>> encoder_pools = new ConcurrentHashMap<>();
 
     /// Istanza di un login manager utilizzata per gestire login / registrazioni di utenti nel server
     private static LoginManager active_login_manager;
@@ -37,7 +56,163 @@ public class ServerManager {
      * Memorizza la stato del server, dove {@code false} significa che è spento e nessun client si può collegare,
      * {@code true} rappresenta il server attivo e in attesa di nuove connessioni dai clients
      */
-    private static boolean server_status = false;
+    private static volatile boolean server_status = false;
+
+    /**
+     * Millisecondi concessi ai worker threads allo spegnimento del server per processare i messaggi già ricevuti
+     * prima di scollegare i clients, con {@code 0} vengono scartati subito. Lo stesso tempo è concesso poi per inviare
+     * {@code EOC} ai clients
+     */
+    private static volatile long drain_timeout = 5000;
+
+    /**
+     * Mappa fra il nome di ogni opzione aggiuntiva memorizzata in {@code database/status.dat} e la coppia
+     * {@code (getter, setter)} utilizzata per leggerne il valore da salvare e per impostarlo una volta caricato dal
+     * file. Per registrare nuove opzioni vedi {@code add_status_option()}
+     */
+    private static final Map<String, Pair<Supplier<String>, Consumer<String>>> status_options = new LinkedHashMap<>();
+
+    /// Nomi con cui sono memorizzate le policy della coda dei messaggi in uscita, in ordine di valore in {@code Client}
+    private static final String[] OUTBOUND_POLICIES = {"drop", "disconnect", "block"};
+
+    /// Nomi con cui sono memorizzate le policy del limite di messaggi, in ordine di valore in {@code RateLimiter}
+    private static final String[] RATE_POLICIES = {"delay", "drop", "disconnect"};
+
+    /// Nomi con cui sono memorizzate le policy del backlog, in ordine di valore in {@code ClientsInterface}
+    private static final String[] BACKLOG_POLICIES = {"fifo", "fair"};
+
+    /*
+     * Registra le opzioni del network da memorizzare in status.dat, gli encoder e i connector inclusi nel server, come
+     * per quelli caricati dalle mod i connector vengono registrati disattivati
+     */
+    static {
+        add_status_option(
+                "virtual_threads",
+                () -> Boolean.toString(ClientsInterface.use_virtual_threads()),
+                value -> ClientsInterface.set_virtual_threads(Boolean.parseBoolean(value))
+        );
+        add_status_option(
+                "mailbox_dispatch",
+                () -> Boolean.toString(ClientsInterface.use_mailbox_dispatch()),
+                value -> ClientsInterface.set_mailbox_dispatch(Boolean.parseBoolean(value))
+        );
+        add_status_option(
+                "buffer_pool_size",
+                () -> Integer.toString(BufferPool.get_capacity()),
+                value -> BufferPool.set_capacity(Integer.parseInt(value))
+        );
+        add_status_option(
+                "reply_timeout",
+                () -> Long.toString(Client.get_reply_timeout()),
+                value -> Client.set_reply_timeout(Long.parseLong(value))
+        );
+        add_status_option(
+                "outbound_queue",
+                () -> Integer.toString(Client.get_outbound_queue()),
+                value -> Client.set_outbound_queue(Integer.parseInt(value))
+        );
+        add_status_option(
+                "outbound_policy",
+                () -> OUTBOUND_POLICIES[Client.get_outbound_policy()],
+                value -> Client.set_outbound_policy(Arrays.asList(OUTBOUND_POLICIES).indexOf(value))
+        );
+
+        add_status_option(
+                "deflate_threshold",
+                () -> Integer.toString(DeflateEncoder.get_threshold()),
+                value -> DeflateEncoder.set_threshold(Integer.parseInt(value))
+        );
+        add_status_option(
+                "deflate_dictionary",
+                DeflateEncoder::get_dictionary_file,
+                DeflateEncoder::set_dictionary_file
+        );
+
+        add_status_option(
+                "handshake_limit",
+                () -> Integer.toString(HandshakeStage.get_limit()),
+                value -> HandshakeStage.set_limit(Integer.parseInt(value))
+        );
+        add_status_option(
+                "handshake_step_timeout",
+                () -> Long.toString(HandshakeStage.get_step_timeout()),
+                value -> HandshakeStage.set_step_timeout(Long.parseLong(value))
+        );
+        add_status_option(
+                "handshake_timeout",
+                () -> Long.toString(HandshakeStage.get_timeout()),
+                value -> HandshakeStage.set_timeout(Long.parseLong(value))
+        );
+
+        add_status_option(
+                "ticket_lifetime",
+                () -> Long.toString(ResumptionTickets.get_lifetime()),
+                value -> ResumptionTickets.set_lifetime(Long.parseLong(value))
+        );
+        add_status_option(
+                "ticket_login",
+                () -> Boolean.toString(ResumptionTickets.get_restore_login()),
+                value -> ResumptionTickets.set_restore_login(Boolean.parseBoolean(value))
+        );
+
+        add_status_option(
+                "lane_weights",
+                () -> Arrays.stream(ClientsInterface.get_lane_weights()).mapToObj(Integer::toString).collect(Collectors.joining(",")),
+                value -> ClientsInterface.set_lane_weights(Arrays.stream(value.split(",")).mapToInt(weight -> Integer.parseInt(weight.trim())).toArray())
+        );
+
+        add_status_option(
+                "rate_limit",
+                () -> Double.toString(RateLimiter.get_client_rate()),
+                value -> RateLimiter.set_client_limit(Double.parseDouble(value), RateLimiter.get_client_burst())
+        );
+        add_status_option(
+                "rate_burst",
+                () -> Integer.toString(RateLimiter.get_client_burst()),
+                value -> RateLimiter.set_client_limit(RateLimiter.get_client_rate(), Integer.parseInt(value))
+        );
+        add_status_option(
+                "rate_policy",
+                () -> RATE_POLICIES[RateLimiter.get_policy()],
+                value -> RateLimiter.set_policy(Arrays.asList(RATE_POLICIES).indexOf(value))
+        );
+
+        add_status_option(
+                "drain_timeout",
+                () -> Long.toString(get_drain_timeout()),
+                value -> set_drain_timeout(Long.parseLong(value))
+        );
+
+        add_status_option(
+                "backlog_policy",
+                () -> BACKLOG_POLICIES[ClientsInterface.get_backlog_policy()],
+                value -> ClientsInterface.set_backlog_policy(Arrays.asList(BACKLOG_POLICIES).indexOf(value))
+        );
+
+        add_status_option(
+                "fair_quantum",
+                () -> Integer.toString(ClientsInterface.get_fair_quantum()),
+                value -> ClientsInterface.set_fair_quantum(Integer.parseInt(value))
+        );
+
+        add_status_option(
+                "codel_target",
+                () -> Long.toString(ClientsInterface.get_codel_target()),
+                value -> ClientsInterface.set_codel(Long.parseLong(value), ClientsInterface.get_codel_interval())
+        );
+
+        add_status_option(
+                "codel_interval",
+                () -> Long.toString(ClientsInterface.get_codel_interval()),
+                value -> ClientsInterface.set_codel(ClientsInterface.get_codel_target(), Long.parseLong(value))
+        );
+
+        register_encoder(AesGcmEncoder::new, AesGcmEncoder.NAME);
+        register_encoder(ChaCha20Poly1305Encoder::new, ChaCha20Poly1305Encoder.NAME);
+        register_pre_stage_encoder(DeflateEncoder::new, DeflateEncoder.NAME);
+
+        register_connector(new SelectorConnector(), SelectorConnector.NAME);
+    }
 
     //      STATUS FILE UPDATES
 
@@ -46,7 +221,8 @@ public class ServerManager {
      * informazioni sullo stato del server, cioè:
      * <ul>
      *     <li>
-     *         Numero di worker threads
+     *         Numero di worker threads, l'utilizzo di virtual threads per ascoltare i clients è fra le opzioni
+     *         aggiuntive come {@code virtual_threads=true/false}
      *     </li>
      *     <li>
      *         Capacità del backlog per i worker thread
@@ -55,10 +231,15 @@ public class ServerManager {
      *         Login manager da utilizzare
      *     </li>
      *     <li>
+     *         Opzioni aggiuntive registrate con {@code add_status_option()}, una per linea
+     *     </li>
+     *     <li>
      *         Nome di ogni connector da attivare
      *     </li>
      * </ul>
-     * Queste informazioni sono formattate su 4 linee, dove i nomi dei connector vengono separati da {@code ;}
+     * Queste informazioni sono formattate su almeno 4 linee, dove i nomi dei connector vengono separati da {@code ;}
+     * e si trovano sempre nell'ultima linea, mentre ogni opzione aggiuntiva è formattata come {@code nome=valore}.
+     * File scritti senza opzioni aggiuntive vengono quindi letti senza problemi.
      */
     public static void init_status_file() {
         FileInterface.add_file_loader(status_file_loader);
@@ -76,15 +257,15 @@ public class ServerManager {
 
         /*
          * Viene aggiunto un punto alla fine del testo poiché altrimenti in caso non ci siano connector attivi non viene
-         * separato in 4 linee ma solo 3 / 2.
+         * separato in tutte le linee ma l'ultima viene persa.
          * Non crea nessun problema poiché in ogni caso questa lista viene utilizzata solo per controllare se alcuni
          * connector sono li contenuti. E se un connector o più sono in questa lista, finisce con un ";" quindi il "."
          * verrà interpretato come un nuovo connector e ignorato nei prossimi passaggi.
          * L'unico caso in cui questo porta a problemi è quando un connector legittimo viene chiamato "."
          */
         String[] file_lines = (new String(file_data) + ".").split("\n");
-        if (file_lines.length != 4) {
-            Logger.log("impossibile comprendere il contenuto del file status.dat, non sono contenute 4 righe ma: (" + file_lines.length + ")", true);
+        if (file_lines.length < 4) {
+            Logger.log("impossibile comprendere il contenuto del file status.dat, sono contenute meno di 4 righe: (" + file_lines.length + ")", true);
             return;
         }
 
@@ -104,8 +285,13 @@ public class ServerManager {
 
         ServerManager.set_login_manager(file_lines[2]);
 
+        //tutte le linee fra il login manager e i connector attivi sono opzioni aggiuntive
+        for (int i = 3; i < file_lines.length - 1; i++) {
+            load_status_option(file_lines[i]);
+        }
+
         String[] connector_list = ServerManager.get_connectors_list();
-        String[] active_connector = file_lines[3].split(";");
+        String[] active_connector = file_lines[file_lines.length - 1].split(";");
         Arrays.sort(active_connector); //esegue una binary search più avanti
 
         for (String connector : connector_list) {
@@ -131,6 +317,10 @@ public class ServerManager {
         }
         file_text.append("\n");
 
+        for (Map.Entry<String, Pair<Supplier<String>, Consumer<String>>> option : status_options.entrySet()) {
+            file_text.append(option.getKey()).append('=').append(option.getValue().first().get()).append("\n");
+        }
+
         String[] connectors_list = ServerManager.get_connectors_list();
         for (String connector : connectors_list) {
             if (ServerManager.get_connector_status(connector).first()) { //se il connector è attivo
@@ -142,6 +332,51 @@ public class ServerManager {
         Logger.log("aggiornate tutte le informazioni sul file status.dat");
     };
 
+    /**
+     * Registra una nuova opzione da memorizzare nel file {@code database/status.dat}, il suo valore verrà letto con
+     * {@code getter} ogni volta che si aggiorna il file e passato a {@code setter} quando viene caricato. Il setter
+     * dovrà occuparsi di controllare che il valore sia valido e mostrare un errore nei log in caso contrario.
+     * @param name   nome dell'opzione, non può contenere {@code =} o {@code \n}
+     * @param getter ritorna il valore attuale dell'opzione
+     * @param setter imposta il valore dell'opzione letto dal file
+     */
+    public static void add_status_option(String name, Supplier<String> getter, Consumer<String> setter) {
+        if (status_options.containsKey(name)) {
+            Logger.log("impossibile registrare più di un opzione in status.dat con il nome: (" + name + ")", true);
+            return;
+        }
+
+        status_options.put(name, new Pair<>(getter, setter));
+    }
+
+    /**
+     * Interpreta una linea del file {@code database/status.dat} formattata come {@code nome=valore} e passa il valore
+     * al setter dell'opzione registrata con quel nome
+     * @param line linea da interpretare
+     */
+    private static void load_status_option(String line) {
+        int separator = line.indexOf('=');
+        if (separator <= 0) {
+            Logger.log("impossibile comprendere la linea: (" + line + ") nel file status.dat", true);
+            return;
+        }
+
+        String name = line.substring(0, separator);
+        Pair<Supplier<String>, Consumer<String>> option = status_options.get(name);
+        if (option == null) {
+            Logger.log("opzione sconosciuta nel file status.dat: (" + name + "), viene ignorata", true);
+            return;
+        }
+
+        String value = line.substring(separator + 1);
+        try {
+            option.second().accept(value);
+        }
+        catch (RuntimeException _) {
+            Logger.log("impossibile comprendere l opzione: (" + name + ") con valore: (" + value + ") nel file status.dat, viene ignorata", true);
+        }
+    }
+
     //      LOGIN_MANAGER CHANGES
 
     /**
@@ -271,50 +506,119 @@ public class ServerManager {
     }
 
     /**
-     * Dalla definizione di una classe che estende {@code Encoder} trova il constructor e lo registra fra gli encoder
-     * disponibili per le connessioni
-     * @param encoder_const classe che specifica un encoder
-     * @param encoder_name  nome dell encoder da aggiungere
+     * Registra una factory fra gli encoder disponibili per le connessioni, verrà chiamata per ogni nuovo client che
+     * sceglie questo encoder e non trova istanze riutilizzabili
+     * @param encoder_factory crea nuove istanze dell encoder
+     * @param encoder_name    nome dell encoder da aggiungere, non può contenere {@code +}
      */
-    public static void register_encoder(Constructor<? extends Encoder> encoder_const, String encoder_name) {
+    public static void register_encoder(Supplier<? extends Encoder> encoder_factory, String encoder_name) {
         if (registered_encoders.containsKey(encoder_name)) {
             Logger.log("impossibile registrare più di un Encoder con il nome: (" + encoder_name + ")", true);
             return;
         }
+        if (encoder_name.isEmpty() || encoder_name.contains(EncoderPipeline.SEPARATOR)) {
+            Logger.log("impossibile registrare un Encoder con il nome: (" + encoder_name + "), il carattere: (" + EncoderPipeline.SEPARATOR + ") separa gli stadi di una pipeline", true);
+            return;
+        }
 
-        try {
-            registered_encoders.put(encoder_name, encoder_const);
+        registered_encoders.put(encoder_name, encoder_factory);
+    }
+
+    /**
+     * Registra una factory per un encoder che non cifra né autentica i messaggi, come una compressione. Non può
+     * essere scelto da solo dai clients ma solo come stadio di una pipeline seguito da un encoder che cifra i
+     * messaggi, come {@code deflate+aes-gcm}, e non viene incluso in {@code get_encoders_list()}
+     * @param encoder_factory crea nuove istanze dell encoder
+     * @param encoder_name    nome dell encoder da aggiungere, non può contenere {@code +}
+     */
+    public static void register_pre_stage_encoder(Supplier<? extends Encoder> encoder_factory, String encoder_name) {
+        if (registered_encoders.containsKey(encoder_name)) {
+            Logger.log("impossibile registrare più di un Encoder con il nome: (" + encoder_name + ")", true);
+            return;
         }
-        catch (Exception e) {
-            Logger.log("impossibile trovare il constructor per l'encoder: (" + encoder_name + ")", true);
-            Logger.log(e.getMessage(), true);
+
+        register_encoder(encoder_factory, encoder_name);
+        if (registered_encoders.containsKey(encoder_name)) {
+            pre_stage_encoders.add(encoder_name);
         }
     }
 
     /**
-     * Ritorna la lista con tutti i nomi dei {@code Encoder} registrati
+     * Dalla definizione di una classe che estende {@code Encoder} trova il constructor e lo registra fra gli encoder
+     * disponibili per le connessioni, ogni istanza viene creata via reflection, è preferibile registrare una factory
+     * con {@code register_encoder(Supplier, String)}
+     * @param encoder_const classe che specifica un encoder
+     * @param encoder_name  nome dell encoder da aggiungere
+     */
+    public static void register_encoder(Constructor<? extends Encoder> encoder_const, String encoder_name) {
+        register_encoder(() -> {
+            try {
+                return encoder_const.newInstance();
+            }
+            catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }, encoder_name);
+    }
+
+    /**
+     * Ritorna la lista con tutti i nomi dei {@code Encoder} registrati che possono essere scelti da soli, senza
+     * quelli registrati con {@code register_pre_stage_encoder()}
      * @return vettore con i nomi dei {@code Encoder}
      */
     public static String[] get_encoders_list() {
-        return registered_encoders.keySet().toArray(new String[0]);
+        return registered_encoders.keySet().stream()
+                .filter(name -> !pre_stage_encoders.contains(name))
+                .toArray(String[]::new);
     }
 
     /**
-     * Costruisce una nuova istanza dell {@code Encoder} registrato con il nome specificato e la ritorna. In caso non
-     * sia stato registrato nessun encoder con il nome specificato, o fallisce la creazione di una nuova istanza dell
+     * Ritorna un istanza dell {@code Encoder} registrato con il nome specificato, riutilizzando se possibile un
+     * istanza liberata da un client disconnesso, altrimenti ne crea una nuova con la sua factory. Se il nome contiene
+     * più encoder separati da {@code +} ritorna una pipeline con un istanza di ognuno. In caso non sia
+     * stato registrato nessun encoder con il nome specificato, o fallisce la creazione di una nuova istanza dell
      * encoder, ritorna {@code null}
      * @param encoder_name nome dell encoder da inizializzare
      * @return istanza di {@code Encoder} o {@code null} se l'operazione è fallita
      */
     public static Encoder get_encoder_instance(String encoder_name) {
-        Constructor<? extends Encoder> constructor = registered_encoders.get(encoder_name);
-        if (constructor == null) {
+        if (encoder_name.contains(EncoderPipeline.SEPARATOR)) {
+            return get_pipeline_instance(encoder_name);
+        }
+
+        if (pre_stage_encoders.contains(encoder_name)) {
+            Logger.log("l encoder: (" + encoder_name + ") non cifra i messaggi e può essere utilizzato solo prima di un encoder che li cifra", true);
+            return null;
+        }
+
+        return get_stage_instance(encoder_name);
+    }
+
+    /**
+     * Ritorna un istanza di un singolo encoder registrato, anche se registrato con {@code register_pre_stage_encoder()}
+     * @param encoder_name nome dell encoder, senza {@code +}
+     * @return istanza di {@code Encoder} o {@code null} se l'operazione è fallita
+     */
+    private static Encoder get_stage_instance(String encoder_name) {
+        WorkQueue<Encoder> pool = encoder_pools.get(encoder_name);
+        if (pool != null) {
+            Encoder encoder = pool.poll();
+            if (encoder != null) {
+                return encoder;
+            }
+        }
+
+        Supplier<? extends Encoder> factory = registered_encoders.get(encoder_name);
+        if (factory == null) {
             Logger.log("impossibile trovare un encoder con il nome: (" + encoder_name + ")", true);
             return null;
         }
 
         try {
-            return constructor.newInstance();
+            Encoder encoder = factory.get();
+            encoder.registered_name = encoder_name;
+
+            return encoder;
         }
         catch (Exception e) {
             Logger.log("impossibile creare una nuova istanza dell encoder: (" + encoder_name + ")", true);
@@ -324,12 +628,81 @@ public class ServerManager {
         }
     }
 
+    /**
+     * Crea una pipeline con un istanza di ogni encoder nominato in {@code pipeline_name}
+     * @param pipeline_name nomi degli stadi separati da {@code +}
+     * @return la pipeline o {@code null} se non è stato possibile creare uno degli stadi
+     */
+    private static Encoder get_pipeline_instance(String pipeline_name) {
+        if (!exist_encoder(pipeline_name)) {
+            Logger.log("impossibile trovare tutti gli encoder della pipeline: (" + pipeline_name + ")", true);
+            return null;
+        }
+
+        String[] names = pipeline_name.split(Pattern.quote(EncoderPipeline.SEPARATOR));
+        Encoder[] stages = new Encoder[names.length];
+
+        for (int i = 0; i < names.length; i++) {
+            stages[i] = get_stage_instance(names[i]);
+
+            if (stages[i] == null) { //restituisce gli stadi già creati
+                for (int j = 0; j < i; j++) {
+                    recycle_encoder(stages[j]);
+                }
+                return null;
+            }
+        }
+
+        Encoder pipeline = new EncoderPipeline(stages);
+        pipeline.registered_name = pipeline_name;
+
+        return pipeline;
+    }
+
+    /**
+     * Restituisce un encoder non più utilizzato, se è riutilizzabile viene resettato e mantenuto per il prossimo
+     * client che lo richiede. Dopo questa chiamata l istanza non deve più essere utilizzata dal client
+     * @param encoder encoder ottenuto da {@code get_encoder_instance()}
+     */
+    public static void recycle_encoder(Encoder encoder) {
+        if (encoder instanceof EncoderPipeline pipeline) {
+            for (Encoder stage : pipeline.get_stages()) {
+                recycle_encoder(stage);
+            }
+            return;
+        }
+
+        if (encoder == null || encoder.registered_name == null || !encoder.is_reusable()) {
+            return;
+        }
+
+        try {
+            encoder.reset();
+        }
+        catch (Exception e) {
+            Logger.log("impossibile resettare un istanza dell encoder: (" + encoder.registered_name + ")", true);
+            return;
+        }
+
+        encoder_pools.computeIfAbsent(encoder.registered_name, _ -> new WorkQueue<>(ENCODER_POOL_SIZE)).offer(encoder);
+    }
+
     /**
      * Ritorna {@code true} se è stato registrato un encoder con il nome specificato, {@code false} se non trova nessun
-     * encoder legato a questo nome
+     * encoder legato a questo nome. Per una pipeline, con i nomi di più encoder separati da {@code +}, ritorna
+     * {@code true} se sono stati registrati tutti e nessuno compare più di una volta. Un encoder registrato con
+     * {@code register_pre_stage_encoder()} non può essere l ultimo stadio, altrimenti i messaggi non sarebbero cifrati
      */
     public static boolean exist_encoder(String encoder_name) {
-        return registered_encoders.containsKey(encoder_name);
+        String[] stages = encoder_name.split(Pattern.quote(EncoderPipeline.SEPARATOR), -1);
+        Set<String> seen = new HashSet<>();
+        for (String stage : stages) {
+            if (!registered_encoders.containsKey(stage) || !seen.add(stage)) {
+                return false;
+            }
+        }
+
+        return !pre_stage_encoders.contains(stages[stages.length - 1]);
     }
 
     /**
@@ -362,10 +735,27 @@ public class ServerManager {
         return server_status;
     }
 
+    /**
+     * Imposta i millisecondi concessi ai worker threads allo spegnimento del server per processare i messaggi già
+     * ricevuti prima di scollegare i clients
+     * @param millis millisecondi di attesa, {@code 0} per scartare subito i messaggi ancora da processare
+     */
+    public static void set_drain_timeout(long millis) {
+        drain_timeout = Math.max(0, millis);
+    }
+
+    /// Ritorna i millisecondi concessi ai worker threads allo spegnimento per processare i messaggi già ricevuti
+    public static long get_drain_timeout() {
+        return drain_timeout;
+    }
+
     /**
      * Chiude tutti i connectors e scollega tutti i clients dal sever notificando ognuno con {@code EOC}, "End Of
      * Connection", imposta questo come spento permettendo la modifica di alcuni parametri come {@code LoginManager},
-     * {@code WorkerThreads}
+     * {@code WorkerThreads}.
+     * <p>Prima di scollegare i clients smette di accettare nuovi messaggi e attende fino a {@code drain_timeout} che i
+     * worker threads processino quelli già ricevuti, i messaggi scartati vengono riportati nei log. Anche l invio di
+     * {@code EOC} attende al massimo {@code drain_timeout}
      */
     public static void power_off() {
         if (!server_status) { //il server è già spento
@@ -387,6 +777,14 @@ public class ServerManager {
         }
         Logger.log("stoppati tutti i connectors attivi");
 
+        long dropped = ClientsInterface.drain(drain_timeout);
+        if (dropped > 0) {
+            Logger.log("scartati " + dropped + " messaggi dei clients non processati prima dello spegnimento", true);
+        }
+        else {
+            Logger.log("processati tutti i messaggi ricevuti dai clients");
+        }
+
         ClientsInterface.disconnect_all();
 
         server_status = false;
@@ -0,0 +1,55 @@
+package network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket senza lock utilizzato da {@code RateLimiter}, permette {@code rate} messaggi al secondo con picchi
+ * fino a {@code burst} messaggi consecutivi.
+ * <p>Invece di contare i token rimasti memorizza l istante in cui il bucket tornerebbe pieno, come nel
+ * "generic cell rate algorithm": ogni messaggio lo sposta avanti di {@code 1 / rate} secondi e un messaggio è
+ * permesso se non lo porta oltre {@code burst / rate} secondi nel futuro. Lo stato è quindi un solo {@code long}
+ * aggiornato con un compare and set, e lo stesso bucket può essere condiviso da tutti i clients di un connector.
+ */
+final class TokenBucket {
+    /// Nanosecondi necessari a ricaricare un token
+    private final long interval;
+
+    /// Nanosecondi di anticipo concessi, corrispondenti a {@code burst - 1} token
+    private final long tolerance;
+
+    /// Istante in nanosecondi, relativo a {@code System.nanoTime()}, in cui il bucket sarà di nuovo pieno
+    private final AtomicLong full_at = new AtomicLong(System.nanoTime());
+
+    TokenBucket(double rate, int burst) {
+        this.interval = Math.max(1, (long) (1_000_000_000 / rate));
+        this.tolerance = interval * (Math.max(1, burst) - 1);
+    }
+
+    /**
+     * Prova a prendere un token dal bucket
+     * @param reserve se {@code true} il token viene preso anche se il bucket è vuoto, e il messaggio dovrà attendere
+     *                il tempo ritornato
+     * @return {@code 0} se il token è stato preso subito, altrimenti i nanosecondi mancanti al prossimo token
+     */
+    long acquire(boolean reserve) {
+        while (true) {
+            long now = System.nanoTime();
+            long current = full_at.get();
+            long base = (current - now > 0)? current : now;
+
+            long wait = base - now - tolerance;
+            if (wait > 0 && !reserve) {
+                return wait;
+            }
+
+            if (full_at.compareAndSet(current, base + interval)) {
+                return Math.max(0, wait);
+            }
+        }
+    }
+
+    /// Restituisce un token preso con {@code acquire()} per un messaggio che è stato poi rifiutato
+    void refund() {
+        full_at.addAndGet(-interval);
+    }
+}
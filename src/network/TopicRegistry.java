@@ -0,0 +1,231 @@
+package network;
+
+import files.Logger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gestisce i topic a cui i clients possono iscriversi per ricevere i messaggi pubblicati dal server o dalle mod.
+ * <p>Un client che ha eseguito il login si iscrive inviando {@code sub;<topic>} e si disiscrive con
+ * {@code unsub;<topic>}, se il messaggio ha un {@code cc} diverso da {@code 0x00} riceve come risposta {@code ok} o
+ * {@code fail:<motivo>}. Le mod possono iscrivere e disiscrivere direttamente i clients con {@code subscribe()} e
+ * {@code unsubscribe()}.
+ * <p>Un messaggio pubblicato con {@code publish()} viene inviato a ogni iscritto come {@code pub:<topic>;<messaggio>}
+ * attraverso {@code ClientsInterface.broadcast_to()}, diviso fra i worker threads e cifrato una volta sola per
+ * encoder condivisibili.
+ * <p>Gli iscritti di ogni topic sono mantenuti in un array che viene sostituito a ogni iscrizione o disiscrizione, la
+ * pubblicazione legge quindi il riferimento all'array una volta sola senza lock né copie. L array e l insieme dei topic
+ * del client vengono aggiornati insieme dentro {@code topics.compute()} del topic, così un iscrizione e una
+ * disiscrizione dello stesso client processate in contemporanea non possono lasciarli discordi. Alla disconnessione
+ * di un client vengono rimosse automaticamente tutte le sue iscrizioni.
+ */
+public abstract class TopicRegistry {
+    /// Prefisso con cui un client si iscrive a un topic
+    public static final String SUBSCRIBE_PREFIX = "sub";
+
+    /// Prefisso con cui un client si disiscrive da un topic
+    public static final String UNSUBSCRIBE_PREFIX = "unsub";
+
+    /// Lunghezza massima in bytes del nome di un topic
+    public static final int MAX_TOPIC_LENGTH = 256;
+
+    /// Numero massimo di topic a cui può essere iscritto ogni client
+    public static final int MAX_TOPICS_PER_CLIENT = 256;
+
+    /// Mappa fra ogni topic con almeno un iscritto e l array dei suoi iscritti, mai modificato dopo essere inserito
+    private static final ConcurrentHashMap<String, Client[]> topics = new ConcurrentHashMap<>();
+
+    /// Mappa fra ogni client con almeno un iscrizione e i topic a cui è iscritto
+    private static final ConcurrentHashMap<Client, Set<String>> subscriptions = new ConcurrentHashMap<>();
+
+    /**
+     * Iscrive un client a un topic
+     * @param client client da iscrivere
+     * @param topic  nome del topic, non vuoto e senza {@code ;}
+     * @return {@code true} se il client è iscritto al topic, anche se lo era già, {@code false} se il nome non è
+     * valido, il client ha raggiunto il limite di iscrizioni o si è disconnesso
+     */
+    public static boolean subscribe(Client client, String topic) {
+        if (!is_valid(topic)) {
+            Logger.log("il client: (" + client.get_name() + ") ha provato a iscriversi al topic non valido: (" + topic + ")", true);
+            return false;
+        }
+        if (client.is_disconnected()) {
+            return false;
+        }
+
+        Set<String> client_topics = subscriptions.computeIfAbsent(client, _ -> ConcurrentHashMap.newKeySet());
+
+        boolean[] full = {false};
+        topics.compute(topic, (_, subscribers) -> {
+            if (client_topics.contains(topic)) {
+                return subscribers;
+            }
+            if (client_topics.size() >= MAX_TOPICS_PER_CLIENT) {
+                full[0] = true;
+                return subscribers;
+            }
+
+            client_topics.add(topic);
+            return append(subscribers, client);
+        });
+
+        if (full[0]) {
+            Logger.log("il client: (" + client.get_name() + ") ha raggiunto il limite di " + MAX_TOPICS_PER_CLIENT + " topic", true);
+            return false;
+        }
+
+        //se il client si è disconnesso durante l iscrizione unsubscribe_all() potrebbe non averla vista
+        if (client.is_disconnected()) {
+            remove_subscriber(topic, client);
+            subscriptions.remove(client, client_topics);
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Disiscrive un client da un topic
+     * @param client client da disiscrivere
+     * @param topic  nome del topic
+     * @return {@code true} se il client era iscritto al topic
+     */
+    public static boolean unsubscribe(Client client, String topic) {
+        Set<String> client_topics = subscriptions.get(client);
+        if (client_topics == null) {
+            return false;
+        }
+
+        boolean[] removed = {false};
+        topics.computeIfPresent(topic, (_, subscribers) -> {
+            if (!client_topics.remove(topic)) {
+                return subscribers;
+            }
+
+            removed[0] = true;
+            return remove(subscribers, client);
+        });
+
+        return removed[0];
+    }
+
+    /**
+     * Rimuove tutte le iscrizioni di un client, chiamato automaticamente alla sua disconnessione
+     * @param client client da disiscrivere
+     */
+    static void unsubscribe_all(Client client) {
+        Set<String> client_topics = subscriptions.remove(client);
+        if (client_topics == null) {
+            return;
+        }
+
+        for (String topic : client_topics) {
+            remove_subscriber(topic, client);
+        }
+    }
+
+    /**
+     * Invia un messaggio a tutti gli iscritti di un topic come {@code pub:<topic>;<msg>}
+     * @param topic nome del topic
+     * @param msg   messaggio da pubblicare
+     * @return numero di clients a cui verrà inviato il messaggio
+     */
+    public static int publish(String topic, byte[] msg) {
+        Client[] subscribers = topics.get(topic);
+        if (subscribers == null) {
+            return 0;
+        }
+
+        byte[] header = ("pub:" + topic + ";").getBytes(StandardCharsets.UTF_8);
+        byte[] full_msg = Arrays.copyOf(header, header.length + msg.length);
+        System.arraycopy(msg, 0, full_msg, header.length, msg.length);
+
+        return ClientsInterface.broadcast_to(Arrays.asList(subscribers), full_msg);
+    }
+
+    /// Ritorna il numero di clients iscritti a un topic
+    public static int get_subscribers_count(String topic) {
+        Client[] subscribers = topics.get(topic);
+        return (subscribers == null)? 0 : subscribers.length;
+    }
+
+    /// Ritorna i nomi di tutti i topic con almeno un iscritto
+    public static String[] get_topics() {
+        return topics.keySet().toArray(new String[0]);
+    }
+
+    /// Ritorna i topic a cui è iscritto un client
+    public static String[] get_client_topics(Client client) {
+        Set<String> client_topics = subscriptions.get(client);
+        return (client_topics == null)? new String[0] : client_topics.toArray(new String[0]);
+    }
+
+    //      PREFISSI RISERVATI
+
+    /// Azione registrata al prefisso {@code sub}
+    static void on_subscribe(Client client, byte cc, ByteBuffer payload) {
+        String topic = StandardCharsets.UTF_8.decode(payload).toString();
+        reply(client, cc, subscribe(client, topic), "iscrizione al topic non riuscita");
+    }
+
+    /// Azione registrata al prefisso {@code unsub}
+    static void on_unsubscribe(Client client, byte cc, ByteBuffer payload) {
+        String topic = StandardCharsets.UTF_8.decode(payload).toString();
+        reply(client, cc, unsubscribe(client, topic), "non iscritto al topic");
+    }
+
+    /// Risponde al client solo se ha utilizzato un {@code cc} per attendere la risposta
+    private static void reply(Client client, byte cc, boolean success, String reason) {
+        if (cc != 0x00) {
+            client.send((success? "ok" : "fail:" + reason).getBytes(), cc);
+        }
+    }
+
+    //      ARRAY DEGLI ISCRITTI
+
+    private static boolean is_valid(String topic) {
+        return !topic.isEmpty() && topic.indexOf(';') == -1 && topic.getBytes(StandardCharsets.UTF_8).length <= MAX_TOPIC_LENGTH;
+    }
+
+    /// Rimuove un client dall array degli iscritti di un topic, eliminando il topic se rimane vuoto
+    private static void remove_subscriber(String topic, Client client) {
+        topics.computeIfPresent(topic, (_, subscribers) -> remove(subscribers, client));
+    }
+
+    /// Ritorna un nuovo array con gli iscritti e {@code client} in fondo
+    private static Client[] append(Client[] subscribers, Client client) {
+        if (subscribers == null) {
+            return new Client[] {client};
+        }
+
+        Client[] updated = Arrays.copyOf(subscribers, subscribers.length + 1);
+        updated[subscribers.length] = client;
+
+        return updated;
+    }
+
+    /// Ritorna un nuovo array senza {@code client}, o {@code null} se non rimane nessun iscritto
+    private static Client[] remove(Client[] subscribers, Client client) {
+        for (int i = 0; i < subscribers.length; i++) {
+            if (subscribers[i] == client) {
+                if (subscribers.length == 1) {
+                    return null;
+                }
+
+                Client[] updated = new Client[subscribers.length - 1];
+                System.arraycopy(subscribers, 0, updated, 0, i);
+                System.arraycopy(subscribers, i + 1, updated, i, subscribers.length - i - 1);
+
+                return updated;
+            }
+        }
+
+        return subscribers;
+    }
+}
@@ -0,0 +1,125 @@
+package network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Backlog dei worker threads diviso in più lane, ognuna una {@code WorkQueue} con la stessa capacità, in modo che i
+ * messaggi di una lane non debbano attendere quelli accumulati nelle altre.
+ * <p>Ogni lane ha un peso, e i workers scelgono da quale lane prendere il prossimo messaggio seguendo una sequenza in
+ * cui ogni lane compare tante volte quanto il suo peso, distribuita in modo uniforme. Se la lane scelta è vuota
+ * viene preso il messaggio dalla prima lane non vuota in ordine di priorità, così nessun worker rimane fermo
+ * finché c'è un messaggio in una lane e nessuna lane viene mai ignorata del tutto.
+ */
+class WorkBacklog {
+    /// Messaggi in attesa in ogni lane
+    private final WorkQueue<WorkData>[] lanes;
+
+    /// Sequenza delle lane da cui prendere i messaggi, ripetuta dai workers
+    private final int[] order;
+
+    /// Posizione in {@code order} della prossima lane da controllare per prima
+    private final AtomicLong turn = new AtomicLong(0);
+
+    /// Capacità di ogni lane
+    private final int capacity;
+
+    /**
+     * @param capacity capacità di ogni lane
+     * @param weights  peso di ogni lane, in ordine di priorità, almeno {@code 1}
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    WorkBacklog(int capacity, int[] weights) {
+        this.capacity = capacity;
+
+        lanes = new WorkQueue[weights.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new WorkQueue<>(capacity);
+        }
+
+        order = weighted_order(weights);
+    }
+
+    /**
+     * Costruisce la sequenza delle lane con un weighted round robin "smooth": a ogni passo ogni lane accumula il suo
+     * peso e viene scelta quella con più credito, che perde la somma dei pesi. Con pesi {@code 4, 2, 1} si ottiene
+     * {@code 0, 1, 0, 2, 0, 1, 0} invece di quattro volte di seguito la stessa lane
+     */
+    private static int[] weighted_order(int[] weights) {
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+
+        int[] order = new int[total];
+        int[] credit = new int[weights.length];
+        for (int step = 0; step < total; step++) {
+            int best = 0;
+            for (int lane = 0; lane < weights.length; lane++) {
+                credit[lane] += weights[lane];
+                if (credit[lane] > credit[best]) {
+                    best = lane;
+                }
+            }
+
+            credit[best] -= total;
+            order[step] = best;
+        }
+
+        return order;
+    }
+
+    /**
+     * Aggiunge un messaggio a una lane
+     * @param data messaggio da aggiungere
+     * @param lane lane in cui aggiungerlo
+     * @return {@code true} se è stato aggiunto, {@code false} se la lane è piena
+     */
+    boolean offer(WorkData data, int lane) {
+        return lanes[lane].offer(data);
+    }
+
+    /// Rimuove e ritorna il prossimo messaggio seguendo i pesi delle lane, o {@code null} se sono tutte vuote
+    WorkData poll() {
+        int first = order[(int) Math.floorMod(turn.getAndIncrement(), (long) order.length)];
+
+        WorkData data = lanes[first].poll();
+        for (int lane = 0; data == null && lane < lanes.length; lane++) {
+            if (lane != first) {
+                data = lanes[lane].poll();
+            }
+        }
+
+        return data;
+    }
+
+    /// Ritorna {@code true} se tutte le lane sono vuote
+    boolean is_empty() {
+        for (WorkQueue<WorkData> lane : lanes) {
+            if (!lane.is_empty()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /// Ritorna il numero di messaggi in attesa in tutte le lane
+    int size() {
+        int size = 0;
+        for (WorkQueue<WorkData> lane : lanes) {
+            size += lane.size();
+        }
+
+        return size;
+    }
+
+    /// Ritorna il numero di messaggi in attesa in una lane
+    int size(int lane) {
+        return lanes[lane].size();
+    }
+
+    /// Ritorna la capacità di ogni lane
+    int capacity() {
+        return capacity;
+    }
+}
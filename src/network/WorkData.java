@@ -1,5 +1,7 @@
 package network;
 
+import java.nio.ByteBuffer;
+
 /**
  * L'azione da eseguire come risposta per ogni messaggio ricevuto dai client viene passata ai thread worker in
  * ClientsInterface rappresentati da istanze di questa classe:
@@ -12,13 +14,19 @@ package network;
  *         {@code action != null}: dovrà eseguire l'azione specificata rispondendo al messaggio ricevuto
  *     </li>
  * </ul>
+ * <p>Con {@code task()} il server può inoltre far eseguire ai workers un'operazione propria, come l invio di un
+ * broadcast, che non appartiene a nessun client e non passa dalla sua mailbox.
+ * <p>Il messaggio è mantenuto in un {@code MessageBuffer} che viene rilasciato dal worker thread una volta finito di
+ * processarlo, o se viene scartato perché il backlog è pieno.
+ * <p>L istante di creazione viene memorizzato per misurare quanto il messaggio attende prima di essere processato,
+ * contando anche l attesa nella mailbox del client.
  */
 public class WorkData {
     /// Client che invia il messaggio
     private final Client client;
 
     /// Messaggio ricevuto
-    private final byte[] msg;
+    private final MessageBuffer msg;
 
     /// cc utilizzato per inviare il messaggio
     private final byte cc;
@@ -26,25 +34,63 @@ public class WorkData {
     /// Se != {@code null} specifica l'azione da eseguire per rispondere al messaggio
     private final OnArrival action;
 
-    public WorkData(Client client, byte[] msg, byte cc, OnArrival action) {
+    /// Istante in nanosecondi, relativo a {@code System.nanoTime()}, in cui è stato ricevuto il messaggio
+    private final long enqueued_at = System.nanoTime();
+
+    /// Lane del backlog in cui è stato inserito l ultima volta
+    private int lane = WorkerThread.LANE_NORMAL;
+
+    WorkData(Client client, MessageBuffer msg, byte cc, OnArrival action) {
         this.client = client;
         this.msg = msg;
         this.cc = cc;
         this.action = action;
     }
 
+    public WorkData(Client client, byte[] msg, byte cc, OnArrival action) {
+        this(client, MessageBuffer.wrap(msg), cc, action);
+    }
+
     public WorkData(Client client, byte[] msg, byte cc) {
         this(client, msg, cc, null);
     }
 
-    /// Ritorna l'istanza di {@code Client} da cui è ricevuto il messaggio
+    /**
+     * Crea un'operazione da far eseguire ad un worker thread senza nessun client né messaggio
+     * @param task operazione da eseguire
+     */
+    static WorkData task(Runnable task) {
+        return new WorkData(null, MessageBuffer.wrap(new byte[0]), (byte) 0x00, (_, _, _) -> task.run());
+    }
+
+    /// Ritorna {@code true} se è un'operazione creata con {@code task()} e non un messaggio di un client
+    boolean is_task() {
+        return client == null;
+    }
+
+    /// Ritorna l'istanza di {@code Client} da cui è ricevuto il messaggio, {@code null} per le operazioni del server
     public Client get_client() {
         return client;
     }
 
-    /// Ritorna il messaggio ricevuto dal client
+    /// Ritorna una copia del messaggio ricevuto dal client
     public byte[] get_message() {
-        return msg.clone();
+        return msg.to_array();
+    }
+
+    /// Ritorna una vista in sola lettura del messaggio senza copiarlo, valida finché non viene chiamato {@code release()}
+    public ByteBuffer get_payload() {
+        return msg.view();
+    }
+
+    /// Ritorna il buffer che contiene il messaggio
+    MessageBuffer message() {
+        return msg;
+    }
+
+    /// Rilascia il buffer del messaggio, da chiamare una volta sola quando il messaggio non serve più
+    void release() {
+        msg.release();
     }
 
     /// Ritorna il cc utilizzato dal client per inviare il messaggio
@@ -56,4 +102,18 @@ public class WorkData {
     public OnArrival get_action() {
         return action;
     }
+
+    /// Ritorna l istante in nanosecondi, relativo a {@code System.nanoTime()}, in cui è stato ricevuto il messaggio
+    public long get_enqueued_at() {
+        return enqueued_at;
+    }
+
+    /// Ritorna la lane del backlog in cui è stato inserito l ultima volta
+    int get_lane() {
+        return lane;
+    }
+
+    void set_lane(int lane) {
+        this.lane = lane;
+    }
 }
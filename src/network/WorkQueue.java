@@ -0,0 +1,119 @@
+package network;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Queue FIFO di dimensione fissa utilizzata come backlog dei worker threads e per i buffers liberi di
+ * {@code BufferPool}, permette a più thread di inserire e rimuovere elementi contemporaneamente senza utilizzare lock
+ * o allocare memoria.
+ * <p>Ogni cella del buffer circolare ha un numero di sequenza che indica se è libera per la prossima scrittura o
+ * contiene un elemento pronto per essere letto, i thread si contendono le posizioni di testa e coda con un
+ * {@code compareAndSet} e una volta ottenuta una posizione la cella è solo loro.
+ */
+class WorkQueue<T> {
+    /// Celle del buffer circolare
+    private final AtomicReferenceArray<T> buffer;
+
+    /**
+     * Numero di sequenza di ogni cella, vale {@code pos} quando la cella è libera per essere scritta alla posizione
+     * {@code pos}, e {@code pos + 1} quando contiene l'elemento scritto alla posizione {@code pos}
+     */
+    private final AtomicLongArray sequence;
+
+    /// Capacità massima della queue
+    private final int capacity;
+
+    /// Posizione del prossimo elemento da leggere
+    private final AtomicLong head = new AtomicLong(0);
+
+    /// Posizione in cui scrivere il prossimo elemento
+    private final AtomicLong tail = new AtomicLong(0);
+
+    public WorkQueue(int capacity) {
+        this.capacity = capacity;
+        buffer = new AtomicReferenceArray<>(capacity);
+        sequence = new AtomicLongArray(capacity);
+
+        for (int i = 0; i < capacity; i++) {
+            sequence.set(i, i);
+        }
+    }
+
+    /**
+     * Aggiunge un elemento in coda alla queue
+     * @param data elemento da aggiungere
+     * @return {@code true} se è stato aggiunto, {@code false} se la queue è piena
+     */
+    public boolean offer(T data) {
+        long pos = tail.get();
+
+        while (true) {
+            int index = (int) (pos % capacity);
+            long diff = sequence.get(index) - pos;
+
+            if (diff == 0) { //la cella è libera, prova a prenotarla
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer.set(index, data);
+                    sequence.set(index, pos + 1);
+
+                    return true;
+                }
+                pos = tail.get();
+            }
+            else if (diff < 0) { //la cella contiene ancora un elemento di un giro precedente, la queue è piena
+                return false;
+            }
+            else { //un altro thread ha già scritto in questa posizione
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Rimuove e ritorna l'elemento in testa alla queue
+     * @return elemento in testa o {@code null} se la queue è vuota
+     */
+    public T poll() {
+        long pos = head.get();
+
+        while (true) {
+            int index = (int) (pos % capacity);
+            long diff = sequence.get(index) - (pos + 1);
+
+            if (diff == 0) { //la cella contiene un elemento, prova a prenotarlo
+                if (head.compareAndSet(pos, pos + 1)) {
+                    T data = buffer.get(index);
+                    buffer.set(index, null);
+                    sequence.set(index, pos + capacity); //libera la cella per il prossimo giro
+
+                    return data;
+                }
+                pos = head.get();
+            }
+            else if (diff < 0) { //la cella non è ancora stata scritta, la queue è vuota
+                return null;
+            }
+            else { //un altro thread ha già letto questa posizione
+                pos = head.get();
+            }
+        }
+    }
+
+    /// Ritorna {@code true} se la queue non contiene elementi
+    public boolean is_empty() {
+        return size() == 0;
+    }
+
+    /// Ritorna il numero di elementi nella queue, con thread che la modificano in contemporanea è un approssimazione
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    /// Ritorna la capacità massima della queue
+    public int capacity() {
+        return capacity;
+    }
+}
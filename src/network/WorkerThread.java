@@ -2,32 +2,61 @@ package network;
 
 import files.Logger;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Thread con l'incarico di processare tutti i messaggi ricevuti dai clients, una volta finito un incarico controllano
- * se il backlog è vuoto, in tal caso si interrompono in attesa di una notifica, altrimenti prendono un nuovo messaggio
+ * se il backlog è vuoto, in tal caso si fermano finché non vengono risvegliati, altrimenti prendono un nuovo messaggio
  * e continuano con il processing.
  * <p>Istanze di questa classe vengono create e gestite da ClientsInterface in modo automatico.
  */
 public class WorkerThread extends Thread {
-    /// Mappa fra ogni prefisso e un vettore con tutte le azioni a lui registrate
-    private static final Map<String, Vector<OnArrival>> prefix_actions = new LinkedHashMap<>();
+    /// Lane del backlog delle risposte attese da {@code OnArrival}, liberano un {@code cc} una volta processate
+    public static final int LANE_REPLY = 0;
 
-    /// Index dell'istanza nell array in {@code ClientsInterface}, viene utilizzato per avvisare quando questo è attivo
-    private final int index;
+    /// Lane del backlog dei messaggi dei clients che non hanno ancora eseguito il login
+    public static final int LANE_LOGIN = 1;
+
+    /// Lane del backlog predefinita per i messaggi con un prefisso e per le operazioni del server
+    public static final int LANE_NORMAL = 2;
+
+    /// Lane del backlog con la priorità più bassa, per i prefissi con molto traffico non urgente
+    public static final int LANE_BULK = 3;
+
+    /// Numero di lane del backlog
+    public static final int LANES = 4;
+
+    /**
+     * Se il messaggio ha atteso troppo nel backlog viene scartato e il client, se attende una risposta, riceve
+     * {@code fail:server occupato}, altrimenti {@code busy}. Azione predefinita dei prefissi
+     */
+    public static final int OVERLOAD_FAIL = 0;
+
+    /// Se il messaggio ha atteso troppo nel backlog viene scartato senza notificare il client
+    public static final int OVERLOAD_SHED = 1;
+
+    /// Il messaggio viene sempre processato anche se ha atteso troppo nel backlog
+    public static final int OVERLOAD_KEEP = 2;
+
+    /// Associa a ogni prefisso tutte le azioni a lui registrate
+    private static final PrefixRouter prefix_router = new PrefixRouter();
+
+    /// {@code true} mentre il worker è in {@code ClientsInterface.idle_workers}, così viene aggiunto al massimo una volta
+    final AtomicBoolean queued = new AtomicBoolean(false);
 
     //      PREFIX MANAGING
 
     /*
-     * inizializza la mappa prefix_actions con i prefissi standard:
-     *
+     * inizializza prefix_router con i prefissi standard:
+     * sub / unsub: iscrizione e disiscrizione dai topic di TopicRegistry
+     * hb: heartbeat dei clients per IdleReaper
      */
     static {
-
+        add_prefix_handler(IdleReaper.HEARTBEAT_PREFIX, IdleReaper::on_heartbeat);
+        add_prefix_handler(TopicRegistry.SUBSCRIBE_PREFIX, TopicRegistry::on_subscribe);
+        add_prefix_handler(TopicRegistry.UNSUBSCRIBE_PREFIX, TopicRegistry::on_unsubscribe);
     }
 
     /**
@@ -35,63 +64,162 @@ public class WorkerThread extends Thread {
      * specificato.
      * <p>Questa meccanica è in funzione solo una volta che il client ha eseguito il login, prima non viene neanche
      * controllato se delle azioni sono registrate.
+     * <p>Il payload passato all'azione è una copia, o {@code null} se il messaggio non ha payload, per evitare la
+     * copia utilizzare {@code add_prefix_handler()}
      * @param prefix prefisso a cui aggiungere una nuova azione
      * @param action azione da aggiungere al prefisso
      */
     public static void add_prefix_action(String prefix, OnArrival action) {
-        Vector<OnArrival> registered = prefix_actions.get(prefix);
-        if (registered == null) {
-            registered = new Vector<>();
-            prefix_actions.put(prefix, registered);
+        add_prefix_handler(prefix, (client, cc, payload) -> {
+            byte[] payload_copy = null;
+            if (payload.hasRemaining()) {
+                payload_copy = new byte[payload.remaining()];
+                payload.get(payload_copy);
+            }
+
+            action.on_arrival(client, cc, payload_copy);
+        });
+    }
+
+    /**
+     * Aggiunge una azione fra quelle da eseguire quando si riceve un messaggio da un client con il prefisso
+     * specificato, l'azione riceve una vista in sola lettura del payload senza che questo venga copiato.
+     * <p>Questa meccanica è in funzione solo una volta che il client ha eseguito il login, prima non viene neanche
+     * controllato se delle azioni sono registrate.
+     * @param prefix prefisso a cui aggiungere una nuova azione, non può contenere {@code ;}
+     * @param action azione da aggiungere al prefisso
+     */
+    public static void add_prefix_handler(String prefix, PrefixAction action) {
+        if (prefix.indexOf(';') != -1) {
+            Logger.log("impossibile registrare un azione al prefisso: (" + prefix + "), non può contenere ';'", true);
+            return;
+        }
+
+        prefix_router.add(prefix, action);
+    }
+
+    /**
+     * Assegna una lane del backlog ai messaggi con il prefisso specificato, di default i messaggi con un prefisso
+     * vengono inseriti in {@code LANE_NORMAL}
+     * @param prefix prefisso, non può contenere {@code ;}
+     * @param lane   una fra {@code LANE_REPLY}, {@code LANE_LOGIN}, {@code LANE_NORMAL} e {@code LANE_BULK}
+     */
+    public static void set_prefix_lane(String prefix, int lane) {
+        if (prefix.indexOf(';') != -1 || lane < 0 || lane >= LANES) {
+            Logger.log("impossibile assegnare la lane: " + lane + " al prefisso: (" + prefix + ")", true);
+            return;
+        }
+
+        prefix_router.set_lane(prefix, lane);
+    }
+
+    /**
+     * Assegna ai messaggi con il prefisso specificato cosa fare se rimangono troppo nel backlog con il controlled
+     * delay attivo, di default vengono scartati con {@code OVERLOAD_FAIL}
+     * @param prefix   prefisso, non può contenere {@code ;}
+     * @param overload una fra {@code OVERLOAD_FAIL}, {@code OVERLOAD_SHED} e {@code OVERLOAD_KEEP}
+     */
+    public static void set_prefix_overload(String prefix, int overload) {
+        if (prefix.indexOf(';') != -1 || overload < OVERLOAD_FAIL || overload > OVERLOAD_KEEP) {
+            Logger.log("impossibile assegnare l azione: " + overload + " in caso di sovraccarico al prefisso: (" + prefix + ")", true);
+            return;
+        }
+
+        prefix_router.set_overload(prefix, overload);
+    }
+
+    /**
+     * Sceglie cosa fare di un messaggio che ha atteso troppo nel backlog: le operazioni del server e le risposte
+     * attese vengono sempre processate, gli altri messaggi seguono l azione assegnata al loro prefisso
+     * @param data messaggio preso dal backlog
+     * @return una fra {@code OVERLOAD_FAIL}, {@code OVERLOAD_SHED} e {@code OVERLOAD_KEEP}
+     */
+    static int overload_of(WorkData data) {
+        if (data.is_task() || data.get_action() != null) {
+            return OVERLOAD_KEEP;
         }
 
-        registered.add(action);
+        MessageBuffer msg = data.message();
+        return prefix_router.overload_of(msg.array(), msg.offset(), msg.length(), OVERLOAD_FAIL);
+    }
+
+    /**
+     * Sceglie la lane del backlog in cui inserire un messaggio: i messaggi di clients senza login, comprese le
+     * credenziali inviate a {@code login_request_manager}, vanno in {@code LANE_LOGIN}, le risposte attese in
+     * {@code LANE_REPLY} e gli altri nella lane assegnata al loro prefisso
+     * @param data messaggio da inserire nel backlog
+     * @return lane del messaggio
+     */
+    static int lane_of(WorkData data) {
+        if (data.is_task()) {
+            return LANE_NORMAL;
+        }
+        if (!data.get_client().is_logged()) {
+            return LANE_LOGIN;
+        }
+        if (data.get_action() != null) {
+            return LANE_REPLY;
+        }
+
+        MessageBuffer msg = data.message();
+        return prefix_router.lane_of(msg.array(), msg.offset(), msg.length(), LANE_NORMAL);
     }
 
     //      WORK THREAD INSTANCES
 
     /**
-     * Crea un nuovo WorkerThread e lo farà partire subito, rimanendo subito in attesa di una notifica poiché
-     * {@code ClientsInterface} crea i nuovi workers thread quando il server è ancora spento.
-     * Il thread continuerà a vivere finché non riceve una notifica con il server spento.
+     * Crea un nuovo WorkerThread e lo farà partire subito, rimanendo subito in attesa di nuovi messaggi.
+     * Il thread continuerà a vivere finché non viene risvegliato con il server spento.
      * <ol>
      *     <li>
-     *         Controllo se il server è attivo, in caso contrario ritorna e il thread muore
-     *     </li>
-     *     <li>
      *         Richiede da {@code ClientsInterface} un elemento dal {@code backlog}, se riceve {@code null} salta al
-     *         punto {@code 4}, altrimenti continua
+     *         punto {@code 3}, altrimenti continua
      *     </li>
      *     <li>
-     *          Processa i dati ricevuti dal {@code backlog}, per le specifiche vedi {@code process()}
-     *     </li>
-     *     <li>
-     *         Controlla se il {@code backlog} in {@code ClientsInterface} è vuoto e in tal caso continua, altrimenti
-     *         torna al punto {@code 2}
+     *          Processa i dati ricevuti dal {@code backlog}, per le specifiche vedi {@code process()}, avvisa
+     *          {@code ClientsInterface} di aver finito e torna al punto {@code 1}
      *     </li>
      *     <li>
      *         Controlla se il server è attivo e in tal caso continua nella lista, altrimenti interrompe il ciclo
      *     </li>
      *     <li>
-     *         chiama {@code wait()} interrompendosi e attendendo che venga notificato per l'arrivo di un nuovo
-     *         messaggio da processare.
-     *         Una volta ricevuta la notifica ripartirà dal punto {@code 1}
+     *         chiama {@code ClientsInterface.wait_for_work()} fermandosi finché non viene risvegliato per l'arrivo
+     *         di un nuovo messaggio da processare.
+     *         Una volta risvegliato ripartirà dal punto {@code 1}
      *     </li>
      * </ol>
+     * @param index index dell'istanza nell array in {@code ClientsInterface}, utilizzato per il nome del thread
      */
     public WorkerThread(int index) {
-        this.index = index;
+        super("worker thread " + index);
         start();
     }
 
     @Override
     public void run() {
-        do {
+        while (true) {
             WorkData data = ClientsInterface.next_workers_data_backlog();
-            //continua a processare messaggi finché non si esaurisce il backlog
-            while (data != null) {
-                process(data);
-                data = ClientsInterface.next_workers_data_backlog();
+            if (data != null) {
+                //con il fair queueing continua con i messaggi dello stesso client finché ha credito
+                while (data != null) {
+                    try {
+                        process(data);
+                    }
+                    catch (Exception e) {
+                        if (data.is_task()) {
+                            Logger.log("errore nell eseguire un operazione del server\n\t\t\t\t" + e.getMessage(), true);
+                        }
+                        else {
+                            Logger.log("errore nel processare un messaggio dal client: (" + data.get_client().get_name() + ")\n\t\t\t\t" + e.getMessage(), true);
+                        }
+                    }
+                    finally {
+                        data.release();
+                        data = ClientsInterface.work_done(data);
+                    }
+                }
+
+                continue;
             }
 
             //se finisce il lavoro e il server è spento non attende nuovi messaggi ma termina
@@ -99,18 +227,8 @@ public class WorkerThread extends Thread {
                 break;
             }
 
-            try {
-                synchronized (this) {
-                    ClientsInterface.set_worker_status(index, false); //si imposta come thread in attesa
-                    wait();
-                }
-            }
-            catch (Exception e) {
-                Logger.log("errore nell'attesa di una notifica in un worker thread\n\t\t\t\t" + e.getMessage(), true);
-                break;
-            }
+            ClientsInterface.wait_for_work(this);
         }
-        while (ServerManager.is_online());
 
         Logger.log("un worker thread è stato spento");
     }
@@ -141,67 +259,64 @@ public class WorkerThread extends Thread {
     private void process(WorkData data) {
         OnArrival action = data.get_action();
         Client client = data.get_client();
-        byte[] msg = data.get_message();
 
         if (action != null) {
-            action.on_arrival(client, data.get_cc(), msg);
+            action.on_arrival_buffer(client, data.get_cc(), data.get_payload());
             return;
         }
 
+        MessageBuffer msg = data.message();
         if (client.is_logged()) {
-            int prefix_len = find_prefix_len(msg);
-            String prefix = new String(Arrays.copyOfRange(msg, 0, prefix_len));
-
-            byte[] payload = null;
-            if (prefix_len != msg.length - 1) {
-                payload = Arrays.copyOfRange(msg, prefix_len + 1, msg.length);
-            }
-
-            run_prefix(client, prefix, payload, data.get_cc());
+            run_prefix(client, msg, data.get_cc());
         }
-        else if (Arrays.equals(msg, "login".getBytes())) {
+        else if (message_equals(msg, "login".getBytes())) {
             client.send(ServerManager.get_login_manager().get_login_request(), data.get_cc());
         }
-        else if (Arrays.equals(msg, "register".getBytes())) {
+        else if (message_equals(msg, "register".getBytes())) {
             client.send(ServerManager.get_login_manager().get_register_request(), data.get_cc());
         }
-        else { //client senza login ha inviato qualcosa di diverso da "login" o "register"
-            Logger.log("il client: (" + client.get_name() + ") ha inviato: (" + new String(msg) + ") prima di eseguire il login", true);
+        else if (message_equals(msg, IdleReaper.HEARTBEAT_PREFIX.getBytes())) { //heartbeat prima del login
+            IdleReaper.on_heartbeat(client, data.get_cc(), data.get_payload());
         }
-    }
-
-    /**
-     * Dato un messaggio ritorna l index della prima ricorrenza del carattere {@code ;} o {@code lunghezza - 1} se non
-     * lo trova
-     */
-    private int find_prefix_len(byte[] msg) {
-        for (int i = 0; i < msg.length; i++) {
-            if (msg[i] == ';') {
-                return i;
-            }
+        else { //client senza login ha inviato qualcosa di diverso da "login" o "register"
+            Logger.log("il client: (" + client.get_name() + ") ha inviato: (" + new String(msg.array(), msg.offset(), msg.length()) + ") prima di eseguire il login", true);
         }
-
-        return msg.length - 1;
     }
 
     /**
      * Per rispondere ai messaggi del client è possibile registrare delle azioni da eseguire quando si ricevono messaggi
      * da essi formattati come {@code prefix;payload} con un {@code prefix} predefinito. Ricevuto un messaggio esegue
      * tutti i metodi registrati al suo prefisso, o stampa un errore in caso non ce ne siano di registrati.
-     * @param client  client che invia il messaggio
-     * @param prefix  prefisso utilizzato in questo messaggio
-     * @param payload contenuto del messaggio
-     * @param cc      cc utilizzato per questo messaggio
+     * <p>Il prefisso viene cercato confrontando direttamente i bytes del messaggio, e a ogni azione viene passata una
+     * vista in sola lettura del payload senza copiarlo. Messaggi senza {@code ;} vengono interpretati come un
+     * prefisso senza payload
+     * @param client client che invia il messaggio
+     * @param msg    messaggio ricevuto dal client
+     * @param cc     cc utilizzato per questo messaggio
      */
-    private void run_prefix(Client client, String prefix, byte[] payload, byte cc) {
-        Vector<OnArrival> actions = prefix_actions.get(prefix);
-        if (actions == null) {
-            Logger.log("il client: (" + client.get_name() + ") ha inviato un messaggio con il prefisso: (" + prefix + ") a cui non è legata nessuna azione", true);
+    private void run_prefix(Client client, MessageBuffer msg, byte cc) {
+        PrefixRouter.Node prefix = prefix_router.match(msg.array(), msg.offset(), msg.length());
+        if (prefix == null) {
+            int prefix_len = 0;
+            while (prefix_len < msg.length() && msg.get(prefix_len) != ';') {
+                prefix_len++;
+            }
+
+            Logger.log("il client: (" + client.get_name() + ") ha inviato un messaggio con il prefisso: (" + new String(msg.array(), msg.offset(), prefix_len) + ") a cui non è legata nessuna azione", true);
             return;
         }
 
-        for (OnArrival a : actions) {
-            a.on_arrival(client, cc, payload);
+        int payload_start = Math.min(prefix.get_depth() + 1, msg.length());
+        ByteBuffer payload = ByteBuffer.wrap(msg.array(), msg.offset() + payload_start, msg.length() - payload_start).slice().asReadOnlyBuffer();
+
+        for (PrefixAction a : prefix.get_actions()) {
+            a.on_message(client, cc, payload);
+            payload.rewind();
         }
     }
+
+    /// Confronta il messaggio contenuto in {@code msg} con {@code expected} senza copiarlo
+    private static boolean message_equals(MessageBuffer msg, byte[] expected) {
+        return Arrays.equals(msg.array(), msg.offset(), msg.offset() + msg.length(), expected, 0, expected.length);
+    }
 }
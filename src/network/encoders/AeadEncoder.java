@@ -0,0 +1,203 @@
+package network.encoders;
+
+import network.Encoder;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+/**
+ * Base degli encoder inclusi nel server che utilizzano un cifrario autenticato, ogni istanza mantiene un
+ * {@code Cipher} per i messaggi inviati e uno per quelli ricevuti, creati una sola volta e reinizializzati a ogni
+ * messaggio con un nuovo nonce.
+ * <p>Dai bytes concordati con il client vengono derivate due chiavi da {@code 32 bytes}, come
+ * {@code SHA-256("server" | bytes)} per i messaggi inviati dal server e {@code SHA-256("client" | bytes)} per quelli
+ * inviati dal client. Ogni messaggio cifrato è formattato come {@code contatore | testo cifrato | tag}, dove il
+ * contatore è un {@code long} big endian che parte da {@code 0} e aumenta di uno a ogni messaggio inviato, e il nonce
+ * da {@code 12 bytes} è composto da {@code 4 bytes} a zero seguiti dal contatore. Messaggi ricevuti con un contatore
+ * non maggiore di quello dell'ultimo messaggio valido vengono scartati.
+ */
+abstract class AeadEncoder extends Encoder {
+    /// Lunghezza in bytes del contatore all'inizio di ogni messaggio
+    private static final int COUNTER_SIZE = 8;
+
+    /// Lunghezza in bytes del tag di autenticazione
+    static final int TAG_SIZE = 16;
+
+    /// Lunghezza in bytes del nonce
+    static final int NONCE_SIZE = 12;
+
+    /// Numero minimo di bytes concordati con il client per derivare le chiavi
+    private static final int MIN_SHARED_BYTES = 16;
+
+    /// Nome del cifrario passato a {@code Cipher.getInstance()}
+    private final String transformation;
+
+    /// Nome dell'algoritmo delle chiavi
+    private final String key_algorithm;
+
+    private Cipher encrypt_cipher = null;
+    private Cipher decrypt_cipher = null;
+
+    /// Chiavi per i messaggi inviati e ricevuti, {@code null} finché l encoder non è inizializzato
+    private SecretKeySpec encrypt_key = null;
+    private SecretKeySpec decrypt_key = null;
+
+    /// Array in cui viene composto il nonce di ogni messaggio, i parametri del cifrario ne mantengono una copia
+    private final byte[] encrypt_nonce = new byte[NONCE_SIZE];
+    private final byte[] decrypt_nonce = new byte[NONCE_SIZE];
+
+    /// Contatore del prossimo messaggio da inviare
+    private long sent = 0;
+
+    /// Contatore minimo accettato per il prossimo messaggio ricevuto
+    private long expected = 0;
+
+    AeadEncoder(String transformation, String key_algorithm) {
+        this.transformation = transformation;
+        this.key_algorithm = key_algorithm;
+    }
+
+    /**
+     * Ritorna i parametri del cifrario per un messaggio
+     * @param nonce nonce del messaggio, viene riutilizzato per i messaggi successivi e deve essere copiato
+     * @return parametri con cui inizializzare il cifrario
+     */
+    abstract AlgorithmParameterSpec parameters(byte[] nonce);
+
+    @Override
+    public boolean init(byte[] shared_bytes) {
+        if (shared_bytes == null || shared_bytes.length < MIN_SHARED_BYTES) {
+            return false;
+        }
+
+        try {
+            if (encrypt_cipher == null) { //un istanza riutilizzata mantiene i cifrari del client precedente
+                encrypt_cipher = Cipher.getInstance(transformation);
+                decrypt_cipher = Cipher.getInstance(transformation);
+            }
+
+            encrypt_key = derive_key("server", shared_bytes);
+            decrypt_key = derive_key("client", shared_bytes);
+        }
+        catch (GeneralSecurityException _) {
+            return false;
+        }
+
+        sent = 0;
+        expected = 0;
+        return true;
+    }
+
+    /// Deriva la chiave per una direzione come {@code SHA-256(label | shared_bytes)}
+    private SecretKeySpec derive_key(String label, byte[] shared_bytes) throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(label.getBytes());
+        byte[] hash = digest.digest(shared_bytes);
+
+        SecretKeySpec key = new SecretKeySpec(hash, key_algorithm);
+        Arrays.fill(hash, (byte) 0);
+
+        return key;
+    }
+
+    @Override
+    public boolean is_reusable() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        encrypt_key = null;
+        decrypt_key = null;
+        sent = 0;
+        expected = 0;
+    }
+
+    @Override
+    public boolean supports_buffers() {
+        return true;
+    }
+
+    @Override
+    public int max_encoded_length(int length) {
+        return COUNTER_SIZE + length + TAG_SIZE;
+    }
+
+    @Override
+    public int max_decoded_length(int length) {
+        return Math.max(0, length - COUNTER_SIZE - TAG_SIZE);
+    }
+
+    @Override
+    public int encode(ByteBuffer src, ByteBuffer dst) {
+        if (encrypt_key == null || sent == Long.MAX_VALUE || dst.remaining() < max_encoded_length(src.remaining())) {
+            return -1;
+        }
+
+        long counter = sent++;
+        set_counter(encrypt_nonce, counter);
+
+        try {
+            encrypt_cipher.init(Cipher.ENCRYPT_MODE, encrypt_key, parameters(encrypt_nonce));
+
+            dst.putLong(counter);
+            return COUNTER_SIZE + encrypt_cipher.doFinal(src, dst);
+        }
+        catch (GeneralSecurityException _) {
+            return -1;
+        }
+    }
+
+    @Override
+    public int decode(ByteBuffer src, ByteBuffer dst) {
+        if (decrypt_key == null || src.remaining() < COUNTER_SIZE + TAG_SIZE) {
+            return -1;
+        }
+
+        long counter = src.getLong();
+        if (counter < expected) { //messaggio ripetuto o fuori ordine
+            return -1;
+        }
+        set_counter(decrypt_nonce, counter);
+
+        try {
+            decrypt_cipher.init(Cipher.DECRYPT_MODE, decrypt_key, parameters(decrypt_nonce));
+            int len = decrypt_cipher.doFinal(src, dst);
+
+            expected = counter + 1;
+            return len;
+        }
+        catch (GeneralSecurityException _) {
+            return -1;
+        }
+    }
+
+    @Override
+    public byte[] encode(byte[] msg) {
+        ByteBuffer dst = ByteBuffer.allocate(max_encoded_length(msg.length));
+
+        int len = encode(ByteBuffer.wrap(msg), dst);
+        return (len < 0)? null : dst.array();
+    }
+
+    @Override
+    public byte[] decode(byte[] msg) {
+        ByteBuffer dst = ByteBuffer.allocate(max_decoded_length(msg.length));
+
+        int len = decode(ByteBuffer.wrap(msg), dst);
+        return (len < 0)? null : Arrays.copyOf(dst.array(), len);
+    }
+
+    /// Scrive il contatore negli ultimi {@code 8 bytes} del nonce
+    private static void set_counter(byte[] nonce, long counter) {
+        for (int i = NONCE_SIZE - 1; i >= NONCE_SIZE - COUNTER_SIZE; i--) {
+            nonce[i] = (byte) counter;
+            counter >>>= 8;
+        }
+    }
+}
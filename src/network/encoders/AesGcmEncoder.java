@@ -0,0 +1,26 @@
+package network.encoders;
+
+import files.annotations.EncoderDefinition;
+
+import javax.crypto.spec.GCMParameterSpec;
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * Encoder incluso nel server che cifra i messaggi con {@code AES-256} in modalità {@code GCM}, sulle CPU con
+ * istruzioni {@code AES} e moltiplicazione senza riporto la JVM le utilizza direttamente per cifrare e calcolare il tag.
+ * Il formato dei messaggi e la derivazione delle chiavi sono descritti in {@code AeadEncoder}
+ */
+@EncoderDefinition(name = AesGcmEncoder.NAME)
+public class AesGcmEncoder extends AeadEncoder {
+    /// Nome con cui viene registrato questo encoder in {@code ServerManager}
+    public static final String NAME = "aes-gcm";
+
+    public AesGcmEncoder() {
+        super("AES/GCM/NoPadding", "AES");
+    }
+
+    @Override
+    AlgorithmParameterSpec parameters(byte[] nonce) {
+        return new GCMParameterSpec(TAG_SIZE * 8, nonce);
+    }
+}
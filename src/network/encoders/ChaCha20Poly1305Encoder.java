@@ -0,0 +1,26 @@
+package network.encoders;
+
+import files.annotations.EncoderDefinition;
+
+import javax.crypto.spec.IvParameterSpec;
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * Encoder incluso nel server che cifra i messaggi con {@code ChaCha20-Poly1305}, più veloce di {@code AES-GCM} sulle
+ * CPU senza istruzioni dedicate ad {@code AES}. Il formato dei messaggi e la derivazione delle chiavi sono descritti
+ * in {@code AeadEncoder}
+ */
+@EncoderDefinition(name = ChaCha20Poly1305Encoder.NAME)
+public class ChaCha20Poly1305Encoder extends AeadEncoder {
+    /// Nome con cui viene registrato questo encoder in {@code ServerManager}
+    public static final String NAME = "chacha20-poly1305";
+
+    public ChaCha20Poly1305Encoder() {
+        super("ChaCha20-Poly1305", "ChaCha20");
+    }
+
+    @Override
+    AlgorithmParameterSpec parameters(byte[] nonce) {
+        return new IvParameterSpec(nonce);
+    }
+}
@@ -0,0 +1,236 @@
+package network.encoders;
+
+import files.FileInterface;
+import files.Logger;
+import files.annotations.EncoderDefinition;
+import network.Encoder;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encoder incluso nel server che comprime i messaggi con {@code deflate}, non cifra i messaggi e deve quindi essere
+ * utilizzato come primo stadio di una pipeline seguito da un encoder che li cifra, come {@code deflate+aes-gcm}.
+ * Per questo è registrato con {@code ServerManager.register_pre_stage_encoder()}, che non permette ai clients di
+ * sceglierlo da solo.
+ * <p>Ogni messaggio inizia con un byte che indica il formato del resto del messaggio:
+ * <ul>
+ *     <li>{@code 0x00}: il messaggio originale non compresso</li>
+ *     <li>
+ *         {@code 0x01}: la lunghezza del messaggio originale in {@code 4 bytes} big endian seguita dal messaggio
+ *         compresso con {@code deflate} senza header {@code zlib}
+ *     </li>
+ * </ul>
+ * Messaggi più corti di {@code threshold} bytes, o che compressi non risparmiano spazio, vengono inviati non
+ * compressi. Se è impostato un dizionario con {@code set_dictionary()} viene utilizzato per comprimere e decomprimere
+ * ogni messaggio, e il client deve utilizzare lo stesso.
+ */
+@EncoderDefinition(name = DeflateEncoder.NAME)
+public class DeflateEncoder extends Encoder {
+    /// Nome con cui viene registrato questo encoder in {@code ServerManager}
+    public static final String NAME = "deflate";
+
+    /// Lunghezza massima di un messaggio decompresso, messaggi che dichiarano una lunghezza maggiore vengono scartati
+    public static final int MAX_DECODED_LENGTH = 16 * 1024 * 1024;
+
+    private static final byte RAW = 0x00;
+    private static final byte DEFLATED = 0x01;
+
+    /// Lunghezza dell'header dei messaggi compressi, formato e lunghezza originale
+    private static final int HEADER_SIZE = 5;
+
+    /// Massimo rapporto di compressione ottenibile con {@code deflate}, limita la lunghezza dichiarata dai messaggi
+    private static final int MAX_RATIO = 1032;
+
+    /// Dimensione iniziale del buffer in cui vengono decompressi i messaggi
+    private static final int MIN_DECODE_BUFFER = 256;
+
+    /// Lunghezza minima in bytes dei messaggi da comprimere
+    private static volatile int threshold = 128;
+
+    /// Dizionario utilizzato per comprimere i messaggi, {@code null} se non utilizzato
+    private static volatile byte[] dictionary = null;
+
+    /// Nome del file da cui è stato caricato il dizionario, vuoto se non utilizzato
+    private static volatile String dictionary_file = "";
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+
+    /// Dizionario e soglia in uso per il client, fissati all'inizializzazione
+    private byte[] client_dictionary = null;
+    private int client_threshold = 0;
+
+    /// Buffer in cui vengono compressi i messaggi, cresce fino alla dimensione del messaggio più lungo
+    private byte[] scratch = new byte[0];
+
+    /**
+     * Imposta la lunghezza minima dei messaggi da comprimere, i messaggi più corti vengono inviati non compressi.
+     * Viene utilizzata dai clients che si collegano da questo momento
+     * @param new_threshold lunghezza minima in bytes
+     */
+    public static void set_threshold(int new_threshold) {
+        threshold = Math.max(0, new_threshold);
+    }
+
+    /// Ritorna la lunghezza minima dei messaggi da comprimere
+    public static int get_threshold() {
+        return threshold;
+    }
+
+    /**
+     * Imposta il dizionario con cui comprimere i messaggi, viene utilizzato dai clients che si collegano da questo
+     * momento
+     * @param new_dictionary dizionario, {@code null} per non utilizzarne nessuno
+     */
+    public static void set_dictionary(byte[] new_dictionary) {
+        dictionary = (new_dictionary == null || new_dictionary.length == 0)? null : new_dictionary.clone();
+    }
+
+    /**
+     * Carica il dizionario da un file fra quelli gestiti da {@code FileInterface}
+     * @param file_name nome del file, se vuoto non viene utilizzato nessun dizionario
+     * @return {@code true} se il dizionario è stato impostato, {@code false} se non è stato possibile leggere il file
+     */
+    public static boolean set_dictionary_file(String file_name) {
+        if (file_name.isEmpty()) {
+            dictionary_file = "";
+            set_dictionary(null);
+
+            return true;
+        }
+
+        byte[] data = FileInterface.read_file(file_name);
+        if (data == null) {
+            Logger.log("impossibile leggere il dizionario per l encoder: (" + NAME + ") dal file: (" + file_name + ")", true);
+            return false;
+        }
+
+        dictionary_file = file_name;
+        set_dictionary(data);
+
+        return true;
+    }
+
+    /// Ritorna il nome del file da cui è stato caricato il dizionario, vuoto se non ne è utilizzato nessuno
+    public static String get_dictionary_file() {
+        return dictionary_file;
+    }
+
+    @Override
+    public boolean init(byte[] shared_bytes) {
+        client_dictionary = dictionary;
+        client_threshold = threshold;
+
+        return true;
+    }
+
+    @Override
+    public boolean is_reusable() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        deflater.reset();
+        inflater.reset();
+        client_dictionary = null;
+    }
+
+    @Override
+    public byte[] encode(byte[] msg) {
+        if (msg.length < client_threshold || msg.length <= HEADER_SIZE) {
+            return raw(msg);
+        }
+
+        deflater.reset();
+        if (client_dictionary != null) {
+            deflater.setDictionary(client_dictionary);
+        }
+        deflater.setInput(msg);
+        deflater.finish();
+
+        //se compresso non è più corto del messaggio originale non conviene inviarlo compresso
+        if (scratch.length < msg.length) {
+            scratch = new byte[msg.length];
+        }
+
+        int len = HEADER_SIZE;
+        while (!deflater.finished() && len < msg.length) {
+            len += deflater.deflate(scratch, len, msg.length - len);
+        }
+
+        if (!deflater.finished()) {
+            return raw(msg);
+        }
+
+        scratch[0] = DEFLATED;
+        scratch[1] = (byte) (msg.length >>> 24);
+        scratch[2] = (byte) (msg.length >>> 16);
+        scratch[3] = (byte) (msg.length >>> 8);
+        scratch[4] = (byte) msg.length;
+
+        return Arrays.copyOf(scratch, len);
+    }
+
+    /// Ritorna il messaggio preceduto dal byte che indica che non è compresso
+    private static byte[] raw(byte[] msg) {
+        byte[] encoded = new byte[msg.length + 1];
+        encoded[0] = RAW;
+        System.arraycopy(msg, 0, encoded, 1, msg.length);
+
+        return encoded;
+    }
+
+    @Override
+    public byte[] decode(byte[] msg) {
+        if (msg.length == 0) {
+            return null;
+        }
+
+        if (msg[0] == RAW) {
+            return Arrays.copyOfRange(msg, 1, msg.length);
+        }
+        if (msg[0] != DEFLATED || msg.length < HEADER_SIZE) {
+            return null;
+        }
+
+        //la lunghezza dichiarata non può superare quella ottenibile decomprimendo i bytes ricevuti
+        int length = ((msg[1] & 0xFF) << 24) | ((msg[2] & 0xFF) << 16) | ((msg[3] & 0xFF) << 8) | (msg[4] & 0xFF);
+        int compressed = msg.length - HEADER_SIZE;
+        if (length <= 0 || length > MAX_DECODED_LENGTH || length > (long) compressed * MAX_RATIO) {
+            return null;
+        }
+
+        inflater.reset();
+        if (client_dictionary != null) {
+            inflater.setDictionary(client_dictionary);
+        }
+        inflater.setInput(msg, HEADER_SIZE, compressed);
+
+        //il buffer cresce con i bytes effettivamente decompressi, non viene allocata subito la lunghezza dichiarata
+        byte[] decoded = new byte[Math.min(length, Math.max(MIN_DECODE_BUFFER, compressed * 4))];
+        int len = 0;
+        try {
+            while (len < length) {
+                if (len == decoded.length) {
+                    decoded = Arrays.copyOf(decoded, (int) Math.min(length, decoded.length * 2L));
+                }
+
+                int read = inflater.inflate(decoded, len, decoded.length - len);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+
+                len += read;
+            }
+        }
+        catch (DataFormatException _) {
+            return null;
+        }
+
+        return (len == length)? decoded : null;
+    }
+}
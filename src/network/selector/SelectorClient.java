@@ -0,0 +1,497 @@
+package network.selector;
+
+import files.Logger;
+import network.BufferPool;
+import network.Client;
+import network.HashedWheelTimer;
+import network.MessageBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Client collegato attraverso un {@code SelectorConnector}, non ha un thread dedicato ma i suoi dati vengono letti e
+ * scritti da un {@code SelectorLoop} condiviso con altri clients.
+ * <p>Ogni messaggio è preceduto dalla sua lunghezza in {@code 4 bytes} big endian. Finché non viene impostato
+ * l encoder i messaggi ricevuti vengono messi in coda e restituiti da {@code read_message()}, permettendo di eseguire
+ * l handshake in modo bloccante, una volta impostato vengono passati direttamente a {@code handle_message()} dal
+ * thread del loop.
+ * <p>I messaggi vengono letti direttamente in buffers ottenuti da {@code BufferPool} e passati ai worker threads
+ * senza essere copiati. Il buffer di un messaggio cresce man mano che ne arrivano i bytes, così un client non può
+ * far allocare {@code MAX_MESSAGE_SIZE} bytes inviando solo la lunghezza.
+ * <p>Prima di {@code start_listening()} vengono mantenuti al massimo {@code MAX_HANDSHAKE_MESSAGES} messaggi e
+ * {@code MAX_HANDSHAKE_MESSAGE_SIZE} bytes del messaggio che si sta ricevendo, superati i limiti il canale smette di
+ * essere letto fino alla fine dell handshake. Il client potrebbe aver già ricevuto la risposta all handshake e
+ * inviare i primi messaggi prima che venga impostato l encoder, se invece non completa l handshake viene chiuso
+ * dalle scadenze di {@code HandshakeStage}.
+ */
+public class SelectorClient extends Client {
+    /// Inserito nell'inbox alla chiusura del client per far ritornare {@code null} a {@code read_message()}
+    private static final MessageBuffer CLOSED = MessageBuffer.wrap(new byte[0]);
+
+    /// Numero massimo di messaggi ricevuti durante l handshake in attesa di essere letti, oltre il canale non viene più letto
+    private static final int MAX_HANDSHAKE_MESSAGES = 16;
+
+    /// Canale utilizzato per comunicare con il client
+    private final SocketChannel channel;
+
+    /// Loop a cui è registrato il canale di questo client
+    private final SelectorLoop loop;
+
+    /// Chiave con cui il canale è registrato al selector del loop, {@code null} finché non viene registrato
+    private SelectionKey key;
+
+    /// Contiene i {@code 4 bytes} con la lunghezza del prossimo messaggio mentre vengono ricevuti
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+
+    /**
+     * Messaggio che si sta ricevendo, {@code null} se si sta attendendo la lunghezza del prossimo. Può essere più
+     * corto del messaggio finché non ne sono arrivati tutti i bytes, viene utilizzato solo dal thread del loop
+     */
+    private MessageBuffer frame;
+
+    /// Lunghezza dichiarata del messaggio che si sta ricevendo
+    private int frame_len;
+
+    /// Numero di bytes di {@code frame} già ricevuti
+    private int frame_pos;
+
+    /// Dati letti dal canale dopo aver superato i limiti dell handshake, vengono divisi in messaggi da {@code start_listening()}
+    private ByteBuffer held;
+
+    /// Messaggi ricevuti prima di impostare l encoder, in attesa di essere letti da {@code read_message()}
+    private final LinkedBlockingQueue<MessageBuffer> inbox = new LinkedBlockingQueue<>();
+
+    /// {@code true} una volta chiamato {@code start_listening()}, i messaggi vengono processati appena ricevuti
+    private volatile boolean listening = false;
+
+    /// Buffers in attesa di essere scritti nel canale, accessibile solo sincronizzandosi su di esso
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+
+    /// {@code true} mentre il canale non viene letto per aver superato il limite di messaggi, accessibile sincronizzandosi su {@code pending}
+    private boolean read_paused = false;
+
+    /// Diventa {@code true} alla chiusura del client
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    public SelectorClient(String connector_name, SocketChannel channel, SelectorLoop loop) {
+        super(connector_name);
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    /// Ritorna il canale utilizzato per comunicare con il client
+    SocketChannel get_channel() {
+        return channel;
+    }
+
+    /// Ritorna {@code true} se il client ha completato l handshake e i suoi messaggi vengono processati appena ricevuti
+    boolean is_listening() {
+        return listening;
+    }
+
+    /**
+     * Imposta la chiave con cui il canale è stato registrato al selector, se erano già presenti dati da inviare
+     * richiede di essere notificato quando il canale è pronto per essere scritto
+     * @param key chiave del canale
+     */
+    void set_key(SelectionKey key) {
+        synchronized (pending) {
+            this.key = key;
+
+            if (!pending.isEmpty()) {
+                key.interestOps(interest_ops());
+            }
+        }
+    }
+
+    /**
+     * Riceve i dati letti dal canale e li divide in messaggi, una volta completato un messaggio lo inoltra. Viene
+     * chiamato unicamente dal thread del loop
+     * @param src dati letti dal canale
+     */
+    void feed(ByteBuffer src) {
+        while (src.hasRemaining() && !closed.get()) {
+            if (!listening && handshake_limit_reached()) {
+                hold(src);
+                return;
+            }
+
+            if (frame == null) { //sta ricevendo la lunghezza del prossimo messaggio
+                while (header.hasRemaining() && src.hasRemaining()) {
+                    header.put(src.get());
+                }
+                if (header.hasRemaining()) {
+                    return;
+                }
+
+                int len = header.getInt(0);
+                header.clear();
+
+                if (len <= 0 || len > SelectorConnector.MAX_MESSAGE_SIZE) {
+                    Logger.log("il client: (" + get_name() + ") ha inviato un messaggio di lunghezza non valida: (" + len + ")", true);
+                    close();
+                    return;
+                }
+
+                //il buffer viene ingrandito solo quando arrivano i bytes, la lunghezza dichiarata non basta ad allocarlo
+                frame = BufferPool.acquire(Math.min(len, BufferPool.MAX_BUFFER_SIZE));
+                frame_len = len;
+                frame_pos = 0;
+            }
+
+            if (frame_pos == frame.length()) { //il buffer è pieno ma il messaggio non è ancora completo
+                grow_frame();
+            }
+
+            int read = Math.min(src.remaining(), frame.length() - frame_pos);
+            src.get(frame.array(), frame.offset() + frame_pos, read);
+            frame_pos += read;
+
+            if (frame_pos == frame_len) {
+                MessageBuffer msg = frame;
+                frame = null;
+
+                deliver(msg);
+            }
+        }
+    }
+
+    /// Controlla se durante l handshake il client ha già inviato tutti i dati che vengono mantenuti
+    private boolean handshake_limit_reached() {
+        return inbox.size() >= MAX_HANDSHAKE_MESSAGES || (frame != null && frame_pos >= SelectorConnector.MAX_HANDSHAKE_MESSAGE_SIZE);
+    }
+
+    /**
+     * Copia i dati rimanenti di {@code src}, che è il buffer di lettura condiviso del loop, e smette di leggere il
+     * canale finché non viene chiamato {@code start_listening()}
+     * @param src dati letti dal canale non ancora divisi in messaggi
+     */
+    private void hold(ByteBuffer src) {
+        held = ByteBuffer.allocate(src.remaining()).put(src).flip();
+
+        synchronized (pending) {
+            read_paused = true;
+            if (key != null && key.isValid()) {
+                key.interestOps(interest_ops());
+            }
+        }
+    }
+
+    /**
+     * Divide in messaggi i dati trattenuti durante l handshake e, se non vengono superati di nuovo i limiti, riprende
+     * a leggere il canale. Chiamato dal thread del loop
+     */
+    private void release_held() {
+        if (held == null) {
+            return;
+        }
+
+        ByteBuffer src = held;
+        held = null;
+
+        feed(src);
+        if (held == null) {
+            resume_reading();
+        }
+    }
+
+    /// Sostituisce {@code frame} con un buffer lungo il doppio, o quanto il messaggio se è più corto, copiando i bytes già ricevuti
+    private void grow_frame() {
+        MessageBuffer grown = BufferPool.acquire((int) Math.min(frame_len, 2L * frame.length()));
+        System.arraycopy(frame.array(), frame.offset(), grown.array(), grown.offset(), frame_pos);
+
+        frame.release();
+        frame = grown;
+    }
+
+    /// Rilascia il messaggio che si stava ricevendo alla chiusura del client, chiamato dal thread del loop
+    private void release_frame() {
+        if (frame != null) {
+            frame.release();
+            frame = null;
+        }
+    }
+
+    /**
+     * Inoltra un messaggio completo, se non è ancora impostato l encoder viene aggiunto all'inbox altrimenti viene
+     * processato subito
+     * @param msg messaggio ricevuto
+     */
+    private void deliver(MessageBuffer msg) {
+        synchronized (inbox) {
+            if (!listening) {
+                inbox.add(msg);
+                return;
+            }
+        }
+
+        try {
+            handle_message(msg);
+        }
+        catch (Exception e) {
+            Logger.log("errore nel processare un messaggio dal client: (" + get_name() + ")\n\t\t\t\t" + e.getMessage(), true);
+            close();
+        }
+    }
+
+    /**
+     * Invece di far partire un thread in ascolto processa tutti i messaggi ricevuti durante l handshake e da questo
+     * momento ogni nuovo messaggio verrà processato dal thread del loop appena ricevuto
+     */
+    @Override
+    protected void start_listening() {
+        synchronized (inbox) {
+            MessageBuffer msg;
+            while ((msg = inbox.poll()) != null) {
+                if (msg == CLOSED) { //il client è stato chiuso durante l handshake
+                    on_disconnect();
+                    return;
+                }
+
+                handle_message(msg);
+            }
+
+            listening = true;
+        }
+
+        //se durante l handshake sono stati superati i limiti il canale non viene letto finché non vengono processati i dati trattenuti
+        loop.execute(this::release_held);
+    }
+
+    @Override
+    public byte[] read_message() {
+        try {
+            MessageBuffer msg = inbox.take();
+            if (msg == CLOSED) {
+                inbox.add(CLOSED); //anche le chiamate successive dovranno ritornare null
+                return null;
+            }
+
+            byte[] bytes = msg.to_array();
+            msg.release();
+
+            //c'è di nuovo spazio nell'inbox, se il canale non veniva letto per i limiti dell handshake può riprendere
+            loop.execute(this::release_held);
+
+            return bytes;
+        }
+        catch (InterruptedException _) {
+            return null;
+        }
+    }
+
+    /**
+     * Prova a scrivere il messaggio direttamente nel canale, se non è possibile scriverlo tutto, o altri dati erano
+     * già in attesa, viene aggiunto a quelli da inviare e scritto dal loop appena il canale è pronto. Non blocca mai
+     * il thread chiamante
+     * @param msg messaggio da inviare al client
+     */
+    @Override
+    public void direct_send(byte[] msg) {
+        write(new ByteBuffer[] {
+                ByteBuffer.allocate(4).putInt(0, msg.length),
+                ByteBuffer.wrap(msg)
+        });
+    }
+
+    /**
+     * Scrive il messaggio direttamente dal buffer del pool, se non è possibile scriverlo subito tutto la parte
+     * rimanente viene copiata in modo da rilasciare comunque il buffer
+     * @param msg messaggio da inviare al client
+     */
+    @Override
+    public void direct_send(MessageBuffer msg) {
+        ByteBuffer[] buffers = new ByteBuffer[] {
+                ByteBuffer.allocate(4).putInt(0, msg.length()),
+                ByteBuffer.wrap(msg.array(), msg.offset(), msg.length())
+        };
+
+        try {
+            write(buffers);
+        }
+        finally {
+            //se è rimasto qualcosa da scrivere write() lo ha già copiato
+            msg.release();
+        }
+    }
+
+    /**
+     * Scrive tutti i messaggi nel canale con una sola operazione, come per {@code direct_send(byte[])} quello che
+     * non è possibile scrivere subito viene scritto dal loop. Non blocca mai il thread chiamante
+     * @param msgs messaggi da inviare al client, in ordine
+     */
+    @Override
+    public void direct_send(byte[][] msgs) {
+        ByteBuffer headers = ByteBuffer.allocate(4 * msgs.length);
+        ByteBuffer[] buffers = new ByteBuffer[2 * msgs.length];
+
+        for (int i = 0; i < msgs.length; i++) {
+            headers.putInt(4 * i, msgs[i].length);
+
+            buffers[2 * i] = headers.slice(4 * i, 4);
+            buffers[2 * i + 1] = ByteBuffer.wrap(msgs[i]);
+        }
+
+        write(buffers);
+    }
+
+    /**
+     * Scrive i buffers nel canale con una gathering write, se non è possibile scriverli tutti, o altri dati erano già
+     * in attesa, quelli rimanenti vengono copiati fra i dati da inviare e il loop viene notificato
+     * @param buffers buffers da scrivere, in ordine
+     */
+    private void write(ByteBuffer[] buffers) {
+        boolean failed = false;
+        synchronized (pending) {
+            if (closed.get()) {
+                return;
+            }
+
+            try {
+                if (pending.isEmpty()) {
+                    channel.write(buffers);
+                }
+
+                if (buffers[buffers.length - 1].hasRemaining()) { //non è riuscito a scrivere tutti i dati
+                    for (ByteBuffer buffer : buffers) {
+                        if (buffer.hasRemaining()) {
+                            //copia i dati rimanenti, i buffers potrebbero tornare nel pool prima di essere scritti
+                            pending.add(ByteBuffer.allocate(buffer.remaining()).put(buffer).flip());
+                        }
+                    }
+
+                    if (key != null && key.isValid()) {
+                        key.interestOps(interest_ops());
+                        loop.wakeup();
+                    }
+                }
+            }
+            catch (IOException e) {
+                Logger.log("impossibile inviare un messaggio al client: (" + get_name() + ")\n\t\t\t\t" + e.getMessage(), true);
+                failed = true;
+            }
+        }
+
+        if (failed) {
+            close();
+        }
+    }
+
+    /// Ritorna gli eventi a cui è interessato il canale, da chiamare sincronizzandosi su {@code pending}
+    private int interest_ops() {
+        int ops = read_paused? 0 : SelectionKey.OP_READ;
+        return pending.isEmpty()? ops : ops | SelectionKey.OP_WRITE;
+    }
+
+    /**
+     * Smette di leggere il canale senza bloccare il thread del loop, dopo {@code millis} millisecondi il timer
+     * condiviso chiede al loop di riprendere la lettura
+     * @param millis millisecondi in cui non leggere messaggi dal client
+     */
+    @Override
+    protected void throttle(long millis) {
+        synchronized (pending) {
+            if (read_paused || key == null || !key.isValid()) {
+                return;
+            }
+
+            read_paused = true;
+            key.interestOps(interest_ops());
+        }
+
+        HashedWheelTimer.get_shared().schedule(() -> loop.execute(this::resume_reading), millis);
+    }
+
+    /// Riprende a leggere il canale dopo {@code throttle()}, chiamato dal thread del loop
+    private void resume_reading() {
+        synchronized (pending) {
+            read_paused = false;
+            if (key != null && key.isValid()) {
+                key.interestOps(interest_ops());
+            }
+        }
+    }
+
+    /// Il client non sta leggendo i dati inviati finché ce ne sono in attesa di essere scritti nel canale
+    @Override
+    protected boolean is_writable() {
+        synchronized (pending) {
+            return pending.isEmpty();
+        }
+    }
+
+    /**
+     * Scrive nel canale tutti i dati in attesa finché questo ne accetta, quando sono stati scritti tutti smette di
+     * richiedere notifiche per la scrittura e chiama {@code on_writable()}. Viene chiamato unicamente dal thread del
+     * loop
+     */
+    void flush() {
+        boolean failed = false;
+        boolean drained = false;
+
+        synchronized (pending) {
+            try {
+                if (!pending.isEmpty()) {
+                    channel.write(pending.toArray(new ByteBuffer[0]));
+
+                    while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+                        pending.poll();
+                    }
+                    if (!pending.isEmpty()) { //il canale non accetta altri dati per ora
+                        return;
+                    }
+                }
+
+                key.interestOps(interest_ops());
+                drained = true;
+            }
+            catch (IOException e) {
+                Logger.log("impossibile inviare i dati in attesa al client: (" + get_name() + ")\n\t\t\t\t" + e.getMessage(), true);
+                failed = true;
+            }
+        }
+
+        if (failed) {
+            close();
+        }
+        else if (drained) { //il client ha letto tutti i dati, i messaggi in coda possono essere inviati
+            on_writable();
+        }
+    }
+
+    /**
+     * Chiude il canale con il client, se l handshake è ancora in corso {@code read_message()} ritornerà {@code null},
+     * altrimenti viene chiamato {@code on_disconnect()} dal thread del loop
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) { //già chiuso
+            return;
+        }
+
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            Logger.log("errore nella chiusura del canale con il client: (" + get_name() + ")\n\t\t\t\t" + e.getMessage(), true);
+        }
+
+        boolean was_listening;
+        synchronized (inbox) {
+            was_listening = listening;
+            inbox.add(CLOSED);
+        }
+
+        //dal thread del loop in modo che non possa sovrapporsi a un messaggio che sta ancora venendo ricevuto o decifrato
+        loop.execute(this::release_frame);
+        if (was_listening) {
+            loop.execute(this::on_disconnect);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package network.selector;
+
+import files.Logger;
+import network.ClientsInterface;
+import network.Connector;
+import network.HandshakeStage;
+import network.IdleReaper;
+import network.RateLimiter;
+import network.ServerManager;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+/**
+ * Connector TCP incluso nel server, invece di utilizzare un thread per ogni client registra tutti i canali a un
+ * piccolo numero di {@code SelectorLoop} che li gestiscono senza bloccarsi, permettendo di mantenere un gran numero
+ * di connessioni inattive con pochi thread.
+ * <p>Ogni messaggio scambiato con i clients è preceduto dalla sua lunghezza in {@code 4 bytes} big endian. Appena
+ * connesso il server invia la sua chiave pubblica {@code X25519} codificata {@code X.509} e il client risponde con la
+ * sua, dal segreto condiviso vengono derivate le chiavi {@code AES} della session key come
+ * {@code SHA-256("server" | segreto)} per i messaggi inviati dal server e {@code SHA-256("client" | segreto)} per
+ * quelli inviati dal client, dove i primi {@code 16 bytes} sono la chiave e gli ultimi {@code 16} l'IV.
+ * <p>La session key è {@code AES/CBC} con lo stesso IV per tutti i messaggi di una direzione e senza autenticazione:
+ * messaggi uguali producono gli stessi bytes cifrati e un messaggio modificato non viene riconosciuto come tale. Viene
+ * utilizzata solo per i pochi messaggi dell handshake, dopo cui la connessione è protetta dall encoder concordato, ma
+ * non può essere sostituita da un cipher AEAD, dato che {@code ClientsInterface} chiama {@code doFinal()} più volte
+ * sullo stesso {@code Cipher} e in {@code GCM} un cipher non può cifrare due volte con lo stesso IV.
+ * <p>Allo spegnimento vengono chiusi subito i canali dei clients che non hanno completato l handshake, mentre gli
+ * altri rimangono aperti finché {@code ClientsInterface} non li scollega inviando {@code EOC}, come richiesto da
+ * {@code Connector.stop()}.
+ */
+public class SelectorConnector extends Connector {
+    /// Nome con cui viene registrato questo connector in {@code ServerManager}
+    public static final String NAME = "tcp";
+
+    /// Dimensione massima in bytes di un singolo messaggio, clients che inviano messaggi più lunghi vengono chiusi
+    public static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    /// Dimensione massima in bytes di un messaggio ricevuto prima della fine dell handshake
+    public static final int MAX_HANDSHAKE_MESSAGE_SIZE = 16 * 1024;
+
+    /// Porta su cui il connector attende nuove connessioni
+    private static int port = 31415;
+
+    /// Numero di {@code SelectorLoop} fra cui vengono divisi i clients
+    private static int loops_number = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    /*
+     * Registra le opzioni del connector nel file status.dat
+     */
+    static {
+        ServerManager.add_status_option("tcp_port", () -> Integer.toString(port), value -> {
+            try {
+                set_port(Integer.parseInt(value));
+            }
+            catch (NumberFormatException _) {
+                Logger.log("impossibile comprendere la porta per il connector: (" + NAME + "): (" + value + "), era atteso un numero", true);
+            }
+        });
+
+        ServerManager.add_status_option("tcp_loops", () -> Integer.toString(loops_number), value -> {
+            try {
+                set_loops_number(Integer.parseInt(value));
+            }
+            catch (NumberFormatException _) {
+                Logger.log("impossibile comprendere il numero di selector loop per il connector: (" + NAME + "): (" + value + "), era atteso un numero", true);
+            }
+        });
+
+        ServerManager.add_status_option("tcp_idle_timeout", () -> Long.toString(IdleReaper.get_idle_timeout(NAME)), value -> {
+            try {
+                IdleReaper.set_idle_timeout(NAME, Long.parseLong(value));
+            }
+            catch (NumberFormatException _) {
+                Logger.log("impossibile comprendere il timeout di inattività per il connector: (" + NAME + "): (" + value + "), era atteso un numero", true);
+            }
+        });
+
+        ServerManager.add_status_option("tcp_rate_limit", () -> Double.toString(RateLimiter.get_connector_rate(NAME)), value -> {
+            try {
+                RateLimiter.set_connector_limit(NAME, Double.parseDouble(value));
+            }
+            catch (NumberFormatException _) {
+                Logger.log("impossibile comprendere il limite di messaggi per il connector: (" + NAME + "): (" + value + "), era atteso un numero", true);
+            }
+        });
+    }
+
+    /// Loops che gestiscono i canali dei clients, vengono creati alla prima accensione e rimangono sempre attivi
+    private SelectorLoop[] loops = new SelectorLoop[0];
+
+    /// Index del loop a cui assegnare il prossimo client, utilizzato solo dal thread del primo loop
+    private int next_loop = 0;
+
+    /// Canale in attesa di nuove connessioni, {@code null} o chiuso a connector spento
+    private ServerSocketChannel server_channel;
+
+    public SelectorConnector() {
+        super(NAME);
+    }
+
+    /**
+     * Imposta la porta su cui il connector attende nuove connessioni, la modifica ha effetto alla prossima accensione
+     * @param new_port porta compresa fra {@code 1} e {@code 65535}
+     */
+    public static void set_port(int new_port) {
+        if (new_port <= 0 || new_port > 65535) {
+            Logger.log("impossibile impostare la porta del connector: (" + NAME + ") a: (" + new_port + ")", true);
+            return;
+        }
+
+        port = new_port;
+    }
+
+    /// Ritorna la porta su cui il connector attende nuove connessioni
+    public static int get_port() {
+        return port;
+    }
+
+    /**
+     * Imposta il numero di {@code SelectorLoop} fra cui dividere i clients, ha effetto solo se modificato prima della
+     * prima accensione del connector
+     * @param number numero {@code > 0} di loops
+     */
+    public static void set_loops_number(int number) {
+        if (number <= 0) {
+            Logger.log("impossibile impostare il numero di selector loop del connector: (" + NAME + ") a: (" + number + ")", true);
+            return;
+        }
+
+        loops_number = number;
+    }
+
+    /// Ritorna il numero di {@code SelectorLoop} fra cui vengono divisi i clients
+    public static int get_loops_number() {
+        return loops_number;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (get_status()) {
+            Logger.log("il connector: (" + NAME + ") è già acceso", true);
+            return;
+        }
+
+        try {
+            if (loops.length == 0) {
+                loops = new SelectorLoop[loops_number];
+                for (int i = 0; i < loops_number; i++) {
+                    loops[i] = new SelectorLoop(i);
+                }
+            }
+
+            server_channel = ServerSocketChannel.open();
+            server_channel.configureBlocking(false);
+            server_channel.bind(new InetSocketAddress(port));
+
+            loops[0].register_server(server_channel, this);
+            Logger.log("il connector: (" + NAME + ") è in attesa di connessioni sulla porta: (" + port + ")");
+        }
+        catch (IOException e) {
+            Logger.log("impossibile accendere il connector: (" + NAME + ") sulla porta: (" + port + ")\n\t\t\t\t" + e.getMessage(), true);
+            stop();
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (server_channel == null) {
+            return;
+        }
+
+        try {
+            server_channel.close();
+        }
+        catch (IOException e) {
+            Logger.log("errore nella chiusura del canale del connector: (" + NAME + ")\n\t\t\t\t" + e.getMessage(), true);
+        }
+        server_channel = null;
+
+        //i clients ancora nell handshake non sono in ClientsInterface, che scollegherà solo gli altri
+        for (SelectorLoop loop : loops) {
+            loop.close_handshaking_clients();
+        }
+    }
+
+    @Override
+    public synchronized boolean get_status() {
+        return server_channel != null && server_channel.isOpen();
+    }
+
+    /**
+     * Riceve una nuova connessione dal loop che attende sul canale del connector, la assegna a uno dei loop e inizia
+     * l handshake attraverso {@code HandshakeStage}
+     * @param channel canale con il nuovo client
+     */
+    void accept(SocketChannel channel) {
+        SelectorLoop loop = loops[next_loop];
+        next_loop = (next_loop + 1) % loops.length;
+
+        SelectorClient client;
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            client = new SelectorClient(NAME, channel, loop);
+        }
+        catch (IOException e) {
+            Logger.log("impossibile configurare il canale di un nuovo client per il connector: (" + NAME + ")\n\t\t\t\t" + e.getMessage(), true);
+            try {
+                channel.close();
+            }
+            catch (IOException _) {}
+
+            return;
+        }
+
+        loop.register_client(client);
+        HandshakeStage.submit(client, () -> handshake(client));
+    }
+
+    /**
+     * Concorda con il client una session key e lo passa a {@code ClientsInterface.new_client()}, eseguito da
+     * {@code HandshakeStage} in modo che scambio della session key ed encoder agreement rientrino nelle stesse
+     * scadenze
+     * @param client client appena collegato
+     * @return {@code true} se l handshake è stato completato
+     */
+    private boolean handshake(SelectorClient client) {
+        Cipher[] session_key = key_exchange(client);
+        if (session_key == null) {
+            client.close();
+            return false;
+        }
+
+        return ClientsInterface.new_client(NAME, client, session_key);
+    }
+
+    /**
+     * Scambia con il client le chiavi pubbliche {@code X25519} e dal segreto condiviso deriva la session key
+     * @param client client con cui concordare la session key
+     * @return session key come {@code [cipher per inviare, cipher per ricevere]} o {@code null} se è fallito
+     */
+    private Cipher[] key_exchange(SelectorClient client) {
+        try {
+            KeyPair key_pair = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+            client.direct_send(key_pair.getPublic().getEncoded());
+
+            byte[] client_key_bytes = HandshakeStage.read_message(client);
+            if (client_key_bytes == null) {
+                Logger.log("errore nell'attesa della chiave pubblica dal client: (" + client.get_name() + ")", true);
+                return null;
+            }
+
+            PublicKey client_key = KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(client_key_bytes));
+            KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+            agreement.init(key_pair.getPrivate());
+            agreement.doPhase(client_key, true);
+
+            byte[] secret = agreement.generateSecret();
+
+            return new Cipher[] {
+                    session_cipher(Cipher.ENCRYPT_MODE, "server", secret),
+                    session_cipher(Cipher.DECRYPT_MODE, "client", secret)
+            };
+        }
+        catch (Exception e) {
+            Logger.log("impossibile concordare una session key con il client: (" + client.get_name() + ")\n\t\t\t\t" + e.getMessage(), true);
+            return null;
+        }
+    }
+
+    /**
+     * Deriva dal segreto condiviso con il client un cipher {@code AES} per una delle due direzioni della connessione,
+     * l IV è fisso per tutta la connessione come descritto nella documentazione della classe
+     * @param mode   {@code Cipher.ENCRYPT_MODE} o {@code Cipher.DECRYPT_MODE}
+     * @param label  direzione della connessione, {@code "server"} o {@code "client"}
+     * @param secret segreto condiviso con il client
+     * @return cipher inizializzato
+     */
+    private static Cipher session_cipher(int mode, String label, byte[] secret) throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(label.getBytes());
+        byte[] hash = digest.digest(secret);
+
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(
+                mode,
+                new SecretKeySpec(Arrays.copyOfRange(hash, 0, 16), "AES"),
+                new IvParameterSpec(Arrays.copyOfRange(hash, 16, 32))
+        );
+
+        return cipher;
+    }
+}
@@ -0,0 +1,208 @@
+package network.selector;
+
+import files.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread che gestisce un {@code Selector} a cui sono registrati i canali di più clients, per ogni canale pronto
+ * esegue accettazione di nuove connessioni, lettura o scrittura senza mai bloccarsi su un singolo client.
+ * <p>Istanze di questa classe vengono create e gestite da {@code SelectorConnector}, ognuna rimane attiva finché il
+ * programma non viene chiuso così da poter continuare a comunicare con i clients anche a connector spento.
+ */
+class SelectorLoop extends Thread {
+    /// Dimensione del buffer utilizzato per leggere dai canali, condiviso fra tutti i clients di questo loop
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /// Selector a cui sono registrati tutti i canali gestiti da questo loop
+    private final Selector selector;
+
+    /**
+     * Operazioni da eseguire nel thread di questo loop la prossima volta che si risveglia, utilizzato per registrare
+     * nuovi canali al selector dagli altri thread
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /// Buffer in cui vengono letti i dati da ogni canale prima di essere divisi in messaggi dal client
+    private final ByteBuffer read_buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    public SelectorLoop(int index) throws IOException {
+        super("selector loop " + index);
+        selector = Selector.open();
+
+        setDaemon(true);
+        start();
+    }
+
+    /**
+     * Esegue {@code task} dal thread di questo loop appena possibile, risvegliandolo se è in attesa sul selector
+     * @param task operazione da eseguire
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /// Risveglia il thread se in attesa sul selector, utilizzato quando viene modificato l interest set di un canale
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * Registra il canale di un connector a questo loop, che accetterà tutte le nuove connessioni passandole al
+     * connector
+     * @param channel   canale in attesa di connessioni
+     * @param connector connector a cui passare ogni nuova connessione
+     */
+    public void register_server(ServerSocketChannel channel, SelectorConnector connector) {
+        execute(() -> {
+            try {
+                channel.register(selector, SelectionKey.OP_ACCEPT, connector);
+            }
+            catch (IOException e) {
+                Logger.log("impossibile registrare il connector: (" + connector.get_name() + ") al selector loop: (" + getName() + ")\n\t\t\t\t" + e.getMessage(), true);
+            }
+        });
+    }
+
+    /**
+     * Registra il canale di un client a questo loop, da quel momento tutti i dati ricevuti verranno passati al client
+     * @param client client da registrare
+     */
+    public void register_client(SelectorClient client) {
+        execute(() -> {
+            try {
+                client.set_key(client.get_channel().register(selector, SelectionKey.OP_READ, client));
+            }
+            catch (IOException e) {
+                Logger.log("impossibile registrare il client: (" + client.get_name() + ") al selector loop: (" + getName() + ")\n\t\t\t\t" + e.getMessage(), true);
+                client.close();
+            }
+        });
+    }
+
+    /**
+     * Chiude tutti i clients registrati a questo loop che non hanno ancora completato l handshake, chiamato allo
+     * spegnimento del connector. I clients che lo hanno completato sono registrati in {@code ClientsInterface} e
+     * vengono scollegati da quest ultimo notificandoli con {@code EOC}
+     */
+    public void close_handshaking_clients() {
+        execute(() -> {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof SelectorClient client && !client.is_listening()) {
+                    client.close();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            }
+            catch (IOException e) {
+                Logger.log("errore nell'attesa di eventi nel selector loop: (" + getName() + ")\n\t\t\t\t" + e.getMessage(), true);
+                break;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                }
+                catch (Exception e) { //un errore in un operazione non deve fermare il loop e tutti i suoi clients
+                    Logger.log("errore nell'eseguire un operazione nel selector loop: (" + getName() + ")\n\t\t\t\t" + e.getMessage(), true);
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                try {
+                    process_key(key);
+                }
+                catch (CancelledKeyException _) {
+                    //il canale è stato chiuso da un altro thread mentre si processava l'evento
+                }
+                catch (Exception e) { //viene chiuso solo il client coinvolto
+                    Logger.log("errore nel processare un evento nel selector loop: (" + getName() + ")\n\t\t\t\t" + e.getMessage(), true);
+
+                    if (key.attachment() instanceof SelectorClient client) {
+                        client.close();
+                    }
+                }
+            }
+        }
+
+        Logger.log("il selector loop: (" + getName() + ") è stato fermato", true);
+    }
+
+    /**
+     * Esegue l'operazione per cui il canale legato a {@code key} è pronto, accettare una nuova connessione, leggere
+     * dati dal client o scrivere dati in attesa di essere inviati
+     * @param key chiave del canale pronto
+     */
+    private void process_key(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+
+        if (key.isAcceptable()) {
+            accept((ServerSocketChannel) key.channel(), (SelectorConnector) key.attachment());
+            return;
+        }
+
+        SelectorClient client = (SelectorClient) key.attachment();
+        if (key.isReadable()) {
+            read(client);
+        }
+        if (key.isValid() && key.isWritable()) {
+            client.flush();
+        }
+    }
+
+    /// Accetta tutte le connessioni in attesa sul canale passandole al connector
+    private void accept(ServerSocketChannel channel, SelectorConnector connector) {
+        try {
+            SocketChannel client_channel;
+            while ((client_channel = channel.accept()) != null) {
+                connector.accept(client_channel);
+            }
+        }
+        catch (IOException e) {
+            Logger.log("errore nell'accettare una nuova connessione dal connector: (" + connector.get_name() + ")\n\t\t\t\t" + e.getMessage(), true);
+        }
+    }
+
+    /// Legge tutti i dati disponibili dal canale del client e li passa a quest ultimo per dividerli in messaggi
+    private void read(SelectorClient client) {
+        read_buffer.clear();
+
+        int read;
+        try {
+            read = client.get_channel().read(read_buffer);
+        }
+        catch (IOException e) {
+            Logger.log("errore nella lettura dal client: (" + client.get_name() + ")\n\t\t\t\t" + e.getMessage(), true);
+            client.close();
+            return;
+        }
+
+        if (read == -1) { //il client ha chiuso la connessione
+            client.close();
+            return;
+        }
+
+        read_buffer.flip();
+        client.feed(read_buffer);
+    }
+}